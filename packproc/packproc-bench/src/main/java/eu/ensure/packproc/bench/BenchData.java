@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.bench;
+
+import eu.ensure.packproc.ProcessorException;
+import eu.ensure.packproc.ProcessorManager;
+import eu.ensure.packproc.model.EntryHandler;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates the test data used by the benchmarks.
+ * <p>
+ * Everything is generated from a fixed seed when setting up a benchmark,
+ * so that the benchmarks may be run offline and are comparable between runs.
+ */
+public final class BenchData {
+    private static final long SEED = 0x0e25e7eL;
+
+    private static final String XFDU_NS = "urn:ccsds:schema:xfdu:1";
+    private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String LTDPAO_NS = "http://www.ensure.eu/fhg/ibmt/ontologies/ltdpao#";
+    private static final String FS_NS = "http://aperture.semanticdesktop.org/ontology/2007/08/12/filesystemds#";
+    private static final String NIE_NS = "http://www.semanticdesktop.org/ontologies/2007/01/19/nie#";
+    private static final String NFO_NS = "http://www.semanticdesktop.org/ontologies/2007/03/22/nfo#";
+    private static final String DDMO_NS = "http://www.ensure.eu/fhg/ibmt/ontologies/ddmo#";
+
+    private BenchData() {}
+
+    /**
+     * Creates a prepared processor manager from a configuration found among
+     * the resources of this package.
+     */
+    public static ProcessorManager prepare(
+            String configurationResource, Map<String, EntryHandler> handlers
+    ) throws ProcessorException, IOException {
+
+        try (InputStream config = BenchData.class.getResourceAsStream(configurationResource)) {
+            if (null == config) {
+                throw new FileNotFoundException("No such configuration: " + configurationResource);
+            }
+            ProcessorManager manager = new ProcessorManager(new Properties(), config);
+            if (null != handlers) {
+                manager.setHandlers(handlers);
+            }
+            manager.prepare();
+            return manager;
+        }
+    }
+
+    /**
+     * Creates a temporary directory, to be removed by the caller.
+     */
+    public static File createDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Could not create temporary directory: " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    /**
+     * Creates an information package (TAR or ZIP) with an XFDU manifest
+     * and a number of content entries of random data.
+     */
+    public static File createPackage(
+            File dir, String format, int entryCount, int entrySize
+    ) throws IOException {
+
+        Random random = new Random(SEED);
+        String[] names = new String[entryCount];
+        String[] digests = new String[entryCount];
+        byte[][] contents = new byte[entryCount][];
+        for (int i = 0; i < entryCount; i++) {
+            names[i] = String.format("content/%04d/entry-%06d.bin", i / 100, i);
+            contents[i] = new byte[entrySize];
+            random.nextBytes(contents[i]);
+            digests[i] = md5(contents[i]);
+        }
+        byte[] manifest = xfduManifest(names, digests, entrySize);
+
+        File file = new File(dir, "package." + format);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            ArchiveOutputStream<?> archive = "zip".equalsIgnoreCase(format)
+                    ? new ZipArchiveOutputStream(os) : newTarArchiveOutputStream(os);
+
+            addEntry(archive, "manifest.xml", manifest);
+            for (int i = 0; i < entryCount; i++) {
+                addEntry(archive, names[i], contents[i]);
+                contents[i] = null;
+            }
+            archive.finish();
+            archive.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a TAR with a single entry, which is how individual documents are
+     * presented to the file processors.
+     */
+    public static File createSingleEntryTar(File dir, String entryName, byte[] data) throws IOException {
+        File file = new File(dir, entryName + ".tar");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            ArchiveOutputStream<?> archive = newTarArchiveOutputStream(os);
+            addEntry(archive, entryName, data);
+            archive.finish();
+            archive.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a directory tree with 'breadth' subdirectories per level down to
+     * 'depth' levels, each directory holding 'fileCount' files of which every
+     * fourth is a (small) XML document.
+     */
+    public static File createTree(
+            File dir, int depth, int breadth, int fileCount, int fileSize
+    ) throws IOException {
+
+        File root = new File(dir, "tree");
+        populate(root, depth, breadth, fileCount, fileSize, new Random(SEED));
+        return root;
+    }
+
+    private static void populate(
+            File dir, int depth, int breadth, int fileCount, int fileSize, Random random
+    ) throws IOException {
+
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        for (int i = 0; i < fileCount; i++) {
+            byte[] data;
+            String name;
+            if (i % 4 == 0) {
+                name = "document-" + i + ".xml";
+                data = largeXml(fileSize / 64 + 1);
+            } else {
+                name = "file-" + i + ".bin";
+                data = new byte[fileSize];
+                random.nextBytes(data);
+            }
+            try (OutputStream os = new FileOutputStream(new File(dir, name))) {
+                os.write(data);
+            }
+        }
+        if (depth > 0) {
+            for (int i = 0; i < breadth; i++) {
+                populate(new File(dir, "dir-" + i), depth - 1, breadth, fileCount, fileSize, random);
+            }
+        }
+    }
+
+    /**
+     * A plain XML document with 'recordCount' records.
+     */
+    public static byte[] largeXml(int recordCount) {
+        StringBuilder buf = new StringBuilder(recordCount * 64);
+        buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        buf.append("<records>\n");
+        for (int i = 0; i < recordCount; i++) {
+            buf.append("  <record id=\"").append(i).append("\">");
+            buf.append("<name>Record ").append(i).append("</name>");
+            buf.append("<value>").append(i * 31L).append("</value>");
+            buf.append("</record>\n");
+        }
+        buf.append("</records>\n");
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An XFDU manifest with 'streamCount' byte streams.
+     */
+    public static byte[] xfduManifest(int streamCount) {
+        String[] names = new String[streamCount];
+        String[] digests = new String[streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            names[i] = String.format("content/%04d/entry-%06d.bin", i / 100, i);
+            digests[i] = String.format("%032x", i);
+        }
+        return xfduManifest(names, digests, 4096);
+    }
+
+    private static byte[] xfduManifest(String[] names, String[] digests, long size) {
+        StringBuilder buf = new StringBuilder(names.length * 256);
+        buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        buf.append("<xfdu:XFDU xmlns:xfdu=\"").append(XFDU_NS).append("\">\n");
+        buf.append(" <dataObjectSection>\n");
+        for (int i = 0; i < names.length; i++) {
+            buf.append("  <dataObject ID=\"DO").append(i).append("\">\n");
+            buf.append("   <byteStream size=\"").append(size).append("\">\n");
+            buf.append("    <fileLocation locatorType=\"URL\" locator=\"file:./\" href=\"./")
+               .append(names[i]).append("\"/>\n");
+            buf.append("    <checksum checksumName=\"MD5\">").append(digests[i]).append("</checksum>\n");
+            buf.append("   </byteStream>\n");
+            buf.append("  </dataObject>\n");
+        }
+        buf.append(" </dataObjectSection>\n");
+        buf.append("</xfdu:XFDU>\n");
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * RDF metadata describing an AIP with 'fileCount' DICOM files, shaped
+     * the way the RdfProcessor expects it.
+     */
+    public static byte[] rdfMetadata(int fileCount) {
+        final String aip = "urn:ensure:aip:bench";
+        final String root = "file:/C:/archive/bench";
+
+        StringBuilder buf = new StringBuilder(fileCount * 1024);
+        buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        buf.append("<rdf:RDF xmlns:rdf=\"").append(RDF_NS).append("\"");
+        buf.append(" xmlns:ltdpao=\"").append(LTDPAO_NS).append("\"");
+        buf.append(" xmlns:fs=\"").append(FS_NS).append("\"");
+        buf.append(" xmlns:nie=\"").append(NIE_NS).append("\"");
+        buf.append(" xmlns:nfo=\"").append(NFO_NS).append("\"");
+        buf.append(" xmlns:ddmo=\"").append(DDMO_NS).append("\">\n");
+
+        buf.append(" <rdf:Description rdf:about=\"").append(aip).append("\">\n");
+        buf.append("  <rdf:type rdf:resource=\"").append(LTDPAO_NS).append("ArchivalInformationPackage\"/>\n");
+        buf.append("  <ltdpao:aipVersionId>1</ltdpao:aipVersionId>\n");
+        buf.append("  <ltdpao:aipCopyId>1</ltdpao:aipCopyId>\n");
+        buf.append("  <ltdpao:aipLogicalId>bench</ltdpao:aipLogicalId>\n");
+        buf.append("  <ltdpao:aipPath>/archive/bench</ltdpao:aipPath>\n");
+        buf.append("  <fs:rootFolder>").append(root).append("</fs:rootFolder>\n");
+        buf.append(" </rdf:Description>\n");
+
+        buf.append(" <rdf:Description rdf:about=\"").append(root).append("\">\n");
+        buf.append("  <ltdpao:isContentDataObjectOf rdf:resource=\"").append(aip).append("\"/>\n");
+        buf.append("  <nie:rootElementOf rdf:resource=\"").append(aip).append("\"/>\n");
+        buf.append(" </rdf:Description>\n");
+
+        for (int i = 0; i < fileCount; i++) {
+            String file = root + "/content/IMG_" + i;
+            String ie = "urn:ensure:ie:" + i;
+            String patient = "urn:ensure:patient:" + i;
+
+            buf.append(" <rdf:Description rdf:about=\"").append(file).append("\">\n");
+            buf.append("  <rdf:type rdf:resource=\"").append(DDMO_NS).append("DICOM_IOD\"/>\n");
+            buf.append("  <nfo:fileName>IMG_").append(i).append("</nfo:fileName>\n");
+            buf.append("  <nfo:fileSize>").append(4096 + i).append("</nfo:fileSize>\n");
+            buf.append("  <nie:mimeType>application/dicom</nie:mimeType>\n");
+            buf.append("  <nie:dataSource rdf:resource=\"").append(aip).append("\"/>\n");
+            buf.append("  <ddmo:includesIE rdf:resource=\"").append(ie).append("\"/>\n");
+            buf.append(" </rdf:Description>\n");
+
+            buf.append(" <rdf:Description rdf:about=\"").append(ie).append("\">\n");
+            buf.append("  <ddmo:includesPatientModule rdf:resource=\"").append(patient).append("\"/>\n");
+            buf.append(" </rdf:Description>\n");
+
+            buf.append(" <rdf:Description rdf:about=\"").append(patient).append("\">\n");
+            buf.append("  <ddmo:attributePatientID>P").append(i).append("</ddmo:attributePatientID>\n");
+            buf.append("  <ddmo:attributePatientName>Doe^John").append(i).append("</ddmo:attributePatientName>\n");
+            buf.append(" </rdf:Description>\n");
+        }
+        buf.append("</rdf:RDF>\n");
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A DICOM Part 10 file (explicit VR little endian, secondary capture)
+     * with a 'rows' x 'columns' 16-bit monochrome image.
+     * <p>
+     * Written by hand, so that generating the test data does not depend
+     * on the DICOM library being benchmarked.
+     */
+    public static byte[] dicomFile(int rows, int columns) throws IOException {
+        final String sopClass = "1.2.840.10008.5.1.4.1.1.7"; // Secondary Capture Image Storage
+        final String sopInstance = "1.2.826.0.1.3680043.2.1143.1";
+        final String transferSyntax = "1.2.840.10008.1.2.1"; // Explicit VR Little Endian
+
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        writeElement(meta, 0x0002, 0x0001, "OB", new byte[] { 0, 1 });
+        writeString(meta, 0x0002, 0x0002, "UI", sopClass);
+        writeString(meta, 0x0002, 0x0003, "UI", sopInstance);
+        writeString(meta, 0x0002, 0x0010, "UI", transferSyntax);
+        writeString(meta, 0x0002, 0x0012, "UI", "1.2.826.0.1.3680043.2.1143");
+
+        ByteArrayOutputStream dicom = new ByteArrayOutputStream(rows * columns * 2 + 1024);
+        dicom.write(new byte[128]); // preamble
+        dicom.write("DICM".getBytes(StandardCharsets.US_ASCII));
+        writeElement(dicom, 0x0002, 0x0000, "UL", le(meta.size(), 4));
+        meta.writeTo(dicom);
+
+        writeString(dicom, 0x0008, 0x0016, "UI", sopClass);
+        writeString(dicom, 0x0008, 0x0018, "UI", sopInstance);
+        writeString(dicom, 0x0008, 0x0020, "DA", "20140101");
+        writeString(dicom, 0x0008, 0x0060, "CS", "OT");
+        writeString(dicom, 0x0008, 0x103E, "LO", "Benchmark series");
+        writeString(dicom, 0x0010, 0x0010, "PN", "Doe^John");
+        writeString(dicom, 0x0010, 0x0020, "LO", "P0");
+        writeString(dicom, 0x0020, 0x000D, "UI", "1.2.826.0.1.3680043.2.1143.2");
+        writeString(dicom, 0x0020, 0x000E, "UI", "1.2.826.0.1.3680043.2.1143.3");
+        writeElement(dicom, 0x0028, 0x0002, "US", le(1, 2));
+        writeString(dicom, 0x0028, 0x0004, "CS", "MONOCHROME2");
+        writeElement(dicom, 0x0028, 0x0010, "US", le(rows, 2));
+        writeElement(dicom, 0x0028, 0x0011, "US", le(columns, 2));
+        writeElement(dicom, 0x0028, 0x0100, "US", le(16, 2));
+        writeElement(dicom, 0x0028, 0x0101, "US", le(16, 2));
+        writeElement(dicom, 0x0028, 0x0102, "US", le(15, 2));
+        writeElement(dicom, 0x0028, 0x0103, "US", le(0, 2));
+
+        byte[] pixels = new byte[rows * columns * 2];
+        new Random(SEED).nextBytes(pixels);
+        writeElement(dicom, 0x7FE0, 0x0010, "OW", pixels);
+
+        return dicom.toByteArray();
+    }
+
+    private static void writeString(
+            OutputStream os, int group, int element, String vr, String value
+    ) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length % 2 != 0) {
+            // Values have even length; UIDs are padded with NUL and the rest with space
+            byte[] padded = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, padded, 0, bytes.length);
+            padded[bytes.length] = (byte) ("UI".equals(vr) ? 0 : ' ');
+            bytes = padded;
+        }
+        writeElement(os, group, element, vr, bytes);
+    }
+
+    private static void writeElement(
+            OutputStream os, int group, int element, String vr, byte[] value
+    ) throws IOException {
+        os.write(le(group, 2));
+        os.write(le(element, 2));
+        os.write(vr.getBytes(StandardCharsets.US_ASCII));
+        switch (vr) {
+            case "OB":
+            case "OW":
+            case "SQ":
+            case "UN":
+            case "UT":
+                os.write(new byte[2]); // reserved
+                os.write(le(value.length, 4));
+                break;
+
+            default:
+                os.write(le(value.length, 2));
+                break;
+        }
+        os.write(value);
+    }
+
+    private static byte[] le(long value, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (value >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a resource of this package into memory.
+     */
+    public static byte[] readResource(String resource) throws IOException {
+        try (InputStream is = BenchData.class.getResourceAsStream(resource)) {
+            if (null == is) {
+                throw new FileNotFoundException("No such resource: " + resource);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[0x10000];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bytes.write(buf, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static TarArchiveOutputStream newTarArchiveOutputStream(OutputStream os) {
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(os);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        return tar;
+    }
+
+    private static void addEntry(ArchiveOutputStream<?> archive, String name, byte[] data) throws IOException {
+        if (archive instanceof ZipArchiveOutputStream) {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setSize(data.length);
+            ((ZipArchiveOutputStream) archive).putArchiveEntry(entry);
+        } else {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(data.length);
+            ((TarArchiveOutputStream) archive).putArchiveEntry(entry);
+        }
+        archive.write(data);
+        archive.closeArchiveEntry();
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder buf = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
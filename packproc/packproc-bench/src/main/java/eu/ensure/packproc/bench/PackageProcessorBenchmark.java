@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.bench;
+
+import eu.ensure.packproc.BasicProcessorContext;
+import eu.ensure.packproc.ProcessorManager;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the PackageProcessor traversing TAR and ZIP packages, either
+ * having many small entries or a few huge ones. In mutable mode the
+ * package is also written (to a null sink).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackageProcessorBenchmark {
+
+    @Param({ "tar", "zip" })
+    public String format;
+
+    /* "small": many small entries, "huge": a few huge entries */
+    @Param({ "small", "huge" })
+    public String layout;
+
+    @Param({ "false", "true" })
+    public boolean mutable;
+
+    private File dir;
+    private File pkg;
+    private ProcessorManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchData.createDirectory("packproc-bench-");
+        if ("huge".equals(layout)) {
+            pkg = BenchData.createPackage(dir, format, /* entries */ 4, /* size */ 64 << 20);
+        } else {
+            pkg = BenchData.createPackage(dir, format, /* entries */ 5000, /* size */ 4 << 10);
+        }
+        manager = BenchData.prepare("package-configuration.xml", null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public BasicProcessorContext process() throws Exception {
+        BasicProcessorContext context = new BasicProcessorContext(pkg.getName());
+        try (InputStream is = new FileInputStream(pkg)) {
+            OutputStream os = mutable ? NullOutputStream.INSTANCE : null;
+            manager.apply(pkg.getName(), is, os, context);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.bench;
+
+import eu.ensure.packproc.BasicProcessorContext;
+import eu.ensure.packproc.ProcessorManager;
+import eu.ensure.packproc.model.EntryHandler;
+import eu.ensure.packproc.warc.ResourceHandler;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the WarcProcessor and the WebResourceProcessor on the WARC-file
+ * from the tests of the WARC module. The &lt;consume/&gt; operation just
+ * reads the body of each response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WarcProcessorBenchmark {
+    private static final String WARC = "IAH-urls-wget.warc";
+
+    private byte[] warc;
+    private ProcessorManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        warc = BenchData.readResource(WARC);
+
+        Map<String, EntryHandler> operations = new HashMap<>();
+        operations.put("consume", (ResourceHandler<HttpResponse>) (entryWrapper, entry, contentType, inputStream, configuration, namespaces) -> {
+            byte[] buf = new byte[0x2000];
+            while (inputStream.read(buf) > 0) {
+                // just consume
+            }
+        });
+        manager = BenchData.prepare("warc-configuration.xml", operations);
+    }
+
+    @Benchmark
+    public BasicProcessorContext process() throws Exception {
+        BasicProcessorContext context = new BasicProcessorContext(WARC);
+        try (InputStream is = new ByteArrayInputStream(warc)) {
+            manager.apply(WARC, is, /* OutputStream */ null, context);
+        }
+        return context;
+    }
+}
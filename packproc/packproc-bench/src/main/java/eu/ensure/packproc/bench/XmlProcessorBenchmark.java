@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.bench;
+
+import eu.ensure.packproc.BasicProcessorContext;
+import eu.ensure.packproc.ProcessorManager;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the XmlFileProcessor, the XfduProcessor and the RdfProcessor
+ * on large documents. The documents are presented as the single entry
+ * of a TAR, which is how these processors are invoked in practice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class XmlProcessorBenchmark {
+
+    @Param({ "xml", "xfdu", "rdf" })
+    public String document;
+
+    /*
+     * Number of records or byte streams. The RdfProcessor searches the whole
+     * document for every described file, so the RDF only describes 'size / 100'
+     * files.
+     */
+    @Param({ "10000" })
+    public int size;
+
+    private File dir;
+    private File pkg;
+    private ProcessorManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchData.createDirectory("packproc-bench-");
+        switch (document) {
+            case "xfdu":
+                pkg = BenchData.createSingleEntryTar(dir, "manifest.xml", BenchData.xfduManifest(size));
+                break;
+
+            case "rdf":
+                pkg = BenchData.createSingleEntryTar(dir, "rdfMetadata.xml", BenchData.rdfMetadata(Math.max(1, size / 100)));
+                break;
+
+            default:
+                pkg = BenchData.createSingleEntryTar(dir, "document.xml", BenchData.largeXml(size));
+                break;
+        }
+        manager = BenchData.prepare(document + "-configuration.xml", null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public BasicProcessorContext process() throws Exception {
+        BasicProcessorContext context = new BasicProcessorContext(pkg.getName());
+        try (InputStream is = new FileInputStream(pkg)) {
+            manager.apply(pkg.getName(), is, /* OutputStream */ null, context);
+        }
+        return context;
+    }
+}
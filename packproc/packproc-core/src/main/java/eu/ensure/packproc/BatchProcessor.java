@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc;
+
+import eu.ensure.packproc.model.AssociatedInformation;
+import eu.ensure.packproc.model.EvaluationStatement;
+import eu.ensure.packproc.model.ProcessorContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a prepared processor manager on a batch of packages, processing
+ * a bounded number of packages concurrently.
+ * <p>
+ * Submitting blocks while 'workers' packages are being processed and
+ * another 'queueDepth' are waiting, so that a (possibly very long) stream
+ * of packages can be fed to the batch without buffering the lot. Each
+ * package is processed with a context of its own and the outcome is
+ * available through the returned future.
+ * <pre>
+ *     try (BatchProcessor batch = manager.newBatch(4, 16, 10L << 30)) {
+ *         List&lt;Future&lt;BatchProcessor.Result&gt;&gt; results = batch.submitAll(sources);
+ *         ...
+ *     }
+ * </pre>
+ * Packages may spool entries to temporary files while being processed. To
+ * cap the temporary disk in use, each package reserves its size from a common
+ * budget before being processed (a package larger than the budget reserves
+ * the whole budget, i.e. runs alone). Packages of unknown size reserve nothing.
+ */
+public class BatchProcessor implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(BatchProcessor.class);
+
+    /**
+     * A package to process.
+     */
+    public interface PackageSource {
+        String getName();
+
+        /**
+         * Size of package in bytes, or -1 if not known.
+         */
+        default long getSize() {
+            return -1L;
+        }
+
+        InputStream openInputStream() throws IOException;
+
+        /**
+         * Where to write the (possibly modified) package, or null
+         * if the package is only to be read.
+         */
+        default OutputStream openOutputStream() throws IOException {
+            return null;
+        }
+
+        /**
+         * Processes the package, using a (prepared) processor manager. Unless overridden,
+         * the package is read from {@link #openInputStream()} and written to
+         * {@link #openOutputStream()}.
+         */
+        default void process(ProcessorManager manager, ProcessorContext context) throws ProcessorException, IOException {
+            try (InputStream inputStream = openInputStream();
+                 OutputStream outputStream = openOutputStream()) {
+                manager.apply(getName(), inputStream, outputStream, context);
+            }
+        }
+    }
+
+    /**
+     * The outcome of processing a package.
+     */
+    public static class Result {
+        private final String name;
+        private final Collection<? extends AssociatedInformation> associatedInformation;
+        private final Collection<EvaluationStatement> evaluationStatements;
+        private final long elapsedNanos;
+
+        private Result(
+                String name, Collection<? extends AssociatedInformation> associatedInformation,
+                Collection<EvaluationStatement> evaluationStatements, long elapsedNanos
+        ) {
+            this.name = name;
+            this.associatedInformation = associatedInformation;
+            this.evaluationStatements = evaluationStatements;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Collection<? extends AssociatedInformation> getAssociatedInformation() {
+            return associatedInformation;
+        }
+
+        public Collection<EvaluationStatement> getEvaluationStatements() {
+            return evaluationStatements;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    // Disk budget is kept in KiB, in order to fit a semaphore
+    private static final int KIB = 1024;
+
+    private final ProcessorManager manager;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots; // packages being processed or queued
+    private final Semaphore diskBudget; // null if unbounded
+    private final int diskBudgetKiB;
+
+    /**
+     * @param manager a prepared processor manager
+     * @param workers number of packages processed concurrently
+     * @param queueDepth number of packages waiting to be processed, beyond which submitting blocks
+     * @param tempDiskLimit budget (in bytes) for temporary files, or 0 if unbounded
+     */
+    public BatchProcessor(ProcessorManager manager, int workers, int queueDepth, long tempDiskLimit) {
+        if (workers < 1 || queueDepth < 0) {
+            String info = "Invalid batch: workers=" + workers + ", queue-depth=" + queueDepth;
+            throw new IllegalArgumentException(info);
+        }
+        this.manager = manager;
+        this.slots = new Semaphore(workers + queueDepth);
+
+        if (tempDiskLimit > 0L) {
+            diskBudgetKiB = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, tempDiskLimit / KIB));
+            diskBudget = new Semaphore(diskBudgetKiB, /* fair */ true);
+        } else {
+            diskBudgetKiB = 0;
+            diskBudget = null;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), // bounded by 'slots'
+                runnable -> {
+                    Thread thread = new Thread(runnable, "batch-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * A package in a file, which is only read. Files are processed with random access,
+     * where the processors support it, and a directory is processed as is (by a
+     * dispersed structure processor).
+     */
+    public static PackageSource of(final File file) {
+        return new PackageSource() {
+            public String getName() {
+                return file.isDirectory() ? file.getPath() : file.getName();
+            }
+
+            public long getSize() {
+                return file.isDirectory() ? -1L : file.length();
+            }
+
+            public InputStream openInputStream() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public void process(ProcessorManager manager, ProcessorContext context) throws ProcessorException, IOException {
+                manager.apply(file, context);
+            }
+        };
+    }
+
+    /**
+     * A package read from an (already opened) stream of unknown size.
+     */
+    public static PackageSource of(final String name, final InputStream inputStream) {
+        return new PackageSource() {
+            public String getName() {
+                return name;
+            }
+
+            public InputStream openInputStream() {
+                return inputStream;
+            }
+        };
+    }
+
+    /**
+     * Submits a package for processing. Blocks if the queue is full.
+     */
+    public Future<Result> submit(final PackageSource source) throws InterruptedException {
+        slots.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return process(source);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            slots.release();
+            throw ree;
+        }
+    }
+
+    /**
+     * Submits all packages for processing, blocking whenever the queue is full.
+     */
+    public List<Future<Result>> submitAll(Iterator<? extends PackageSource> sources) throws InterruptedException {
+        List<Future<Result>> results = new Vector<Future<Result>>();
+        while (sources.hasNext()) {
+            results.add(submit(sources.next()));
+        }
+        return results;
+    }
+
+    /**
+     * Waits for submitted packages to be processed and releases the workers. If interrupted
+     * while waiting, packages not yet processed are abandoned (and the interrupt is kept).
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1L, TimeUnit.MINUTES)) {
+                log.info("Waiting for " + (executor.getQueue().size() + executor.getActiveCount()) + " package(s) to be processed");
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Result process(PackageSource source) throws ProcessorException, IOException, InterruptedException {
+        final String name = source.getName();
+
+        int reservation = 0;
+        if (null != diskBudget && source.getSize() > 0L) {
+            reservation = (int) Math.min(diskBudgetKiB, (source.getSize() + KIB - 1) / KIB);
+            diskBudget.acquire(reservation);
+        }
+
+        try {
+            BasicProcessorContext context = new BasicProcessorContext(name);
+            long startTime = System.nanoTime();
+
+            source.process(manager, context);
+
+            long elapsed = System.nanoTime() - startTime;
+            if (log.isDebugEnabled()) {
+                log.debug("Processed " + name + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            }
+            return new Result(
+                    name, context.extractAssociatedInformation(), context.extractEvaluationStatements(), elapsed
+            );
+
+        } catch (ProcessorException | IOException | RuntimeException e) {
+            String info = "Failed to process " + name + ": " + e.getMessage();
+            log.warn(info);
+            throw e;
+
+        } finally {
+            if (reservation > 0) {
+                diskBudget.release(reservation);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc;
+
+import eu.ensure.packproc.model.Flow;
+import eu.ensure.packproc.model.ProcessingEvent;
+import eu.ensure.packproc.model.ProcessorContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes what happens during a run, as it happens: entries read (with calculated
+ * information), information associated with entries and statements made.
+ * <pre>
+ *     ProcessingPublisher publisher = ProcessingPublisher.of(manager, file, 256);
+ *     publisher.subscribe(subscriber);
+ * </pre>
+ * The run starts when subscribed to (once, by a single subscriber) and is executed on
+ * a separate thread. Events are buffered (up to the specified number) until requested
+ * by the subscriber, and processing is blocked while the buffer is full -- so a slow
+ * subscriber slows down processing rather than the events piling up in memory.
+ * <p>
+ * Events are delivered on yet another thread, in sequence. The subscriber is completed
+ * when the run has finished, or receives the error that made the run fail. Cancelling
+ * the subscription interrupts the run.
+ */
+public class ProcessingPublisher implements Flow.Publisher<ProcessingEvent> {
+    private static final Logger log = LogManager.getLogger(ProcessingPublisher.class);
+
+    private static final AtomicInteger publisherCount = new AtomicInteger();
+
+    /**
+     * A run, such as one of the apply(...) methods of {@link ProcessorManager}.
+     */
+    @FunctionalInterface
+    public interface Run {
+        void apply(ProcessorContext context) throws Exception;
+    }
+
+    private final BasicProcessorContext context;
+    private final Run run;
+    private final int bufferSize;
+
+    private final AtomicBoolean isSubscribed = new AtomicBoolean(false);
+
+    public ProcessingPublisher(BasicProcessorContext context, Run run, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.context = context;
+        this.run = run;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Publishes the processing of a file (or directory), see {@link ProcessorManager#apply(File, ProcessorContext)}.
+     */
+    public static ProcessingPublisher of(final ProcessorManager manager, final File file, int bufferSize) {
+        BasicProcessorContext context = new BasicProcessorContext(file.getName());
+        return new ProcessingPublisher(context, ctx -> manager.apply(file, ctx), bufferSize);
+    }
+
+    /**
+     * The context of the run, from which the collected information may also be extracted
+     * once the run has finished.
+     */
+    public BasicProcessorContext getContext() {
+        return context;
+    }
+
+    public void subscribe(Flow.Subscriber<? super ProcessingEvent> subscriber) {
+        if (null == subscriber) {
+            throw new NullPointerException("subscriber");
+        }
+
+        if (!isSubscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {}
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Already subscribed to (a run is published only once)"));
+            return;
+        }
+
+        Subscription subscription = new Subscription(subscriber);
+        context.setStatementSink(statement -> subscription.publish(ProcessingEvent.stated(statement)));
+        context.setAssociationSink(
+                (claimant, path, values) -> subscription.publish(ProcessingEvent.associated(claimant, path, values))
+        );
+
+        subscriber.onSubscribe(subscription);
+        subscription.start("packproc-publisher-" + publisherCount.incrementAndGet());
+    }
+
+    /*
+     * Terminal signals, queued after the events
+     */
+    private static final Object COMPLETE = new Object();
+
+    private static class Failure {
+        private final Throwable cause;
+
+        private Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static boolean isTerminal(Object item) {
+        return COMPLETE == item || item instanceof Failure;
+    }
+
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ProcessingEvent> subscriber;
+
+        // Guards all of the below
+        private final Object lock = new Object();
+        private final ArrayDeque<Object> buffer = new ArrayDeque<Object>();
+        private long demand = 0L;
+        private boolean isTerminated = false; // no more events are accepted
+        private boolean isCancelled = false;
+
+        private Thread runner = null;
+
+        private Subscription(Flow.Subscriber<? super ProcessingEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void start(String name) {
+            Thread deliverer = new Thread(this::deliver, name + "-delivery");
+            deliverer.setDaemon(true);
+
+            synchronized (lock) {
+                runner = new Thread(() -> {
+                    try {
+                        run.apply(context);
+                        terminate(COMPLETE);
+
+                    } catch (Throwable t) {
+                        terminate(new Failure(t));
+                    }
+                }, name + "-run");
+                runner.setDaemon(true);
+            }
+            deliverer.start();
+            runner.start();
+        }
+
+        /*
+         * Called while processing (possibly from several threads), blocking while the buffer is full.
+         */
+        private void publish(ProcessingEvent event) {
+            synchronized (lock) {
+                try {
+                    while (!isTerminated && buffer.size() >= bufferSize) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException ie) {
+                    // Cancelled -- let processing notice
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (isTerminated) {
+                    return;
+                }
+                buffer.add(event);
+                lock.notifyAll();
+            }
+        }
+
+        private void terminate(Object signal) {
+            synchronized (lock) {
+                if (!isTerminated) {
+                    isTerminated = true;
+                    buffer.add(signal);
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0L) {
+                    String info = "Requested a non-positive number of events: " + n;
+                    isTerminated = true;
+                    buffer.clear();
+                    buffer.add(new Failure(new IllegalArgumentException(info)));
+                    lock.notifyAll();
+
+                    if (null != runner) {
+                        runner.interrupt();
+                    }
+                    return;
+                }
+                demand += n;
+                if (demand < 0L) {
+                    demand = Long.MAX_VALUE; // effectively unbounded
+                }
+                lock.notifyAll();
+            }
+        }
+
+        public void cancel() {
+            synchronized (lock) {
+                if (isCancelled) {
+                    return;
+                }
+                isCancelled = true;
+                isTerminated = true;
+                buffer.clear();
+                lock.notifyAll();
+
+                if (null != runner) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        private void deliver() {
+            try {
+                for (;;) {
+                    Object item;
+                    synchronized (lock) {
+                        while (!isCancelled
+                                && (buffer.isEmpty() || (0L == demand && !isTerminal(buffer.peek())))) {
+                            lock.wait();
+                        }
+                        if (isCancelled) {
+                            return;
+                        }
+                        item = buffer.poll();
+                        if (!isTerminal(item) && Long.MAX_VALUE != demand) {
+                            demand--;
+                        }
+                        lock.notifyAll(); // there is room in the buffer
+                    }
+
+                    if (COMPLETE == item) {
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (item instanceof Failure) {
+                        subscriber.onError(((Failure) item).cause);
+                        return;
+                    }
+                    subscriber.onNext((ProcessingEvent) item);
+                }
+            } catch (InterruptedException ie) {
+                cancel();
+
+            } catch (Throwable t) {
+                String info = "Subscriber failed - cancelling: ";
+                info += t.getMessage();
+                log.warn(info, t);
+                cancel();
+            }
+        }
+    }
+}
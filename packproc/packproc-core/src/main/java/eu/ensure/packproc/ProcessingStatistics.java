@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc;
+
+import eu.ensure.packproc.model.ProcessingListener;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ProcessingListener} that aggregates counters, throughput and latency
+ * histograms per processor (alias). Register with the processor manager before
+ * a run and read the statistics afterwards:
+ * <pre>
+ *     ProcessingStatistics statistics = new ProcessingStatistics();
+ *     manager.setListener(statistics);
+ *     manager.apply(name, inputStream, outputStream, context);
+ *     ProcessingStatistics.Statistics aip = statistics.getStatistics("aip-processor");
+ * </pre>
+ */
+public class ProcessingStatistics implements ProcessingListener {
+
+    private final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+    /**
+     * Latencies, kept in buckets with (nanosecond) upper bounds that are powers of two.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos)); // 0 for 0, 63 for the largest
+            count.increment();
+            total.add(nanos);
+
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return total.sum();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return n > 0 ? total.sum() / n : 0L;
+        }
+
+        /**
+         * Returns an upper bound for the latency of the given fraction (e.g. 0.99)
+         * of the recorded observations, with a precision of a factor of two.
+         */
+        public long getPercentileNanos(double fraction) {
+            long n = count.sum();
+            if (n == 0L) {
+                return 0L;
+            }
+            long threshold = (long) Math.ceil(fraction * n);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return (1L << i) - 1; // overflows to Long.MAX_VALUE for the last bucket
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Number of observations with latencies in [2^(i-1), 2^i) nanoseconds.
+         */
+        public long getBucket(int i) {
+            return buckets.get(i);
+        }
+
+        public int getBucketCount() {
+            return BUCKETS;
+        }
+    }
+
+    /**
+     * Statistics for a single processor (alias).
+     */
+    public static class Statistics {
+        private final String alias;
+
+        private final LongAdder containers = new LongAdder();
+        private final LongAdder entries = new LongAdder();
+        private final LongAdder entryBytes = new LongAdder();
+        private final LongAdder skippedEntries = new LongAdder();
+        private final LongAdder skippedBytes = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder spills = new LongAdder();
+        private final LongAdder spilledBytes = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+
+        private final Histogram containerLatency = new Histogram();
+        private final Histogram callLatency = new Histogram();
+
+        Statistics(String alias) {
+            this.alias = alias;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        // Number of containers processed
+        public long getContainers() {
+            return containers.sum();
+        }
+
+        // Number of entries read from containers
+        public long getEntries() {
+            return entries.sum();
+        }
+
+        // Number of bytes in entries read from containers
+        public long getEntryBytes() {
+            return entryBytes.sum();
+        }
+
+        // Number of entries passed over without being read
+        public long getSkippedEntries() {
+            return skippedEntries.sum();
+        }
+
+        // Number of bytes in entries passed over without being read
+        public long getSkippedBytes() {
+            return skippedBytes.sum();
+        }
+
+        // Number of entries matched by actions
+        public long getMatches() {
+            return matches.sum();
+        }
+
+        // Number of calls to processor
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        // Number of failed calls to processor
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        // Number of times data was written to temporary files
+        public long getSpills() {
+            return spills.sum();
+        }
+
+        public long getSpilledBytes() {
+            return spilledBytes.sum();
+        }
+
+        // Number of entries for which results were replayed from the result cache
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        // Number of entries for which results were not found in the result cache
+        public long getCacheMisses() {
+            return cacheMisses.sum();
+        }
+
+        public Histogram getContainerLatency() {
+            return containerLatency;
+        }
+
+        public Histogram getCallLatency() {
+            return callLatency;
+        }
+
+        /**
+         * Bytes read per second while in calls to processor.
+         */
+        public double getThroughput() {
+            long nanos = callLatency.getTotalNanos();
+            if (nanos <= 0L) {
+                return 0.0;
+            }
+            return bytesRead.sum() * 1.0e9 / nanos;
+        }
+
+        public String toString() {
+            StringBuilder buf = new StringBuilder(alias);
+            buf.append(": calls=").append(getCalls());
+            buf.append(" failures=").append(getFailures());
+            buf.append(" containers=").append(getContainers());
+            buf.append(" entries=").append(getEntries());
+            buf.append(" (").append(getEntryBytes()).append(" bytes)");
+            buf.append(" skipped=").append(getSkippedEntries());
+            buf.append(" (").append(getSkippedBytes()).append(" bytes)");
+            buf.append(" matches=").append(getMatches());
+            buf.append(" read=").append(getBytesRead());
+            buf.append(" written=").append(getBytesWritten());
+            buf.append(" spills=").append(getSpills());
+            buf.append(" (").append(getSpilledBytes()).append(" bytes)");
+            if (getCacheHits() + getCacheMisses() > 0L) {
+                buf.append(" cache-hits=").append(getCacheHits());
+                buf.append(" cache-misses=").append(getCacheMisses());
+            }
+            buf.append(" mean-call=").append(callLatency.getMeanNanos() / 1000L).append("us");
+            buf.append(" p99-call=").append(callLatency.getPercentileNanos(0.99) / 1000L).append("us");
+            buf.append(" max-call=").append(callLatency.getMaxNanos() / 1000L).append("us");
+            buf.append(" throughput=").append((long) getThroughput()).append("B/s");
+            return buf.toString();
+        }
+    }
+
+    private Statistics of(String alias) {
+        Statistics s = statistics.get(alias);
+        if (null == s) {
+            s = new Statistics(alias);
+            Statistics previous = statistics.putIfAbsent(alias, s);
+            if (null != previous) {
+                s = previous;
+            }
+        }
+        return s;
+    }
+
+    public Set<String> getAliases() {
+        return Collections.unmodifiableSet(new TreeSet<String>(statistics.keySet()));
+    }
+
+    /**
+     * Returns statistics for processor with specified alias, or null if no
+     * notifications were received for that processor.
+     */
+    public Statistics getStatistics(String alias) {
+        return statistics.get(alias);
+    }
+
+    public void clear() {
+        statistics.clear();
+    }
+
+    /*
+     * These are ProcessingListener methods
+     */
+    public void containerStarted(String alias, String name) {
+        of(alias).containers.increment();
+    }
+
+    public void containerEnded(String alias, String name, long nanos) {
+        of(alias).containerLatency.record(nanos);
+    }
+
+    public void entryRead(String alias, String entryName, long bytes) {
+        Statistics s = of(alias);
+        s.entries.increment();
+        s.entryBytes.add(bytes);
+    }
+
+    public void entrySkipped(String alias, String entryName, long bytes) {
+        Statistics s = of(alias);
+        s.skippedEntries.increment();
+        s.skippedBytes.add(bytes);
+    }
+
+    public void actionMatched(String alias, String entryName, String processorAlias, String method) {
+        of(alias).matches.increment();
+    }
+
+    public void processorEnded(String alias, String method, String name, long nanos, boolean successful) {
+        Statistics s = of(alias);
+        s.calls.increment();
+        if (!successful) {
+            s.failures.increment();
+        }
+        s.callLatency.record(nanos);
+    }
+
+    public void bytesRead(String alias, long bytes) {
+        of(alias).bytesRead.add(bytes);
+    }
+
+    public void bytesWritten(String alias, long bytes) {
+        of(alias).bytesWritten.add(bytes);
+    }
+
+    public void spilled(String alias, long bytes) {
+        Statistics s = of(alias);
+        s.spills.increment();
+        s.spilledBytes.add(bytes);
+    }
+
+    public void resultCached(String alias, String entryName, boolean hit) {
+        Statistics s = of(alias);
+        if (hit) {
+            s.cacheHits.increment();
+        } else {
+            s.cacheMisses.increment();
+        }
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (String alias : getAliases()) {
+            buf.append(statistics.get(alias)).append("\n");
+        }
+        return buf.toString();
+    }
+}
@@ -30,7 +30,11 @@ import org.gautelis.vopn.lang.DynamicInitializer;
 import org.gautelis.vopn.lang.DynamicLoader;
 import org.gautelis.vopn.lang.Stacktrace;
 import eu.ensure.packproc.internal.Action;
+import eu.ensure.packproc.internal.CountingInputStream;
+import eu.ensure.packproc.internal.CountingOutputStream;
 import eu.ensure.packproc.internal.EntrySelection;
+import eu.ensure.packproc.internal.ResultCache;
+import eu.ensure.packproc.internal.TrackingProcessorContext;
 import eu.ensure.packproc.model.*;
 import org.apache.axiom.om.*;
 import org.apache.logging.log4j.LogManager;
@@ -40,13 +44,23 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Loads the configuration from file and applies the processor machinery
+ * Loads the configuration from file and applies the processor machinery.
+ * <p>
+ * Once prepared, the configuration (i.e. the processors and their actions) is not
+ * modified, so a single prepared manager may be used by several concurrent calls to
+ * {@link #apply}, each with a context of its own. Any state that concerns a specific
+ * run is kept in that context.
  */
 public class ProcessorManager {
     private static final Logger log = LogManager.getLogger(ProcessorManager.class);
@@ -55,8 +69,11 @@ public class ProcessorManager {
 
     private OMElement configuration = null;
     private Properties properties = null;
-    private final List<Action> outermostActions = new Vector<Action>();
-    private final Map<String, EntryHandler> operations = new HashMap<>();
+    private volatile List<Action> outermostActions = null; // set when prepared
+    private final Map<String, EntryHandler> operations = new ConcurrentHashMap<>();
+
+    // Optional listener, notified on the progress of processing
+    private volatile ProcessingListener listener = null;
 
     public ProcessorManager(
             Properties properties, InputStream configStream
@@ -70,6 +87,10 @@ public class ProcessorManager {
             OMXMLParserWrapper builder = OMXMLBuilderFactory.createStAXOMBuilder(reader);
             configuration = builder.getDocumentElement(); // <configuration />
 
+            // Build the complete tree up front, since processors keep references to (parts of)
+            // it and a deferred tree may not be navigated concurrently.
+            configuration.build();
+
             if (isInvalid(configuration)) {
                 String info = "The configuration is invalid";
                 log.error(info);
@@ -82,7 +103,12 @@ public class ProcessorManager {
         }
     }
 
-    public void prepare() throws ProcessorException {
+    public synchronized void prepare() throws ProcessorException {
+        if (null != outermostActions) {
+            String info = "The configuration is already prepared";
+            throw new ProcessorException(info);
+        }
+
         try {
             //-------------------------------------------------------------------------------
             // The first element (below <configuration /> is expected to correspond to a
@@ -93,6 +119,7 @@ public class ProcessorManager {
             // this level has no effect!
             //-------------------------------------------------------------------------------
             Stack<Processor> outerProcessors = new Stack<Processor>(); // none sofar
+            List<Action> actions = new Vector<Action>();
 
             // Iterate through child elements of <configuration />.
             for (Iterator<OMElement> ei = configuration.getChildElements(); ei.hasNext(); ) {
@@ -117,8 +144,12 @@ public class ProcessorManager {
 
                 // Collect child invocation into list of outermost actions
                 String method = childElement.getLocalName();
-                outermostActions.add(new Action(new EntrySelection(childAttributes, method), childProcessor, method));
+                actions.add(new Action(
+                        new EntrySelection(childAttributes, method), childProcessor, method,
+                        configurationDigest(childElement, childAttributes, childProcessor)
+                ));
             }
+            outermostActions = Collections.unmodifiableList(actions);
 
         } catch (ClassNotFoundException cnfe) {
             String info = "Failed to load processor: " + cnfe.getMessage();
@@ -229,14 +260,17 @@ public class ProcessorManager {
 
             // Collect child invocation into parent processor
             String method = childElement.getLocalName();
-            actions.add(new Action(new EntrySelection(childAttributes, method), childProcessor, method));
+            actions.add(new Action(
+                    new EntrySelection(childAttributes, method), childProcessor, method,
+                    configurationDigest(childElement, childAttributes, childProcessor)
+            ));
         }
         if (containsPrivateData) {
             // ...and thus no action definitions
             processor.setConfiguration(element);
 
         } else {
-            processor.define(actions);
+            processor.define(Collections.unmodifiableList(actions));
         }
 
         if (log.isDebugEnabled())
@@ -246,6 +280,36 @@ public class ProcessorManager {
         return processor;
     }
 
+    /*
+     * Digest of the configuration of an action, i.e. the processor class, the (resolved)
+     * attributes and the configuration element including any nested configuration.
+     */
+    private static String configurationDigest(
+            OMElement element, Map<String, String> attributes, Processor processor
+    ) {
+        StringBuilder buf = new StringBuilder(processor.getClass().getName());
+        for (Map.Entry<String, String> attribute : new TreeMap<String, String>(attributes).entrySet()) {
+            buf.append('\n').append(attribute.getKey()).append('=').append(attribute.getValue());
+        }
+        buf.append('\n').append(element.toString());
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(buf.toString().getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+
+        } catch (NoSuchAlgorithmException nsae) {
+            // SHA-256 is mandatory on all Java platforms
+            throw new IllegalStateException(nsae);
+        }
+    }
+
     /**
      * Lookup (value) variable in properties.
      * <p>
@@ -324,6 +388,37 @@ public class ProcessorManager {
         return false;
     }
 
+    private List<Action> preparedActions() throws ProcessorException {
+        List<Action> actions = outermostActions;
+        if (null == actions) {
+            String info = "The configuration has not been prepared";
+            throw new ProcessorException(info);
+        }
+        return actions;
+    }
+
+    /**
+     * Creates a batch for processing several packages concurrently, using this (prepared)
+     * manager. See {@link BatchProcessor}.
+     */
+    public BatchProcessor newBatch(int workers, int queueDepth, long tempDiskLimit) throws ProcessorException {
+        preparedActions(); // fail early if not prepared
+        return new BatchProcessor(this, workers, queueDepth, tempDiskLimit);
+    }
+
+    /**
+     * Registers a listener that will be notified on the progress of processing, e.g.
+     * a {@link ProcessingStatistics}. Pass null to unregister. With no listener
+     * registered, processing is not instrumented at all.
+     */
+    public void setListener(ProcessingListener listener) {
+        this.listener = listener;
+    }
+
+    public ProcessingListener getListener() {
+        return listener;
+    }
+
     public void setHandlers(Map<String, EntryHandler> operations) {
         this.operations.putAll(operations);
     }
@@ -336,16 +431,15 @@ public class ProcessorManager {
             throws ProcessorException, IOException {
 
         try {
-            for (Action action : outermostActions) {
+            for (Action action : preparedActions()) {
                 // We can ignore entry selection on outermost processors
                 Processor processor = action.getProcessor();
-                String method = action.getMethod();
 
                 if (processor instanceof ContainerStructureProcessor) {
-                    applyOnContainerWithStructure(processor, method, name, inputStream, outputStream, context);
+                    applyOnContainerWithStructure(action, name, inputStream, outputStream, context);
 
                 } else if (processor instanceof FileProcessor) {
-                    applyOnPlainFile(processor, method, name, inputStream, outputStream, context);
+                    applyOnPlainFile(action, name, inputStream, outputStream, context);
                 }
             }
         } catch (ClassNotFoundException cnfe) {
@@ -374,10 +468,9 @@ public class ProcessorManager {
             throws ProcessorException, IOException {
 
         try {
-            for (Action action : outermostActions) {
+            for (Action action : preparedActions()) {
                 // We can ignore entry selection on outermost processors
                 Processor processor = action.getProcessor();
-                String method = action.getMethod();
 
                 if (processor instanceof DispersedStructureProcessor) {
                     if (!file.isDirectory()) {
@@ -391,7 +484,22 @@ public class ProcessorManager {
                         info += file.getAbsolutePath();
                         throw new ProcessorException(info);
                     }
-                    applyOnDirectory(processor, method, file.getPath(), file, context);
+                    applyOnDirectory(action, file.getPath(), file, context);
+                }
+                else if (processor instanceof ContainerStructureProcessor) {
+                    if (!file.isFile() || !file.canRead()) {
+                        String info = "Can not access (read) file: ";
+                        info += file.getAbsolutePath();
+                        throw new ProcessorException(info);
+                    }
+
+                    if (processor instanceof RandomAccessStructureProcessor) {
+                        applyOnFileWithStructure(action, file.getPath(), file, context);
+                    } else {
+                        try (InputStream inputStream = new FileInputStream(file)) {
+                            applyOnContainerWithStructure(action, file.getPath(), inputStream, null, context);
+                        }
+                    }
                 }
                 else if (processor instanceof FileProcessor) {
                     String info = "Applying processors on individual files are not currently supported. ";
@@ -445,14 +553,130 @@ public class ProcessorManager {
 
         } catch (Throwable t) {
             // Chances are you configured a second processor within <configuration />?
-            Throwable cause = Stacktrace.getBaseCause(t);
-            String info = "Call to " + processor.getAlias() + ":" + method + " returns error: " + cause.getMessage();
-            log.warn(info);
+            throw failure(processor, method, t);
+        }
+    }
 
-            if (cause instanceof ProcessorException) {
-                throw (ProcessorException) cause;
-            } else {
-                throw new ProcessorException(info, cause);
+    /**
+     * Same as {@link #applyOnContainerWithStructure(Processor, String, String, InputStream, OutputStream, ProcessorContext)},
+     * but calls the method resolved (once) for the action.
+     */
+    public void applyOnContainerWithStructure(
+            Action action,
+            String name,
+            InputStream inputStream,
+            OutputStream outputStream,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Processing " + action.getProcessor().getAlias() + ":" + action.getMethod());
+        }
+
+        try {
+            invoke(action, name, inputStream, outputStream, context);
+
+        } catch (Throwable t) {
+            throw failure(action.getProcessor(), action.getMethod(), t);
+        }
+    }
+
+    /**
+     * Operates on a structure contained in a file, which the processor may read randomly
+     * (as opposed to sequentially through a stream).
+     */
+    public void applyOnFileWithStructure(
+            Action action,
+            String name,
+            File file,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Processing " + action.getProcessor().getAlias() + ":" + action.getMethod());
+        }
+
+        ProcessingListener listener = this.listener;
+        long start = 0L;
+        if (null != listener) {
+            listener.processorStarted(action.getProcessor().getAlias(), action.getMethod(), name);
+            start = System.nanoTime();
+        }
+        boolean successful = false;
+        try {
+            action.invoke(name, file, context);
+            successful = true;
+
+        } catch (Throwable t) {
+            throw failure(action.getProcessor(), action.getMethod(), t);
+
+        } finally {
+            if (null != listener) {
+                listener.processorEnded(
+                        action.getProcessor().getAlias(), action.getMethod(), name, System.nanoTime() - start, successful
+                );
+            }
+        }
+    }
+
+    /**
+     * Applies the (prepared) configuration on some files of a directory only, e.g. files
+     * that were created or modified since the directory was last processed. Only
+     * processors operating on dispersed structures (such as the file system) are applied.
+     */
+    public void apply(File directory, Collection<File> files, ProcessorContext context)
+            throws ProcessorException, IOException {
+
+        try {
+            for (Action action : preparedActions()) {
+                Processor processor = action.getProcessor();
+
+                if (processor instanceof DispersedStructureProcessor) {
+                    applyOnFilesInDirectory(action, directory.getPath(), directory, files, context);
+                }
+            }
+        } catch (ClassNotFoundException cnfe) {
+            String info = "Failed to load processor: " + cnfe.getMessage();
+            throw new ProcessorException(info, cnfe);
+
+        } catch (RuntimeException re) {
+            String info = "Failure only visible in runtime: " + re.getMessage();
+            log.error(info, re);
+            throw new ProcessorException(info, re);
+        }
+    }
+
+    private void applyOnFilesInDirectory(
+            Action action,
+            String name,
+            File directory,
+            Collection<File> files,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Processing " + files.size() + " files with " + action.getProcessor().getAlias());
+        }
+
+        ProcessingListener listener = this.listener;
+        long start = 0L;
+        if (null != listener) {
+            listener.processorStarted(action.getProcessor().getAlias(), action.getMethod(), name);
+            start = System.nanoTime();
+        }
+        boolean successful = false;
+        try {
+            ((DispersedStructureProcessor) action.getProcessor()).processFiles(name, directory, files, context);
+            successful = true;
+
+        } finally {
+            if (null != listener) {
+                listener.processorEnded(
+                        action.getProcessor().getAlias(), action.getMethod(), name, System.nanoTime() - start, successful
+                );
             }
         }
     }
@@ -480,14 +704,45 @@ public class ProcessorManager {
 
         } catch (Throwable t) {
             // Chances are you configured a second processor within <configuration />?
-            Throwable cause = Stacktrace.getBaseCause(t);
-            String info = "Call to " + processor.getAlias() + ":" + method + " returns error: " + cause.getMessage();
-            log.warn(info);
+            throw failure(processor, method, t);
+        }
+    }
 
-            if (cause instanceof ProcessorException) {
-                throw (ProcessorException) cause;
-            } else {
-                throw new ProcessorException(info, cause);
+    /**
+     * Same as {@link #applyOnDirectory(Processor, String, String, File, ProcessorContext)},
+     * but calls the method resolved (once) for the action.
+     */
+    public void applyOnDirectory(
+            Action action,
+            String name,
+            File directory,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Processing " + action.getProcessor().getAlias() + ":" + action.getMethod());
+        }
+
+        ProcessingListener listener = this.listener;
+        long start = 0L;
+        if (null != listener) {
+            listener.processorStarted(action.getProcessor().getAlias(), action.getMethod(), name);
+            start = System.nanoTime();
+        }
+        boolean successful = false;
+        try {
+            action.invoke(name, directory, context);
+            successful = true;
+
+        } catch (Throwable t) {
+            throw failure(action.getProcessor(), action.getMethod(), t);
+
+        } finally {
+            if (null != listener) {
+                listener.processorEnded(
+                        action.getProcessor().getAlias(), action.getMethod(), name, System.nanoTime() - start, successful
+                );
             }
         }
     }
@@ -529,15 +784,32 @@ public class ProcessorManager {
 
         } catch (Throwable t) {
             // Chances are you configured a second processor within <configuration />?
-            Throwable cause = Stacktrace.getBaseCause(t);
-            String info = "Call to " + processor.getAlias() + ":" + method + " returns error: " + cause.getMessage();
-            log.warn(info);
+            throw failure(processor, method, t);
+        }
+    }
 
-            if (cause instanceof ProcessorException) {
-                throw (ProcessorException) cause;
-            } else {
-                throw new ProcessorException(info, cause);
-            }
+    /**
+     * Same as {@link #applyOnPlainFile(Processor, String, String, InputStream, OutputStream, ProcessorContext)},
+     * but calls the method resolved (once) for the action.
+     */
+    public void applyOnPlainFile(
+            Action action,
+            String name,
+            InputStream inputStream,
+            OutputStream outputStream,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Processing " + action.getProcessor().getAlias() + ":" + action.getMethod());
+        }
+
+        try {
+            invoke(action, name, inputStream, outputStream, context);
+
+        } catch (Throwable t) {
+            throw failure(action.getProcessor(), action.getMethod(), t);
         }
     }
 
@@ -586,16 +858,173 @@ public class ProcessorManager {
             processorLoader.callMethodOn(processor, method, parameters, types);
 
         } catch (Throwable t) {
-            // Get base cause
-            Throwable cause = Stacktrace.getBaseCause(t);
-            String info = "Call to " + processor.getAlias() + ":" + method + " returns error: " + cause.getMessage();
-            log.warn(info);
+            throw failure(processor, method, t);
+        }
+    }
 
-            if (cause instanceof ProcessorException) {
-                throw (ProcessorException) cause;
+    /**
+     * Same as {@link #applyOnEntry(Processor, String, StructureEntry, InputStream, StructureOutputStream, ProcessorContext)},
+     * but calls the method resolved (once) for the action. This is the method to use when
+     * operating on the individual entries of a structure, since it does not have to look up
+     * the method for every entry.
+     */
+    public void applyOnEntry(
+            Action action,
+            StructureEntry structureEntry,
+            InputStream entryInputStream,
+            StructureOutputStream entryOutputStream,
+            ProcessorContext context
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        try {
+            ProcessingListener listener = this.listener;
+            if (null == listener) {
+                action.invoke(structureEntry, entryInputStream, entryOutputStream, context);
             } else {
-                throw new ProcessorException(info, cause);
+                String alias = action.getProcessor().getAlias();
+                String name = structureEntry.getName();
+                CountingInputStream countingInputStream = null;
+                if (null != entryInputStream) {
+                    entryInputStream = countingInputStream = new CountingInputStream(entryInputStream);
+                }
+
+                listener.processorStarted(alias, action.getMethod(), name);
+                long start = System.nanoTime();
+                boolean successful = false;
+                try {
+                    action.invoke(structureEntry, entryInputStream, entryOutputStream, context);
+                    successful = true;
+                } finally {
+                    listener.processorEnded(alias, action.getMethod(), name, System.nanoTime() - start, successful);
+                    if (null != countingInputStream) {
+                        listener.bytesRead(alias, countingInputStream.getCount());
+                    }
+                }
+            }
+        } catch (ProcessorException pe) {
+            // Processors typically signal problems this way, so we don't have to
+            // dig for the cause
+            log.warn("Call to " + action.getProcessor().getAlias() + ":" + action.getMethod() + " returns error: " + pe.getMessage());
+            throw pe;
+
+        } catch (Throwable t) {
+            throw failure(action.getProcessor(), action.getMethod(), t);
+        }
+    }
+
+    /**
+     * Same as {@link #applyOnEntry(Action, StructureEntry, InputStream, StructureOutputStream, ProcessorContext)},
+     * but looks up results of the processor in a result cache first. If found, the information
+     * associated by the processor (in an earlier run) is replayed onto the context instead of
+     * calling the processor. Otherwise the processor is called and the information it associates
+     * is stored in the cache.
+     * <p>
+     * @param cache - result cache, or null if results are not cached
+     * @param key - key identifying the outcome of the processor on the entry (see
+     *              {@link ResultCache#keyOf}), or null if the entry could not be identified
+     */
+    public void applyOnEntry(
+            Action action,
+            StructureEntry structureEntry,
+            InputStream entryInputStream,
+            StructureOutputStream entryOutputStream,
+            ProcessorContext context,
+            ResultCache cache,
+            String key
+    )
+            throws ClassNotFoundException, IOException, ProcessorException
+    {
+        if (null == cache || null == key || !(context instanceof TrackingProcessorContext)) {
+            applyOnEntry(action, structureEntry, entryInputStream, entryOutputStream, context);
+            return;
+        }
+
+        ProcessingListener listener = this.listener;
+        String alias = action.getProcessor().getAlias();
+
+        List<ResultCache.Association> results = cache.lookup(key);
+        if (null != listener) {
+            listener.resultCached(alias, structureEntry.getName(), null != results);
+        }
+        if (null != results) {
+            ResultCache.replay(results, context);
+            return;
+        }
+
+        TrackingProcessorContext trackingContext = (TrackingProcessorContext) context;
+        List<ResultCache.Association> previous = trackingContext.startRecording();
+        List<ResultCache.Association> recorded;
+        try {
+            applyOnEntry(action, structureEntry, entryInputStream, entryOutputStream, context);
+        } finally {
+            recorded = trackingContext.stopRecording(previous);
+        }
+
+        try {
+            cache.store(key, recorded);
+
+        } catch (IOException ioe) {
+            // Not fatal, since we only miss out on the results next time
+            String info = "Could not store results of " + alias + ":" + action.getMethod();
+            info += " on " + structureEntry.getName() + ": " + ioe.getMessage();
+            log.warn(info);
+        }
+    }
+
+    /*
+     * Calls method on processor, operating on a stream. If a listener is registered,
+     * the call is timed and the bytes read and written are counted.
+     */
+    private void invoke(
+            Action action, String name, InputStream inputStream, OutputStream outputStream, ProcessorContext context
+    ) throws Throwable {
+        ProcessingListener listener = this.listener;
+        if (null == listener) {
+            action.invoke(name, inputStream, outputStream, context);
+            return;
+        }
+
+        String alias = action.getProcessor().getAlias();
+        CountingInputStream countingInputStream = null;
+        if (null != inputStream) {
+            inputStream = countingInputStream = new CountingInputStream(inputStream);
+        }
+        CountingOutputStream countingOutputStream = null;
+        if (null != outputStream) {
+            outputStream = countingOutputStream = new CountingOutputStream(outputStream);
+        }
+
+        listener.processorStarted(alias, action.getMethod(), name);
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            action.invoke(name, inputStream, outputStream, context);
+            successful = true;
+        } finally {
+            listener.processorEnded(alias, action.getMethod(), name, System.nanoTime() - start, successful);
+            if (null != countingInputStream) {
+                listener.bytesRead(alias, countingInputStream.getCount());
+            }
+            if (null != countingOutputStream) {
+                listener.bytesWritten(alias, countingOutputStream.getCount());
             }
         }
     }
+
+    /*
+     * Reports a failed call to a processor, adapting to a ProcessorException.
+     */
+    private ProcessorException failure(Processor processor, String method, Throwable t) {
+        // Get base cause
+        Throwable cause = Stacktrace.getBaseCause(t);
+        String info = "Call to " + processor.getAlias() + ":" + method + " returns error: " + cause.getMessage();
+        log.warn(info);
+
+        if (cause instanceof ProcessorException) {
+            return (ProcessorException) cause;
+        } else {
+            return new ProcessorException(info, cause);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc;
+
+import eu.ensure.packproc.model.EvaluationStatement;
+import eu.ensure.packproc.model.StatementSink;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Some {@link StatementSink}s, to be set on the context of a run:
+ * <pre>
+ *     BasicProcessorContext context = new BasicProcessorContext(name);
+ *     context.setStatementSink(StatementSinks.only(StatementSinks.toWriter(writer), EvaluationStatement.NEGATIVE));
+ *     manager.apply(name, inputStream, outputStream, context);
+ * </pre>
+ */
+public final class StatementSinks {
+    private static final Logger log = LogManager.getLogger(StatementSinks.class);
+
+    private StatementSinks() {}
+
+    /**
+     * Passes on statements having one of the specified factors (polarities) to
+     * another sink. Other statements are never created.
+     */
+    public static StatementSink only(final StatementSink sink, final int... factors) {
+        return new StatementSink() {
+            public void accept(EvaluationStatement statement) {
+                if (accepts(statement.getFactor())) {
+                    sink.accept(statement);
+                }
+            }
+
+            @Override
+            public boolean accepts(int factor) {
+                for (int accepted : factors) {
+                    if (accepted == factor) {
+                        return sink.accepts(factor);
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Puts statements on a (bounded) queue, blocking processing while
+     * the queue is full.
+     */
+    public static StatementSink toQueue(final BlockingQueue<EvaluationStatement> queue) {
+        return statement -> {
+            try {
+                queue.put(statement);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                String info = "Interrupted while queueing statement: " + statement.getStatement();
+                log.warn(info);
+            }
+        };
+    }
+
+    /**
+     * Writes statements as text, one per line: factor, path and statement
+     * separated by tabs. The writer is not closed.
+     */
+    public static StatementSink toWriter(final Writer writer) {
+        return statement -> {
+            StringBuilder buf = new StringBuilder();
+            buf.append(statement.getFactor()).append('\t');
+            buf.append(statement.getPath()).append('\t');
+            buf.append(statement.getStatement()).append('\n');
+
+            synchronized (writer) {
+                try {
+                    writer.write(buf.toString());
+                } catch (IOException ioe) {
+                    String info = "Failed to write statement: " + ioe.getMessage();
+                    log.warn(info);
+                }
+            }
+        };
+    }
+}
@@ -26,30 +26,91 @@
 package eu.ensure.packproc.internal;
 
 import eu.ensure.packproc.model.Processor;
+import eu.ensure.packproc.model.ProcessorContext;
+import eu.ensure.packproc.model.StructureEntry;
+import eu.ensure.packproc.model.StructureOutputStream;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
 
 /**
  * An action on a file, such as "process", ...
  * May or may not have a selection (constraints on which file to apply action to).
  */
 public class Action {
-    private EntrySelection selection = null;
-    private Processor processor = null;
-    private String method = null;
-    private boolean matchedRegularExpression = false;
+    // The signatures of methods that may be called on processors (apart from the processor itself)
+    private static final Class[] STREAM_TYPES = {
+            String.class, InputStream.class, OutputStream.class, ProcessorContext.class
+    };
+    private static final Class[] DIRECTORY_TYPES = {
+            String.class, File.class, ProcessorContext.class
+    };
+    private static final Class[] ENTRY_TYPES = {
+            StructureEntry.class, InputStream.class, StructureOutputStream.class, ProcessorContext.class
+    };
+
+    // An action is part of a prepared configuration, which may be shared among concurrent
+    // runs, and is thus not modified after being created.
+    private final EntrySelection selection;
+    private final Processor processor;
+    private final String method;
+
+    // Digest of the configuration of the processor (and this action), identifying
+    // the outcome of the processor when results are cached across runs
+    private final String configurationDigest;
+
+    // Method on processor, resolved once (when the configuration is prepared) so that
+    // we do not have to look them up for every entry. Null if processor does not
+    // implement method with corresponding signature.
+    private final MethodHandle onStream;
+    private final MethodHandle onDirectory;
+    private final MethodHandle onEntry;
 
 
     public Action(EntrySelection selection, Processor processor, String method) {
+        this(selection, processor, method, null);
+    }
+
+    public Action(EntrySelection selection, Processor processor, String method, String configurationDigest) {
         this.selection = selection;
         this.processor = processor;
         this.method = method;
+        this.configurationDigest = configurationDigest;
+
+        if (null != processor && null != method) {
+            onStream = resolve(processor, method, STREAM_TYPES);
+            onDirectory = resolve(processor, method, DIRECTORY_TYPES);
+            onEntry = resolve(processor, method, ENTRY_TYPES);
+        } else {
+            onStream = onDirectory = onEntry = null;
+        }
     }
 
-    public boolean hasSelection() {
-        return null != selection;
+    private static MethodHandle resolve(Processor processor, String name, Class[] types) {
+        try {
+            Method m = processor.getClass().getMethod(name, types);
+            try {
+                m.setAccessible(true); // in case the processor class is not public
+            } catch (SecurityException ignore) {
+            }
+
+            // Adapt to a signature with the processor as the first argument and no return
+            // value, so that we may use invokeExact
+            MethodType type = MethodType.methodType(void.class, Processor.class).appendParameterTypes(types);
+            return MethodHandles.lookup().unreflect(m).asType(type);
+
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
     }
 
-    public boolean wasMatchOnRegularExpression() {
-        return matchedRegularExpression;
+    public boolean hasSelection() {
+        return null != selection;
     }
 
     public EntrySelection getSelection() {
@@ -64,12 +125,64 @@ public class Action {
         return method;
     }
 
+    public String getConfigurationDigest() {
+        return configurationDigest;
+    }
+
+    /**
+     * Calls method on processor, operating on a stream.
+     */
+    public void invoke(
+            String name, InputStream inputStream, OutputStream outputStream, ProcessorContext context
+    ) throws Throwable {
+        if (null == onStream) {
+            throw noSuchMethod(STREAM_TYPES);
+        }
+        onStream.invokeExact(processor, name, inputStream, outputStream, context);
+    }
+
+    /**
+     * Calls method on processor, operating on a directory.
+     */
+    public void invoke(
+            String name, File directory, ProcessorContext context
+    ) throws Throwable {
+        if (null == onDirectory) {
+            throw noSuchMethod(DIRECTORY_TYPES);
+        }
+        onDirectory.invokeExact(processor, name, directory, context);
+    }
+
+    /**
+     * Calls method on processor, operating on an entry in a structure.
+     */
+    public void invoke(
+            StructureEntry structureEntry, InputStream entryInputStream, StructureOutputStream entryOutputStream,
+            ProcessorContext context
+    ) throws Throwable {
+        if (null == onEntry) {
+            throw noSuchMethod(ENTRY_TYPES);
+        }
+        onEntry.invokeExact(processor, structureEntry, entryInputStream, entryOutputStream, context);
+    }
+
+    private NoSuchMethodException noSuchMethod(Class[] types) {
+        StringBuilder info = new StringBuilder();
+        info.append(processor.getClass().getName()).append(".").append(method).append("(");
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                info.append(", ");
+            }
+            info.append(types[i].getName());
+        }
+        info.append(")");
+        return new NoSuchMethodException(info.toString());
+    }
+
     public boolean matchOnName(String path) {
         if (null == path || path.length() == 0)
             return false;
 
-        matchedRegularExpression = false;
-
         // Possibly align path with the provided location. If it was "absolute" within the structure,
         // then we will make the path "absolute" as well.
         if (selection.hasLocation() && selection.getLocation().startsWith("/") && !path.startsWith("/")) {
@@ -118,7 +231,6 @@ public class Action {
             if (!selection.nameMatches(entryName)) {
                 return false;
             }
-            matchedRegularExpression = true;
             //System.out.println("Match? Entry " + entryName + " matches RE " + selection.getRE());
         }
 
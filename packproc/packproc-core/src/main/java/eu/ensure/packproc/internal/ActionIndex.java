@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.util.*;
+
+/**
+ * An index over the actions of a structure processor, used to find the action
+ * matching an entry without matching the entry against each and every action.
+ * <p>
+ * The outcome is the same as when calling {@link Action#matchOnName(String)}
+ * (and {@link Action#matchOnType(String)}) on each action in turn, i.e. the
+ * first matching action (in configuration order) wins. Exact names and exact
+ * locations are looked up in (case-folded) hash maps, while regular expressions
+ * are only tried for actions preceding the best exact match sofar.
+ * <p>
+ * The index is immutable and may be shared between threads.
+ */
+public class ActionIndex {
+    private static final int[] NONE = new int[0];
+
+    private final Action[] actions;
+
+    // Selections on 'name' (possibly qualified by 'location'), keyed by folded name
+    private final Map<String, int[]> byName;
+
+    // Selections on 'location' only, keyed by folded location
+    private final Map<String, int[]> byLocation;
+
+    // Selections on 'name-re' (possibly qualified by 'location'), in configuration order
+    private final int[] byNameRE;
+
+    // Selections on 'type', keyed by folded type
+    private final Map<String, int[]> byType;
+
+    // Selections on 'type-re', in configuration order
+    private final int[] byTypeRE;
+
+    public ActionIndex(List<Action> actions) {
+        this.actions = actions.toArray(new Action[actions.size()]);
+
+        Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> locations = new HashMap<String, List<Integer>>();
+        List<Integer> nameREs = new ArrayList<Integer>();
+        Map<String, List<Integer>> types = new HashMap<String, List<Integer>>();
+        List<Integer> typeREs = new ArrayList<Integer>();
+
+        for (int i = 0; i < this.actions.length; i++) {
+            EntrySelection selection = this.actions[i].getSelection();
+            if (null == selection) {
+                continue;
+            }
+
+            // Matching on type
+            if (selection.hasType()) {
+                add(types, fold(selection.getType()), i);
+            } else if (selection.hasTypeRE()) {
+                typeREs.add(i);
+            }
+
+            // Matching on name -- never if we have no constraints or if we match on type
+            if (!selection.hasConstraint() || selection.hasType() || selection.hasTypeRE()) {
+                continue;
+            }
+
+            if (selection.hasName()) {
+                add(names, fold(selection.getName()), i);
+            } else if (selection.hasNameRE()) {
+                nameREs.add(i);
+            } else if (selection.hasLocation()) {
+                add(locations, fold(selection.getLocation()), i);
+            }
+        }
+
+        byName = freeze(names);
+        byLocation = freeze(locations);
+        byNameRE = toArray(nameREs);
+        byType = freeze(types);
+        byTypeRE = toArray(typeREs);
+    }
+
+    /**
+     * Locates first action matching (on name) the entry with the specified path.
+     * @return matching action or null if no action matches
+     */
+    public Action firstMatchOnName(String path) {
+        int best = firstMatchOnName(path, Integer.MAX_VALUE);
+        return best < actions.length ? actions[best] : null;
+    }
+
+    /**
+     * Locates first action matching either (on name) the entry with the specified path
+     * or (on type) the entry with the specified type.
+     * @return matching action or null if no action matches
+     */
+    public Action firstMatch(String path, String type) {
+        int best = firstMatchOnType(type, Integer.MAX_VALUE);
+        best = firstMatchOnName(path, best);
+        return best < actions.length ? actions[best] : null;
+    }
+
+    private int firstMatchOnName(String path, int best) {
+        if (null == path || path.length() == 0) {
+            return best;
+        }
+
+        // Determine entry name and base name (including trailing "/") once for all actions,
+        // in the same manner as Action.matchOnName does
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            --end;
+        }
+        if (end == 0) {
+            return best;
+        }
+        int start = path.lastIndexOf('/', end - 1) + 1;
+        String entryName = path.substring(start, end);
+        String baseName = path.substring(0, start);
+
+        // Exact names
+        for (int i : lookup(byName, fold(entryName))) {
+            if (i >= best) {
+                break;
+            }
+            if (matchesLocation(actions[i].getSelection(), path, baseName)) {
+                best = i;
+                break;
+            }
+        }
+
+        // Exact locations (where location may be "absolute" even though path is not)
+        if (!byLocation.isEmpty()) {
+            best = first(lookup(byLocation, fold(path)), best);
+            if (!path.startsWith("/")) {
+                best = first(lookup(byLocation, fold("/" + path)), best);
+            }
+        }
+
+        // Regular expressions, but only if preceding the best match sofar
+        for (int i : byNameRE) {
+            if (i >= best) {
+                break;
+            }
+            EntrySelection selection = actions[i].getSelection();
+            if (matchesLocation(selection, path, baseName) && selection.nameMatches(entryName)) {
+                best = i;
+                break;
+            }
+        }
+        return best;
+    }
+
+    private int firstMatchOnType(String type, int best) {
+        if (null == type || type.length() == 0) {
+            return best;
+        }
+
+        best = first(lookup(byType, fold(type)), best);
+
+        for (int i : byTypeRE) {
+            if (i >= best) {
+                break;
+            }
+            if (actions[i].getSelection().typeMatches(type)) {
+                best = i;
+                break;
+            }
+        }
+        return best;
+    }
+
+    private static boolean matchesLocation(EntrySelection selection, String path, String baseName) {
+        if (!selection.hasLocation()) {
+            return true;
+        }
+        String location = selection.getLocation();
+        if (location.startsWith("/") && !path.startsWith("/")) {
+            // Align with "absolute" location
+            return location.length() == baseName.length() + 1 && location.regionMatches(true, 1, baseName, 0, baseName.length());
+        }
+        return location.equalsIgnoreCase(baseName);
+    }
+
+    /**
+     * Folds case, so that folded strings are equal exactly when the original
+     * strings are equal ignoring case (as of String.equalsIgnoreCase).
+     */
+    static String fold(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char f = Character.toLowerCase(Character.toUpperCase(c));
+            if (f != c) {
+                if (null == chars) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = f;
+            }
+        }
+        return null == chars ? s : new String(chars);
+    }
+
+    private static int first(int[] candidates, int best) {
+        return candidates.length > 0 && candidates[0] < best ? candidates[0] : best;
+    }
+
+    private static int[] lookup(Map<String, int[]> map, String key) {
+        int[] candidates = map.get(key);
+        return null == candidates ? NONE : candidates;
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int i) {
+        List<Integer> list = map.get(key);
+        if (null == list) {
+            list = new ArrayList<Integer>();
+            map.put(key, list);
+        }
+        list.add(i);
+    }
+
+    private static Map<String, int[]> freeze(Map<String, List<Integer>> map) {
+        Map<String, int[]> frozen = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            frozen.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return frozen;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -258,14 +258,22 @@ public abstract class BasicFileProcessor implements FileProcessor {
                 outputFileChannel = outputRaf.getChannel();
             }
 
-            // Transfer from input stream to temporary file
-            ReadableByteChannel entryInputChannel = Channels.newChannel(entryInputStream);
+            // Files in the file system (if mapped) are read through a channel onto the file itself,
+            // so that the callable may read it randomly (or map it) without copying.
+            ReadableByteChannel entryInputChannel;
+            MappedFileInputStream mappedInputStream = MappedFileInputStream.from(entryInputStream);
+            if (null != mappedInputStream) {
+                entryInputChannel = mappedInputStream.getChannel();
+            } else {
+                entryInputChannel = Channels.newChannel(entryInputStream);
+            }
 
             try {
                 callable.call(entryInputChannel, outputFileChannel, processor, context);
                 if (isMutableCall) {
                     // We only have to take care of output if we did a mutable call
                     // for this entry
+                    reportSpill(tmpOutputFile.length());
                     structureOutputStream.replaceEntry(entry, tmpOutputFile);
                     {
                         WritableByteChannel outputChannel = Channels.newChannel(structureOutputStream);
@@ -288,6 +296,16 @@ public abstract class BasicFileProcessor implements FileProcessor {
         }
     }
 
+    /*
+     * Output of mutable calls always goes to a temporary file. Tell any listener.
+     */
+    private void reportSpill(long bytes) {
+        ProcessingListener listener = null != manager ? manager.getListener() : null;
+        if (null != listener) {
+            listener.spilled(alias, bytes);
+        }
+    }
+
     public void process(
             StructureEntry entry,
             InputStream entryInputStream,
@@ -345,6 +363,7 @@ public abstract class BasicFileProcessor implements FileProcessor {
                 if (isMutableCall) {
                     // We only have to take care of output if we did a mutable call
                     // for this entry
+                    reportSpill(tmpOutputFile.length());
                     structureOutputStream.replaceEntry(entry, tmpOutputFile);
                     {
                         WritableByteChannel outputChannel = Channels.newChannel(structureOutputStream);
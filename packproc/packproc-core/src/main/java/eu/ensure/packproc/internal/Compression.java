@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of (whole) packages, such as .tar.gz, .tar.bz2 and .tar.zst.
+ * <p>
+ * Gzip and bzip2 are decompressed and compressed in parallel, while other formats (as well as
+ * ordinary, i.e. not blocked, gzip) are decompressed on a thread of their own ahead of the reader. Zstandard is compressed using
+ * the native library's own workers, and is available only if zstd-jni is on the class path.
+ */
+public final class Compression {
+
+    static final int READ_AHEAD_CHUNKS = 16;
+
+    private Compression() {
+    }
+
+    /**
+     * Determines the compression format of a stream, leaving the stream as it was.
+     * <p>
+     * @param in - stream supporting mark/reset
+     * @return name of compression format, as known to {@link CompressorStreamFactory}, or null if not compressed
+     */
+    public static String detect(InputStream in) {
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("Mark is not supported");
+        }
+
+        String name;
+        try {
+            name = CompressorStreamFactory.detect(in);
+        } catch (CompressorException ce) {
+            return null;
+        }
+
+        // Only signatures that are unlikely to occur at the start of an archive
+        switch (name) {
+            case CompressorStreamFactory.GZIP:
+            case CompressorStreamFactory.BZIP2:
+            case CompressorStreamFactory.XZ:
+            case CompressorStreamFactory.ZSTANDARD:
+                return name;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Wraps a stream onto compressed data into a stream onto decompressed data.
+     */
+    public static InputStream decompress(String name, InputStream in, int threads) throws IOException {
+        switch (name) {
+            case CompressorStreamFactory.GZIP:
+                return new ParallelGzipInputStream(in, threads);
+
+            case CompressorStreamFactory.BZIP2:
+                return new ParallelBzip2InputStream(in, threads);
+
+            default:
+                try {
+                    InputStream decoder = new CompressorStreamFactory(/* decompressConcatenated */ true)
+                            .createCompressorInputStream(name, in);
+                    return new ReadAheadInputStream(decoder, READ_AHEAD_CHUNKS);
+
+                } catch (CompressorException | LinkageError e) {
+                    String info = "Cannot decompress " + name + ": " + e.getMessage();
+                    throw new IOException(info, e);
+                }
+        }
+    }
+
+    /**
+     * Wraps a stream into a stream that compresses data written to it.
+     * <p>
+     * Closing the returned stream completes the compressed data and closes the wrapped stream.
+     */
+    public static OutputStream compress(String name, OutputStream out, int threads) throws IOException {
+        switch (name) {
+            case CompressorStreamFactory.GZIP:
+                return new ParallelGzipOutputStream(out, threads);
+
+            case CompressorStreamFactory.BZIP2:
+                return new ParallelBzip2OutputStream(out, threads);
+
+            case CompressorStreamFactory.ZSTANDARD:
+                try {
+                    return Zstd.compress(out, threads);
+
+                } catch (LinkageError le) {
+                    String info = "Cannot compress " + name + ": zstd-jni is not available";
+                    throw new IOException(info, le);
+                }
+
+            default:
+                try {
+                    return new CompressorStreamFactory().createCompressorOutputStream(name, out);
+
+                } catch (CompressorException | LinkageError e) {
+                    String info = "Cannot compress " + name + ": " + e.getMessage();
+                    throw new IOException(info, e);
+                }
+        }
+    }
+
+    /*
+     * Kept apart, so that zstd-jni is not needed unless used
+     */
+    private static class Zstd {
+        static OutputStream compress(OutputStream out, int threads) throws IOException {
+            ZstdOutputStream zstd = new ZstdOutputStream(out);
+            if (threads > 1) {
+                zstd.setWorkers(threads);
+            }
+            return zstd;
+        }
+    }
+}
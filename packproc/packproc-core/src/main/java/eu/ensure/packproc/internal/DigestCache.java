@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps digests of files in the file system across runs, so that files that have not
+ * changed since an earlier run need not be read (and digested) again.
+ * <p>
+ * A file is identified by its path, size, time of last modification and (where available)
+ * the file key of the file system, i.e. device and inode on Unix. Digests are looked up
+ * only if all of these are unchanged. Since a file may change without any of these being
+ * affected (e.g. due to bit rot), cached digests should be verified now and then, see
+ * {@link VerificationPolicy}.
+ * <p>
+ * Digests are appended to a file in the cache directory as they are stored (see
+ * {@link RecordFile}), and loaded when the cache is opened.
+ */
+public class DigestCache {
+    private static final Logger log = LogManager.getLogger(DigestCache.class);
+
+    private static final String FILE_NAME = "digests.db";
+    private static final int MAGIC = 0x44434831; // "DCH1"
+
+    // Caches are shared by everybody using the same directory (in this JVM)
+    private static final ConcurrentMap<File, DigestCache> caches = new ConcurrentHashMap<File, DigestCache>();
+
+    /**
+     * Identity of a file, as far as the file system tells.
+     */
+    public static class Identity {
+        private final String path;
+        private final long size;
+        private final long lastModified; // nanoseconds, as precise as the file system is
+        private final String fileKey; // empty if not available
+
+        public Identity(String path, long size, long lastModified, String fileKey) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = null != fileKey ? fileKey : "";
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Identity)) {
+                return false;
+            }
+            Identity other = (Identity) o;
+            return path.equals(other.path) && size == other.size
+                    && lastModified == other.lastModified && fileKey.equals(other.fileKey);
+        }
+
+        public int hashCode() {
+            return path.hashCode() ^ Long.hashCode(size) ^ Long.hashCode(lastModified);
+        }
+    }
+
+    /**
+     * Digests of a file, as calculated at some point in time.
+     */
+    public static class Entry {
+        private final Identity identity;
+        private final long verified; // when calculated, milliseconds since epoch
+        private final Map<String, byte[]> digests;
+
+        Entry(Identity identity, long verified, Map<String, byte[]> digests) {
+            this.identity = identity;
+            this.verified = verified;
+            this.digests = digests;
+        }
+
+        public Identity getIdentity() {
+            return identity;
+        }
+
+        public long getSize() {
+            return identity.size;
+        }
+
+        public long getVerified() {
+            return verified;
+        }
+
+        /**
+         * Digests for the specified algorithms (all of which are known if looked up).
+         */
+        public Map<String, byte[]> getDigests(String[] algorithms) {
+            Map<String, byte[]> selected = new HashMap<String, byte[]>();
+            for (String algorithm : algorithms) {
+                byte[] digest = digests.get(algorithm);
+                if (null != digest) {
+                    selected.put(algorithm, digest.clone());
+                }
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * Decides when cached digests are verified, i.e. calculated anew even though the file
+     * seems unchanged: when they are older than a maximum age and/or for a random sample
+     * of the files.
+     */
+    public static class VerificationPolicy {
+        public static final VerificationPolicy TRUST = new VerificationPolicy(0L, 0.0);
+
+        private final long maxAge; // milliseconds, 0 if digests do not expire
+        private final double sampleRate; // fraction of files verified, regardless of age
+
+        public VerificationPolicy(long maxAge, double sampleRate) {
+            this.maxAge = maxAge;
+            this.sampleRate = sampleRate;
+        }
+
+        public boolean requiresVerification(Entry entry, long now) {
+            if (maxAge > 0L && now - entry.verified >= maxAge) {
+                return true;
+            }
+            return sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        }
+    }
+
+    private final RecordFile file;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens a cache in the specified directory, loading digests stored by earlier runs.
+     * The directory is created if it does not exist.
+     */
+    public DigestCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create digest cache directory: " + directory.getPath());
+        }
+        this.file = new RecordFile(new File(directory, FILE_NAME), MAGIC, "digest cache");
+        load();
+    }
+
+    /**
+     * Returns the cache in the specified directory, opening it if not already opened.
+     */
+    public static DigestCache of(File directory) throws IOException {
+        return RecordFile.shared(caches, directory, DigestCache::new);
+    }
+
+    /**
+     * Identifies a file, as it currently is.
+     */
+    public static Identity identify(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        return new Identity(
+                file.getAbsolutePath(), attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), null != fileKey ? fileKey.toString() : null
+        );
+    }
+
+    /**
+     * Returns digests of an (unchanged) file, or null if the file is not known, has
+     * changed or if any of the algorithms were not used when the digests were calculated.
+     */
+    public Entry lookup(Identity identity, String[] algorithms) {
+        Entry entry = entries.get(identity.path);
+        if (null != entry && entry.identity.equals(identity)) {
+            boolean isComplete = true;
+            for (String algorithm : algorithms) {
+                isComplete &= entry.digests.containsKey(algorithm);
+            }
+            if (isComplete) {
+                hits.increment();
+                return entry;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores digests of a file, just calculated, in memory as well as in the cache file
+     * (once flushed). Digests of other algorithms, already known for the (unchanged) file,
+     * are kept.
+     */
+    public void store(Identity identity, Map<String, byte[]> digests) throws IOException {
+        Map<String, byte[]> copy = new HashMap<String, byte[]>();
+        Entry previous = entries.get(identity.path);
+        if (null != previous && previous.identity.equals(identity)) {
+            copy.putAll(previous.digests);
+        }
+        for (Map.Entry<String, byte[]> digest : digests.entrySet()) {
+            copy.put(digest.getKey(), digest.getValue().clone());
+        }
+        Entry entry = new Entry(identity, System.currentTimeMillis(), Collections.unmodifiableMap(copy));
+
+        file.append(record -> serialize(entry, record));
+        entries.put(identity.path, entry);
+    }
+
+    /**
+     * Writes stored digests to the cache file, e.g. at the end of a run.
+     */
+    public void flush() {
+        try {
+            file.flush();
+
+        } catch (IOException ioe) {
+            // Not fatal, since we only miss out on the digests next time
+            String info = "Could not write digests to " + file.getFile().getPath() + ": " + ioe.getMessage();
+            log.warn(info);
+        }
+    }
+
+    /**
+     * Number of lookups that found digests.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that did not find digests.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of files with stored digests.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static void serialize(Entry entry, DataOutputStream record) throws IOException {
+        RecordFile.writeString(record, entry.identity.path);
+        record.writeLong(entry.identity.size);
+        record.writeLong(entry.identity.lastModified);
+        RecordFile.writeString(record, entry.identity.fileKey);
+        record.writeLong(entry.verified);
+        record.writeInt(entry.digests.size());
+        for (Map.Entry<String, byte[]> digest : entry.digests.entrySet()) {
+            RecordFile.writeString(record, digest.getKey());
+            record.writeInt(digest.getValue().length);
+            record.write(digest.getValue());
+        }
+    }
+
+    /*
+     * Loads digests stored earlier, the latest record of each file taking precedence.
+     * If most records have been superseded, the file is rewritten.
+     */
+    private void load() throws IOException {
+        int records = file.load(record -> {
+            Identity identity = new Identity(
+                    RecordFile.readString(record), record.readLong(), record.readLong(), RecordFile.readString(record)
+            );
+            long verified = record.readLong();
+            int count = record.readInt();
+            Map<String, byte[]> digests = new HashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                String algorithm = RecordFile.readString(record);
+                byte[] digest = new byte[record.readInt()];
+                record.readFully(digest);
+                digests.put(algorithm, digest);
+            }
+            entries.put(identity.path, new Entry(identity, verified, Collections.unmodifiableMap(digests)));
+        });
+
+        if (records > 2 * entries.size()) {
+            // Rewrite with the latest record of each file only
+            List<RecordFile.RecordWriter> writers = new ArrayList<RecordFile.RecordWriter>(entries.size());
+            for (Entry entry : entries.values()) {
+                writers.add(record -> serialize(entry, record));
+            }
+            file.rewrite(writers);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded digests of " + entries.size() + " files from " + file.getFile().getPath());
+        }
+    }
+}
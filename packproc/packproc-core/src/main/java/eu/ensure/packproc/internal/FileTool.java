@@ -34,6 +34,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
@@ -44,6 +45,11 @@ import java.nio.channels.WritableByteChannel;
 public class FileTool {
     private static final Logger log = LogManager.getLogger(FileTool.class);
 
+    // Entries of unknown size are kept in memory up to this size before being spooled to file
+    private static final int SPOOL_THRESHOLD = 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> transferBuffer = ThreadLocal.withInitial(() -> new byte[0x10000]);
+
     protected final String alias;
 
     public FileTool(String alias) {
@@ -86,54 +92,56 @@ public class FileTool {
             StructureOutputStream structureOutputStream
     ) throws IOException, ProcessorException {
 
-        File tmpFile = null;
-        RandomAccessFile raf = null;
-        try {
-            if (fileEntry.isDirectory() || null == entryInputStream) {
-                // Just copy entry - ignore contents
-                try {
-                    structureOutputStream.copyEntry(fileEntry);
-                } finally {
-                    structureOutputStream.closeEntry();
-                }
-            } else {
-                // Wrap the input and output streams in some nice garment
-                ReadableByteChannel inputChannel = Channels.newChannel(entryInputStream);
-                WritableByteChannel outputChannel = Channels.newChannel(structureOutputStream);
-
-                // Create a temporary random-access file
-                tmpFile = File.createTempFile(getPrefix(), ".raw");
-
-                // Wrap this temporary file in a file channel
-                raf = new RandomAccessFile(tmpFile, "rw");
-                FileChannel fileChannel = raf.getChannel();
-
-                // Transfer from input stream to temporary file
-                long size = fileEntry.getSize(); // the decompressed size in case of compressed entries
-                fileChannel.transferFrom(inputChannel, 0L, size);
-
-                // Copy the entry
+        if (fileEntry.isDirectory() || null == entryInputStream) {
+            // Just copy entry - ignore contents
+            try {
+                structureOutputStream.copyEntry(fileEntry);
+            } finally {
+                structureOutputStream.closeEntry();
+            }
+        } else if (fileEntry.getSize() >= 0) {
+            // The size is known up front (as is the case with TAR and ZIP entries),
+            // so we may stream the entry straight through
+            try {
+                structureOutputStream.copyEntry(fileEntry);
+                transfer(entryInputStream, structureOutputStream);
+            } finally {
+                structureOutputStream.closeEntry();
+            }
+        } else {
+            // The size is not known, so we have to read the entry before writing it. It is
+            // kept in memory if small enough.
+            SpoolBuffer contents = SpoolBuffer.spool(entryInputStream, getPrefix(), SPOOL_THRESHOLD);
+            try {
                 try {
                     structureOutputStream.copyEntry(fileEntry);
-                    fileChannel.transferTo(0L, size, outputChannel);
+                    contents.writeTo(structureOutputStream);
                 } finally {
                     structureOutputStream.closeEntry();
                 }
+            } finally {
+                contents.dispose();
             }
-        } finally {
-            // Close temporary resources and such
-            if (null != raf) raf.close(); // closes fileChannel as well
-
-            // Remove temporary file
-            if (null != tmpFile) tmpFile.delete();
         }
     }
 
-    /*
-     * We need this exact implementation where we only read as much from the input stream
-     * as says the fileEntry.getSize() because we are operating on a compressed input stream
-     * where file entries are "muxed" onto the same InputStream!
+    /**
+     * Transfers everything from input stream to output stream, using a buffer that
+     * is reused (per thread) between calls.
      */
+    public static long transfer(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buf = transferBuffer.get();
+        long count = 0L;
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buf)) >= 0) {
+            if (bytesRead > 0) {
+                outputStream.write(buf, 0, bytesRead);
+                count += bytesRead;
+            }
+        }
+        return count;
+    }
+
     public File extractEntry(
             StructureEntry fileEntry,
             InputStream entryInputStream
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file in the file system, so that processors needing random access to (or a
+ * second pass over) the file may use it directly, either through {@link #map()} or through
+ * {@link #getChannel()}, instead of copying the stream to a temporary file.
+ * <p>
+ * The file is mapped only when a processor asks for it through {@link #map()}; until then
+ * it is read (positionally) through a channel of its own, as any stream would. Since a
+ * buffer is limited to 2 GB, larger files are mapped in chunks. Small files are read into
+ * memory instead, since mapping them costs more than reading them.
+ */
+public class MappedFileInputStream extends InputStream {
+    public static final long CHUNK_SIZE = 1L << 30; // 1 GB
+    public static final long MAP_THRESHOLD = 256 * 1024; // smaller files are read into memory
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * The mapping of a file, shared by duplicate streams and made when first asked for.
+     */
+    private static class Mapping {
+        private final File file;
+        private final long size;
+        private ByteBuffer[] chunks = null;
+
+        private Mapping(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        private synchronized ByteBuffer[] chunks() throws IOException {
+            if (null != chunks) {
+                return chunks;
+            }
+
+            try (FileChannel mappingChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (size < MAP_THRESHOLD) {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                    while (buffer.hasRemaining() && mappingChannel.read(buffer) >= 0) {
+                        // keep on reading
+                    }
+                    buffer.flip();
+                    chunks = new ByteBuffer[] { buffer };
+
+                } else {
+                    // Mappings remain valid after the channel is closed
+                    ByteBuffer[] mapped = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+                    for (int i = 0; i < mapped.length; i++) {
+                        long offset = i * CHUNK_SIZE;
+                        mapped[i] = mappingChannel.map(
+                                FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, size - offset)
+                        );
+                    }
+                    chunks = mapped;
+                }
+            }
+            return chunks;
+        }
+    }
+
+    private final Mapping mapping;
+
+    private long position = 0L;
+    private long mark = 0L;
+
+    // Read ahead of the stream position
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long bufferStart = 0L;
+    private int bufferLength = 0;
+
+    private FileChannel reader = null; // opened on demand
+    private FileChannel channel = null; // opened on demand, handed out
+
+    public MappedFileInputStream(File file) throws IOException {
+        try (FileChannel sizeChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.mapping = new Mapping(file, sizeChannel.size());
+        }
+    }
+
+    /*
+     * Shares the mapping of another stream, but reads independently
+     */
+    private MappedFileInputStream(MappedFileInputStream other) {
+        this.mapping = other.mapping;
+    }
+
+    /**
+     * Returns the mapped file if the stream reads a mapped file, (possibly) through a
+     * stream counting the bytes read. Otherwise returns null.
+     */
+    public static MappedFileInputStream from(InputStream inputStream) {
+        while (inputStream instanceof CountingInputStream) {
+            inputStream = ((CountingInputStream) inputStream).getWrappedStream();
+        }
+        if (inputStream instanceof MappedFileInputStream) {
+            return (MappedFileInputStream) inputStream;
+        }
+        return null;
+    }
+
+    /**
+     * A stream reading the same file (and mapping), independently of this stream.
+     */
+    public MappedFileInputStream duplicate() {
+        return new MappedFileInputStream(this);
+    }
+
+    public File getFile() {
+        return mapping.file;
+    }
+
+    public long size() {
+        return mapping.size;
+    }
+
+    /**
+     * Number of bytes read (or skipped) so far.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * The (complete) file as read-only buffers, each one covering at most
+     * {@link #CHUNK_SIZE} bytes. The file is mapped on the first call. Reading
+     * the buffers does not affect the stream.
+     */
+    public ByteBuffer[] map() throws IOException {
+        ByteBuffer[] chunks = mapping.chunks();
+        ByteBuffer[] buffers = new ByteBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            buffers[i] = chunks[i].asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * A read-only channel onto the file, initially positioned where the stream is
+     * positioned. The channel is closed when the stream is closed.
+     */
+    public synchronized FileChannel getChannel() throws IOException {
+        if (null == channel) {
+            channel = FileChannel.open(mapping.file.toPath(), StandardOpenOption.READ);
+        }
+        channel.position(position);
+        return channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= mapping.size) {
+            return -1;
+        }
+        if (position < bufferStart || position >= bufferStart + bufferLength) {
+            fill();
+        }
+        return 0xFF & buffer[(int) (position++ - bufferStart)];
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= mapping.size) {
+            return -1;
+        }
+
+        int count;
+        if (position >= bufferStart && position < bufferStart + bufferLength) {
+            // Whatever has been read ahead
+            int start = (int) (position - bufferStart);
+            count = Math.min(length, bufferLength - start);
+            System.arraycopy(buffer, start, buf, offset, count);
+
+        } else if (length >= BUFFER_SIZE) {
+            // Directly into caller's buffer
+            count = readAt(ByteBuffer.wrap(buf, offset, length), position);
+
+        } else {
+            fill();
+            count = Math.min(length, bufferLength);
+            System.arraycopy(buffer, 0, buf, offset, count);
+        }
+        position += count;
+        return count;
+    }
+
+    private void fill() throws IOException {
+        bufferStart = position;
+        bufferLength = readAt(ByteBuffer.wrap(buffer), position);
+    }
+
+    private int readAt(ByteBuffer dst, long at) throws IOException {
+        if (null == reader) {
+            reader = FileChannel.open(mapping.file.toPath(), StandardOpenOption.READ);
+        }
+        int count = reader.read(dst, at);
+        if (count <= 0) {
+            String info = "Unexpected end of file at " + at + " of " + mapping.size + " bytes: ";
+            info += mapping.file.getPath();
+            throw new IOException(info);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0L) {
+            return 0L;
+        }
+        long skipped = Math.min(n, mapping.size - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(mapping.size - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * Closes the channels (if opened). The mapping is released when no longer referenced.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (null != reader) {
+                reader.close();
+                reader = null;
+            }
+        } finally {
+            if (null != channel) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses data in independent chunks, several chunks concurrently, writing compressed
+ * chunks to the underlying stream in their original order.
+ */
+public abstract class ParallelBlockOutputStream extends OutputStream {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "encoder-worker-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+    private final int chunkSize;
+    private final int depth; // chunks compressed ahead of writing
+
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private byte[] chunk;
+    private int length = 0;
+    private boolean finished = false;
+
+    protected ParallelBlockOutputStream(OutputStream out, int chunkSize, int threads) {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.depth = 2 * Math.max(1, threads);
+        this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * Compresses a chunk, independently of other chunks.
+     */
+    protected abstract byte[] compress(byte[] data, int length) throws IOException;
+
+    /**
+     * Returns data to write after the last chunk, if any.
+     */
+    protected byte[] trailer() {
+        return new byte[0];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int count) throws IOException {
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+        while (count > 0) {
+            int n = Math.min(count, chunkSize - length);
+            System.arraycopy(buf, offset, chunk, length, n);
+            length += n;
+            offset += n;
+            count -= n;
+
+            if (length == chunkSize) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Compresses what has been written so far and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (length > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes remaining data and the trailer, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flush();
+        out.write(trailer());
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = chunk;
+        final int count = length;
+        pending.add(workers.submit(() -> compress(data, count)));
+
+        chunk = new byte[chunkSize];
+        length = 0;
+
+        while (pending.size() >= depth) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to compress: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Decompresses bzip2 streams, decoding several blocks concurrently.
+ * <p>
+ * Blocks in a bzip2 stream are independent of each other, but they are not byte-aligned and
+ * their sizes are not declared anywhere. Blocks are therefore located by scanning the stream
+ * for the 48-bit block (and end-of-stream) magic, and each block is then wrapped into a stream
+ * of its own, which is decoded by a worker. Should the block magic happen to occur within
+ * compressed data, decoding the (incorrectly) split block fails and it is joined with the
+ * piece that follows and decoded anew. The combined stream CRC is verified as blocks are
+ * delivered, so a (very unlikely) false end-of-stream magic is reported as a corrupt stream
+ * rather than producing incorrect data.
+ * <p>
+ * Concatenated streams (as written by {@link ParallelBzip2OutputStream}, pbzip2 and the like)
+ * are decoded as one.
+ */
+public class ParallelBzip2InputStream extends ParallelDecoderInputStream {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+    private static final int MAGIC_BITS = 48;
+    private static final int HEADER_BITS = 32;
+
+    private int level = 0; // block size, '1' to '9', of current stream
+    private long magic = 0L; // magic preceding what comes next, or 0 between streams
+    private int combinedCrc = 0; // of blocks delivered so far in current stream
+    private boolean isFirstStream = true;
+
+    // Bit reader
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferPosition = 0;
+    private int bufferLength = 0;
+    private int bitBuffer = 0;
+    private int bitsLeft = 0;
+
+    public ParallelBzip2InputStream(InputStream in, int threads) {
+        super(in, threads);
+    }
+
+    @Override
+    protected Callable<byte[]> nextPiece() throws IOException {
+        for (;;) {
+            if (0L == magic) {
+                if (!readStreamHeader()) {
+                    return null;
+                }
+                magic = readBits(MAGIC_BITS);
+            }
+
+            if (END_OF_STREAM_MAGIC == magic) {
+                int declaredCrc = (int) readBits(32);
+                bitsLeft = 0; // streams are byte-aligned
+                magic = 0L;
+                return new StreamEnd(declaredCrc);
+            }
+
+            if (BLOCK_MAGIC != magic) {
+                throw new IOException("Corrupt bzip2 stream: no block magic");
+            }
+
+            BitWriter bits = new BitWriter();
+            bits.write(8, 'B');
+            bits.write(8, 'Z');
+            bits.write(8, 'h');
+            bits.write(8, level);
+            bits.write(MAGIC_BITS, BLOCK_MAGIC);
+
+            magic = copyBlock(bits);
+            return new Block(bits, level);
+        }
+    }
+
+    @Override
+    protected Callable<byte[]> join(Callable<byte[]> failed, Callable<byte[]> next) {
+        if (!(failed instanceof Block) || !(next instanceof Block)) {
+            return null;
+        }
+        Block first = (Block) failed;
+        Block second = (Block) next;
+
+        // No block (of this level) gets any larger than this, allowing for some expansion
+        long maxBits = 8L * ((first.level - '0') * 100000L * 5 / 4 + 1024);
+        if (first.bits.length + second.bits.length - HEADER_BITS > maxBits) {
+            return null;
+        }
+
+        // The magic that separated the two is part of the block data
+        BitWriter bits = new BitWriter();
+        bits.write(first.bits.buf, 0L, first.bits.length);
+        bits.write(second.bits.buf, HEADER_BITS, second.bits.length);
+        return new Block(bits, first.level);
+    }
+
+    @Override
+    protected void delivered(Callable<byte[]> piece) throws IOException {
+        if (piece instanceof Block) {
+            int blockCrc = ((Block) piece).crc();
+            combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ blockCrc;
+
+        } else if (piece instanceof StreamEnd) {
+            if (((StreamEnd) piece).crc != combinedCrc) {
+                throw new IOException("Corrupt bzip2 stream: stream CRC mismatch");
+            }
+            combinedCrc = 0;
+        }
+    }
+
+    /*
+     * A block: stream header, block magic and the bits of the block. Decoded by wrapping it
+     * into a stream of its own, appending end-of-stream magic and stream CRC (= block CRC).
+     */
+    private static class Block implements Callable<byte[]> {
+        final BitWriter bits;
+        final int level;
+
+        Block(BitWriter bits, int level) {
+            this.bits = bits;
+            this.level = level;
+        }
+
+        int crc() {
+            return bits.intAt(10); // just after header and magic
+        }
+
+        public byte[] call() throws IOException {
+            BitWriter stream = new BitWriter();
+            stream.write(bits.buf, 0L, bits.length);
+            stream.write(MAGIC_BITS, END_OF_STREAM_MAGIC);
+            stream.write(32, 0xFFFFFFFFL & crc());
+            return decode(stream.toByteArray());
+        }
+    }
+
+    /*
+     * End of a stream, carrying the declared (combined) stream CRC.
+     */
+    private static class StreamEnd implements Callable<byte[]> {
+        final int crc;
+
+        StreamEnd(int crc) {
+            this.crc = crc;
+        }
+
+        public byte[] call() {
+            return new byte[0];
+        }
+    }
+
+    private boolean readStreamHeader() throws IOException {
+        byte[] header = new byte[4];
+        int length = 0;
+        int b;
+        while (length < header.length && (b = readByte()) >= 0) {
+            header[length++] = (byte) b;
+        }
+        boolean isValid = 4 == length && 'B' == header[0] && 'Z' == header[1] && 'h' == header[2]
+                && header[3] >= '1' && header[3] <= '9';
+
+        if (!isValid) {
+            if (isFirstStream) {
+                throw new IOException("Not a bzip2 stream");
+            }
+            return false; // ignoring trailing garbage, if any
+        }
+        isFirstStream = false;
+        level = header[3];
+        return true;
+    }
+
+    /*
+     * Copies bits to the block until the next magic, which is returned.
+     */
+    private long copyBlock(BitWriter block) throws IOException {
+        // Raw bytes spanning the block, the first of which may be partially consumed already
+        if (0 == bitsLeft) {
+            bitBuffer = readByte();
+            if (bitBuffer < 0) {
+                throw new EOFException("Truncated bzip2 stream");
+            }
+            bitsLeft = 8;
+        }
+        byte[] raw = new byte[64 * 1024];
+        int rawLength = 0;
+        raw[rawLength++] = (byte) bitBuffer;
+        int startBit = 8 - bitsLeft;
+
+        long register = 0L;
+        long count = 0L;
+        int first = startBit;
+        for (;;) {
+            int b = 0xFF & raw[rawLength - 1];
+            for (int i = first; i < 8; i++) {
+                register = ((register << 1) | ((b >>> (7 - i)) & 1)) & MAGIC_MASK;
+                if (++count >= MAGIC_BITS && (BLOCK_MAGIC == register || END_OF_STREAM_MAGIC == register)) {
+                    bitsLeft = 7 - i; // of current byte, following the magic
+                    long endBit = 8L * (rawLength - 1) + i + 1 - MAGIC_BITS;
+                    block.write(raw, startBit, endBit);
+                    return register;
+                }
+            }
+            first = 0;
+
+            int next = readByte();
+            if (next < 0) {
+                throw new EOFException("Truncated bzip2 stream");
+            }
+            if (rawLength == raw.length) {
+                raw = Arrays.copyOf(raw, 2 * raw.length);
+            }
+            raw[rawLength++] = (byte) next;
+            bitBuffer = next;
+        }
+    }
+
+    private static byte[] decode(byte[] piece) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(4 * piece.length);
+        try (InputStream decoder = new BZip2CompressorInputStream(new ByteArrayInputStream(piece))) {
+            byte[] buf = new byte[64 * 1024];
+            int count;
+            while ((count = decoder.read(buf)) > 0) {
+                data.write(buf, 0, count);
+            }
+        }
+        return data.toByteArray();
+    }
+
+    private int readByte() throws IOException {
+        if (bufferPosition == bufferLength) {
+            bufferLength = in.read(buffer);
+            bufferPosition = 0;
+            if (bufferLength <= 0) {
+                bufferLength = 0;
+                return -1;
+            }
+        }
+        return 0xFF & buffer[bufferPosition++];
+    }
+
+    private int readBit() throws IOException {
+        if (0 == bitsLeft) {
+            int b = readByte();
+            if (b < 0) {
+                return -1;
+            }
+            bitBuffer = b;
+            bitsLeft = 8;
+        }
+        return (bitBuffer >>> --bitsLeft) & 1;
+    }
+
+    private long readBits(int count) throws IOException {
+        long value = 0L;
+        for (int i = 0; i < count; i++) {
+            int bit = readBit();
+            if (bit < 0) {
+                throw new EOFException("Truncated bzip2 stream");
+            }
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+
+    /*
+     * Accumulates bits, most significant bit first.
+     */
+    private static class BitWriter {
+        private byte[] buf = new byte[64 * 1024];
+        private long length = 0L; // in bits
+
+        void write(int count, long value) {
+            for (int i = count - 1; i >= 0; i--) {
+                int index = (int) (length >>> 3);
+                if (index == buf.length) {
+                    buf = Arrays.copyOf(buf, 2 * buf.length);
+                }
+                if (0 != ((value >>> i) & 1)) {
+                    buf[index] |= (byte) (0x80 >>> (length & 7));
+                }
+                length++;
+            }
+        }
+
+        /*
+         * Writes bits [from, to) of raw data.
+         */
+        void write(byte[] raw, long from, long to) {
+            if (0 != (length & 7)) {
+                for (long bit = from; bit < to; bit++) {
+                    write(1, (raw[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+                }
+                return;
+            }
+
+            // Aligned, so whole bytes may be assembled from (shifted) raw bytes
+            int shift = (int) (from & 7);
+            int index = (int) (from >>> 3);
+            long wholeBytes = (to - from) >>> 3;
+            int offset = (int) (length >>> 3);
+            if (offset + wholeBytes + 1 > buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.max(2L * buf.length, offset + wholeBytes + 1));
+            }
+            for (int k = 0; k < wholeBytes; k++, index++) {
+                int value = (0xFF & raw[index]) << shift;
+                if (shift > 0) {
+                    value |= (0xFF & raw[index + 1]) >>> (8 - shift);
+                }
+                buf[offset + k] = (byte) value;
+            }
+            length += 8 * wholeBytes;
+
+            for (long bit = from + 8 * wholeBytes; bit < to; bit++) {
+                write(1, (raw[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+            }
+        }
+
+        int intAt(int offset) {
+            return (0xFF & buf[offset]) << 24 | (0xFF & buf[offset + 1]) << 16
+                 | (0xFF & buf[offset + 2]) << 8 | (0xFF & buf[offset + 3]);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((length + 7) >>> 3));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses into bzip2, each chunk of data into a bzip2 stream of its own. The result is a
+ * series of concatenated bzip2 streams, as written by pbzip2, which is understood by bzip2
+ * as well as by {@link ParallelBzip2InputStream}.
+ */
+public class ParallelBzip2OutputStream extends ParallelBlockOutputStream {
+
+    private static final int CHUNK_SIZE = 900 * 1000; // i.e. one block at maximum block size
+
+    public ParallelBzip2OutputStream(OutputStream out, int threads) {
+        super(out, CHUNK_SIZE, threads);
+    }
+
+    @Override
+    protected byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(length / 4);
+        try (OutputStream encoder = new BZip2CompressorOutputStream(stream, BZip2CompressorOutputStream.MAX_BLOCKSIZE)) {
+            encoder.write(data, 0, length);
+        }
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a compressed stream that consists of independently decodable pieces
+ * (such as BGZF blocks or bzip2 blocks), by decoding several pieces concurrently
+ * and delivering the decoded data in the original order.
+ * <p>
+ * Pieces are split off (on the reading thread) ahead of what is being read, so
+ * that decoding overlaps with whatever the reader does with the decoded data.
+ * If the remainder of the stream cannot be split into pieces, a subclass may
+ * hand over a sequential stream onto the remainder, which is read once all
+ * pieces have been delivered.
+ * <p>
+ * Should a piece fail to decode, a subclass that may have split the stream
+ * incorrectly gets the chance to join the piece with the one following it,
+ * in which case the joined piece is decoded instead.
+ */
+public abstract class ParallelDecoderInputStream extends InputStream {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "decoder-worker-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected final InputStream in;
+    private final int depth; // pieces decoded ahead
+
+    /*
+     * A piece being decoded
+     */
+    private static class Pending {
+        final Callable<byte[]> piece;
+        final Future<byte[]> decoded;
+
+        Pending(Callable<byte[]> piece, Future<byte[]> decoded) {
+            this.piece = piece;
+            this.decoded = decoded;
+        }
+    }
+
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+    private boolean exhausted = false; // no more pieces
+    private InputStream tail = null;
+
+    private byte[] current = null;
+    private int position = 0;
+
+    protected ParallelDecoderInputStream(InputStream in, int threads) {
+        this.in = in;
+        this.depth = 2 * Math.max(1, threads);
+    }
+
+    /**
+     * Splits off the next piece of the stream, returning a task that decodes it,
+     * or null if there are no more pieces.
+     */
+    protected abstract Callable<byte[]> nextPiece() throws IOException;
+
+    /**
+     * Hands over a sequential stream onto the remainder of the stream, i.e. what
+     * follows the last piece.
+     */
+    protected void setTail(InputStream tail) {
+        this.tail = tail;
+    }
+
+    /**
+     * Called (on the reading thread) when a piece could not be decoded, with the piece
+     * following it. Returns a piece joining the two if they may have been split apart
+     * incorrectly, else null (in which case decoding fails).
+     */
+    protected Callable<byte[]> join(Callable<byte[]> failed, Callable<byte[]> next) {
+        return null;
+    }
+
+    /**
+     * Called (on the reading thread) as each piece has been decoded, in the original order.
+     */
+    protected void delivered(Callable<byte[]> piece) throws IOException {
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n > 0 ? (0xFF & b[0]) : -1;
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (null == current || position == current.length) {
+            if (!nextDecoded()) {
+                return null != tail ? tail.read(buf, offset, length) : -1;
+            }
+        }
+
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buf, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return null != current ? current.length - position : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Pending decoding : pending) {
+            decoding.decoded.cancel(true);
+        }
+        pending.clear();
+        exhausted = true;
+        current = null;
+
+        try {
+            if (null != tail) {
+                tail.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void splitAhead() throws IOException {
+        while (!exhausted && pending.size() < depth) {
+            Callable<byte[]> piece = nextPiece();
+            if (null == piece) {
+                exhausted = true;
+            } else {
+                pending.add(new Pending(piece, workers.submit(piece)));
+            }
+        }
+    }
+
+    private boolean nextDecoded() throws IOException {
+        splitAhead();
+        if (pending.isEmpty()) {
+            return false;
+        }
+
+        Pending first = pending.removeFirst();
+        Callable<byte[]> piece = first.piece;
+        byte[] decoded;
+        try {
+            decoded = first.decoded.get();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding");
+
+        } catch (ExecutionException ee) {
+            Throwable failure = ee.getCause();
+            for (;;) {
+                // Join with the following piece, if possible, and decode anew (on this thread,
+                // since everything that follows is waiting for this piece anyhow)
+                splitAhead();
+                Callable<byte[]> joined = pending.isEmpty() ? null : join(piece, pending.getFirst().piece);
+                if (null == joined) {
+                    if (failure instanceof IOException) {
+                        throw (IOException) failure;
+                    }
+                    throw new IOException("Failed to decode: " + failure.getMessage(), failure);
+                }
+                pending.removeFirst().decoded.cancel(true);
+                piece = joined;
+
+                try {
+                    decoded = piece.call();
+                    break;
+
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        }
+
+        delivered(piece);
+        current = decoded;
+        position = 0;
+        return true;
+    }
+}
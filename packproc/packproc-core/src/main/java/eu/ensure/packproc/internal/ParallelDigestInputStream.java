@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates digests (and size) of the data passing through the stream, with
+ * one worker per algorithm so that several digests are calculated on separate
+ * cores while the reader keeps going.
+ * <p>
+ * Data read is copied into a ring of chunks, which are handed over to the workers
+ * once full. The reader only blocks if the ring is full, i.e. if some worker lags
+ * behind. Streams shorter than a chunk (and streams with a single algorithm) are
+ * digested on the reading thread, since handing over would cost more than it saves.
+ * <p>
+ * Digests are keyed by algorithm name, as with MultiDigestInputStream (from vopn)
+ * which this stream replaces. The CRC32 'digest' is an 8-byte (long) value.
+ * Call {@link #getDigests()} when done reading or {@link #close()} to abandon.
+ */
+public class ParallelDigestInputStream extends FilterInputStream {
+    private static final Logger log = LogManager.getLogger(ParallelDigestInputStream.class);
+
+    public static final String[] DEFAULT_ALGORITHMS = { "CRC32", "MD5", "SHA-1", "SHA-512" };
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RING_SIZE = 8; // chunks
+
+    private static final Set<String> SUPPORTED_ALGORITHMS = supportedAlgorithms();
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "digest-worker-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     * A digest algorithm
+     */
+    private interface Digester {
+        void update(byte[] buf, int offset, int length);
+        byte[] digest();
+    }
+
+    private final String[] algorithms;
+    private final Digester[] digesters;
+    private long size = 0L;
+    private Map<String, byte[]> digests = null; // when done
+
+    // The ring of chunks, shared with the workers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private byte[][] ring = null; // allocated on first use
+    private final int[] lengths = new int[RING_SIZE];
+    private long published = 0L; // number of chunks handed over
+    private final long[] consumed; // number of chunks consumed, per worker
+    private int running = 0; // number of workers running
+    private boolean ended = false;
+    private boolean abandoned = false;
+    private Throwable failure = null;
+
+    // The chunk being filled by the reader
+    private byte[] current = null;
+    private int currentLength = 0;
+
+    // Single bytes read, passed on as any other data
+    private final byte[] single = new byte[1];
+
+    public ParallelDigestInputStream(String[] algorithms, InputStream in) {
+        super(in);
+        List<String> names = new ArrayList<String>();
+        List<Digester> list = new ArrayList<Digester>();
+        for (String algorithm : algorithms) {
+            try {
+                list.add(digesterFor(algorithm));
+                names.add(algorithm);
+            } catch (NoSuchAlgorithmException nsae) {
+                log.warn("Ignoring unknown digest algorithm: " + algorithm);
+            }
+        }
+        this.algorithms = names.toArray(new String[names.size()]);
+        this.digesters = list.toArray(new Digester[list.size()]);
+        this.consumed = new long[digesters.length];
+    }
+
+    public ParallelDigestInputStream(InputStream in) {
+        this(DEFAULT_ALGORITHMS, in);
+    }
+
+    /**
+     * Parses a list of algorithms, such as "MD5, SHA-256", as specified by a
+     * 'digests' attribute. Unknown algorithms are ignored (with a warning) and
+     * the default algorithms are used if none is specified.
+     */
+    public static String[] algorithmsFrom(String specification) {
+        if (null == specification || specification.trim().length() == 0) {
+            return DEFAULT_ALGORITHMS;
+        }
+
+        List<String> algorithms = new ArrayList<String>();
+        for (String algorithm : specification.trim().split("[\\s,]+")) {
+            if (isSupported(algorithm)) {
+                algorithms.add(algorithm);
+            } else {
+                log.warn("Ignoring unknown digest algorithm: " + algorithm);
+            }
+        }
+        return algorithms.toArray(new String[algorithms.size()]);
+    }
+
+    /**
+     * Determines whether a digest can be calculated for this algorithm (name).
+     * Called for every key associated with every entry (when verifying fixity),
+     * so the names of supported algorithms are determined once and for all.
+     */
+    public static boolean isSupported(String algorithm) {
+        return null != algorithm
+                && (isCrc32(algorithm) || SUPPORTED_ALGORITHMS.contains(algorithm.toUpperCase(Locale.ROOT)));
+    }
+
+    /*
+     * Names (and aliases) of the message digest algorithms of all installed providers, in upper case.
+     */
+    private static Set<String> supportedAlgorithms() {
+        final String type = "MESSAGEDIGEST.";
+        final String alias = "ALG.ALIAS.MESSAGEDIGEST.";
+
+        Set<String> names = new HashSet<String>();
+        for (Provider provider : Security.getProviders()) {
+            for (Object key : provider.keySet()) {
+                String name = String.valueOf(key).toUpperCase(Locale.ROOT);
+                if (name.indexOf(' ') >= 0) {
+                    continue; // an attribute, such as "MessageDigest.SHA-1 ImplementedIn"
+                }
+                if (name.startsWith(type)) {
+                    names.add(name.substring(type.length()));
+                } else if (name.startsWith(alias)) {
+                    names.add(name.substring(alias.length()));
+                }
+            }
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    private static boolean isCrc32(String algorithm) {
+        return "CRC32".equalsIgnoreCase(algorithm) || "CRC-32".equalsIgnoreCase(algorithm);
+    }
+
+    private static Digester digesterFor(String algorithm) throws NoSuchAlgorithmException {
+        if (isCrc32(algorithm)) {
+            final CRC32 crc32 = new CRC32();
+            return new Digester() {
+                public void update(byte[] buf, int offset, int length) {
+                    crc32.update(buf, offset, length);
+                }
+
+                public byte[] digest() {
+                    return ByteBuffer.allocate(8).putLong(crc32.getValue()).array();
+                }
+            };
+        }
+
+        final MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+        return new Digester() {
+            public void update(byte[] buf, int offset, int length) {
+                messageDigest.update(buf, offset, length);
+            }
+
+            public byte[] digest() {
+                return messageDigest.digest();
+            }
+        };
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Completes the digests (waiting for the workers) and returns them.
+     */
+    public Map<String, byte[]> getDigests() throws IOException {
+        if (null == digests) {
+            finish();
+
+            Map<String, byte[]> map = new HashMap<String, byte[]>();
+            for (int i = 0; i < digesters.length; i++) {
+                map.put(algorithms[i], digesters[i].digest());
+            }
+            digests = map;
+        }
+        return digests;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            ++size;
+            single[0] = (byte) b;
+            accept(single, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        int n = in.read(buf, offset, length);
+        if (n > 0) {
+            size += n;
+            accept(buf, offset, n);
+        }
+        return n;
+    }
+
+    /**
+     * Skipped data is read, so that digests cover all data.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(Math.max(n, 0L), 8192L)];
+        long skipped = 0L;
+        while (skipped < n) {
+            int count = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (count < 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads (and discards) whatever remains of the stream, so that digests
+     * cover all data even if the consumer stopped reading early.
+     */
+    public void drain() throws IOException {
+        byte[] buf = new byte[0x2000];
+        while (read(buf, 0, buf.length) >= 0) {
+            // discard
+        }
+    }
+
+    /**
+     * Abandons any digests not yet completed and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null == digests) {
+            lock.lock();
+            try {
+                abandoned = ended = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        super.close();
+    }
+
+    private void accept(byte[] buf, int offset, int length) throws IOException {
+        if (digesters.length < 2) {
+            // No point in handing over
+            for (Digester digester : digesters) {
+                digester.update(buf, offset, length);
+            }
+            return;
+        }
+
+        while (length > 0) {
+            if (null == current) {
+                nextChunk();
+            }
+            int count = Math.min(length, CHUNK_SIZE - currentLength);
+            System.arraycopy(buf, offset, current, currentLength, count);
+            currentLength += count;
+            offset += count;
+            length -= count;
+
+            if (currentLength == CHUNK_SIZE) {
+                publish();
+            }
+        }
+    }
+
+    /*
+     * Waits for the next chunk in the ring to be consumed by all workers.
+     */
+    private void nextChunk() throws IOException {
+        lock.lock();
+        try {
+            if (null == ring) {
+                ring = new byte[RING_SIZE][];
+            }
+            while (published - slowest() >= RING_SIZE && null == failure) {
+                changed.await();
+            }
+            checkFailure();
+
+            int slot = (int) (published % RING_SIZE);
+            if (null == ring[slot]) {
+                ring[slot] = new byte[CHUNK_SIZE];
+            }
+            current = ring[slot];
+            currentLength = 0;
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for digests");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Hands the current chunk over to the workers, starting them if not already running.
+     */
+    private void publish() {
+        lock.lock();
+        try {
+            lengths[(int) (published % RING_SIZE)] = currentLength;
+            published++;
+            changed.signalAll();
+
+            if (published == 1L) {
+                running = digesters.length;
+                for (int i = 0; i < digesters.length; i++) {
+                    final int worker = i;
+                    workers.execute(() -> consume(worker));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        current = null;
+        currentLength = 0;
+    }
+
+    private void finish() throws IOException {
+        if (digesters.length < 2) {
+            return; // already done
+        }
+
+        if (0L == published) {
+            // Short stream, never handed over
+            if (null != current) {
+                for (Digester digester : digesters) {
+                    digester.update(current, 0, currentLength);
+                }
+                current = null;
+                currentLength = 0;
+            }
+            return;
+        }
+
+        if (null != current && currentLength > 0) {
+            publish();
+        }
+
+        lock.lock();
+        try {
+            ended = true;
+            changed.signalAll();
+            while (running > 0) {
+                changed.await();
+            }
+            checkFailure();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for digests");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Worker: digests chunks in order, until told that there are no more.
+     */
+    private void consume(int worker) {
+        Digester digester = digesters[worker];
+        long next = 0L;
+        try {
+            while (true) {
+                int slot;
+                lock.lock();
+                try {
+                    while (next >= published && !ended) {
+                        changed.await();
+                    }
+                    if (abandoned || next >= published) {
+                        return;
+                    }
+                    slot = (int) (next % RING_SIZE);
+                } finally {
+                    lock.unlock();
+                }
+
+                digester.update(ring[slot], 0, lengths[slot]);
+
+                lock.lock();
+                try {
+                    consumed[worker] = ++next;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Throwable t) {
+            lock.lock();
+            try {
+                if (null == failure) {
+                    failure = t;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            lock.lock();
+            try {
+                running--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long slowest() {
+        long slowest = published;
+        for (long count : consumed) {
+            slowest = Math.min(slowest, count);
+        }
+        return slowest;
+    }
+
+    private void checkFailure() throws IOException {
+        if (null != failure) {
+            if (failure instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Failed to calculate digest: " + failure.getMessage(), failure);
+        }
+    }
+}
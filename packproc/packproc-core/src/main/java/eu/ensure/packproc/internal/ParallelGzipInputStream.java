@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip streams, inflating several members concurrently when the stream
+ * is blocked (i.e. consists of BGZF members, as written by {@link ParallelGzipOutputStream},
+ * bgzip and the like).
+ * <p>
+ * A BGZF member declares its compressed size in its header, so the next member may be
+ * located without inflating the current one. An ordinary gzip member carries no such
+ * information, so from the first ordinary member onwards the stream is inflated sequentially
+ * (on a thread of its own, ahead of the reader).
+ */
+public class ParallelGzipInputStream extends ParallelDecoderInputStream {
+
+    private static final int HEADER_SIZE = 12; // ID1, ID2, CM, FLG, MTIME, XFL, OS, XLEN
+    private static final int TRAILER_SIZE = 8; // CRC32, ISIZE
+    private static final int FEXTRA = 4;
+    private static final int MAX_BLOCK_DATA = 0x10000; // uncompressed size of a BGZF member
+
+    private final PushbackInputStream source;
+    private boolean isFirstMember = true;
+
+    public ParallelGzipInputStream(InputStream in, int threads) {
+        super(new PushbackInputStream(in, HEADER_SIZE + 0xFFFF), threads);
+        this.source = (PushbackInputStream) this.in;
+    }
+
+    @Override
+    protected Callable<byte[]> nextPiece() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = readFully(source, header, 0, HEADER_SIZE);
+        if (0 == length && !isFirstMember) {
+            return null;
+        }
+
+        if (length < HEADER_SIZE || !isBlockedHeader(header)) {
+            // Not (or no longer) BGZF, so inflate the rest of the stream sequentially
+            source.unread(header, 0, length);
+            inflateSequentially();
+            return null;
+        }
+        isFirstMember = false;
+
+        int xlen = (0xFF & header[10]) | (0xFF & header[11]) << 8;
+        byte[] extra = new byte[xlen];
+        if (readFully(source, extra, 0, xlen) < xlen) {
+            throw new EOFException("Truncated gzip header");
+        }
+
+        int blockSize = blockSizeFrom(extra);
+        if (blockSize < 0) {
+            // An extra field, but not a BGZF one
+            source.unread(extra);
+            source.unread(header);
+            inflateSequentially();
+            return null;
+        }
+
+        int compressedSize = blockSize - HEADER_SIZE - xlen - TRAILER_SIZE;
+        if (compressedSize < 0) {
+            throw new IOException("Invalid BGZF block size: " + blockSize);
+        }
+
+        final byte[] compressed = new byte[compressedSize];
+        final byte[] trailer = new byte[TRAILER_SIZE];
+        if (readFully(source, compressed, 0, compressedSize) < compressedSize
+         || readFully(source, trailer, 0, TRAILER_SIZE) < TRAILER_SIZE) {
+            throw new EOFException("Truncated BGZF block");
+        }
+
+        return () -> inflate(compressed, trailer);
+    }
+
+    /*
+     * Hands over the rest of the stream to a sequential decoder, reading ahead on a thread of its own.
+     */
+    private void inflateSequentially() throws IOException {
+        InputStream decoder = new GzipCompressorInputStream(source, /* decompressConcatenated */ true);
+        setTail(new ReadAheadInputStream(decoder, Compression.READ_AHEAD_CHUNKS));
+    }
+
+    private static boolean isBlockedHeader(byte[] header) {
+        return 0x1f == (0xFF & header[0])
+            && 0x8b == (0xFF & header[1])
+            && 8 == header[2] // deflate
+            && FEXTRA == header[3]; // extra field only
+    }
+
+    /*
+     * Returns the total size of the member, as given by the 'BC' subfield, or -1 if missing.
+     */
+    private static int blockSizeFrom(byte[] extra) {
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int subfieldLength = (0xFF & extra[i + 2]) | (0xFF & extra[i + 3]) << 8;
+            if ('B' == extra[i] && 'C' == extra[i + 1] && 2 == subfieldLength && i + 6 <= extra.length) {
+                return ((0xFF & extra[i + 4]) | (0xFF & extra[i + 5]) << 8) + 1;
+            }
+            i += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    private static byte[] inflate(byte[] compressed, byte[] trailer) throws IOException {
+        long expectedCrc = littleEndian(trailer, 0);
+        long declaredSize = littleEndian(trailer, 4);
+        if (declaredSize > MAX_BLOCK_DATA) {
+            throw new IOException("Corrupt BGZF block: declared size " + declaredSize + " exceeds " + MAX_BLOCK_DATA);
+        }
+        int size = (int) declaredSize;
+
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(/* nowrap */ true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int count = inflater.inflate(data, length, size - length);
+                if (0 == count && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != size) {
+                throw new IOException("Corrupt BGZF block: expected " + size + " bytes, got " + length);
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt BGZF block: " + dfe.getMessage(), dfe);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+        if (crc.getValue() != expectedCrc) {
+            throw new IOException("Corrupt BGZF block: CRC mismatch");
+        }
+        return data;
+    }
+
+    private static long littleEndian(byte[] buf, int offset) {
+        return (0xFFL & buf[offset])
+             | (0xFFL & buf[offset + 1]) << 8
+             | (0xFFL & buf[offset + 2]) << 16
+             | (0xFFL & buf[offset + 3]) << 24;
+    }
+
+    static int readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buf, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
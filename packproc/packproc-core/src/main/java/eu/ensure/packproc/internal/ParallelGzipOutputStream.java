@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses into blocked gzip (BGZF), i.e. a series of gzip members each holding at most
+ * 64 KiB of data and declaring its compressed size in its header. The result is an ordinary
+ * gzip stream that may also be decompressed in parallel, see {@link ParallelGzipInputStream}.
+ */
+public class ParallelGzipOutputStream extends ParallelBlockOutputStream {
+
+    private static final int BLOCK_DATA_SIZE = 0xFF00; // as with bgzip, leaving room for incompressible data
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+    private static final int BLOCK_OVERHEAD = 18 + 8; // header and trailer
+    private static final int BLOCKS_PER_CHUNK = 16;
+
+    private static final byte[] EOF_BLOCK = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+            0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final int level;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, Deflater.DEFAULT_COMPRESSION, threads);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+        super(out, BLOCKS_PER_CHUNK * BLOCK_DATA_SIZE, threads);
+        this.level = level;
+    }
+
+    @Override
+    protected byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(length / 2);
+        for (int offset = 0; offset < length; offset += BLOCK_DATA_SIZE) {
+            writeBlock(blocks, data, offset, Math.min(BLOCK_DATA_SIZE, length - offset));
+        }
+        return blocks.toByteArray();
+    }
+
+    @Override
+    protected byte[] trailer() {
+        return EOF_BLOCK.clone();
+    }
+
+    private void writeBlock(ByteArrayOutputStream blocks, byte[] data, int offset, int length) throws IOException {
+        byte[] compressed = deflate(data, offset, length, level);
+        if (compressed.length + BLOCK_OVERHEAD > MAX_BLOCK_SIZE) {
+            compressed = deflate(data, offset, length, Deflater.NO_COMPRESSION);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        int blockSize = compressed.length + BLOCK_OVERHEAD;
+        byte[] header = {
+                0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) (blockSize - 1), (byte) ((blockSize - 1) >>> 8)
+        };
+        blocks.write(header);
+        blocks.write(compressed);
+        writeInt(blocks, (int) crc.getValue());
+        writeInt(blocks, length);
+    }
+
+    private static byte[] deflate(byte[] data, int offset, int length, int level) {
+        Deflater deflater = new Deflater(level, /* nowrap */ true);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length);
+            byte[] buf = new byte[MAX_BLOCK_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buf);
+                compressed.write(buf, 0, count);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
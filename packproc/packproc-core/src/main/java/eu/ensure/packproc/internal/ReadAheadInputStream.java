@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads ahead of the consumer on a thread of its own.
+ * <p>
+ * Used with decoders that cannot be parallelised (e.g. ordinary gzip, xz and zstd), so that
+ * at least decoding overlaps with whatever the consumer does with the decoded data.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static class Chunk {
+        final byte[] data;
+        final int length; // -1 at end of stream
+        final IOException failure;
+
+        Chunk(byte[] data, int length, IOException failure) {
+            this.data = data;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+
+    private final BlockingQueue<Chunk> queue;
+    private final Thread reader;
+    private volatile boolean closed = false;
+
+    private Chunk current = null;
+    private int position = 0;
+
+    public ReadAheadInputStream(final InputStream in, int depth) {
+        queue = new ArrayBlockingQueue<Chunk>(Math.max(1, depth));
+        reader = new Thread(() -> {
+            try {
+                try {
+                    for (;;) {
+                        byte[] data = new byte[CHUNK_SIZE];
+                        int length = ParallelGzipInputStream.readFully(in, data, 0, CHUNK_SIZE);
+                        if (length > 0) {
+                            queue.put(new Chunk(data, length, null));
+                        }
+                        if (length < CHUNK_SIZE) {
+                            queue.put(new Chunk(null, -1, null));
+                            break;
+                        }
+                    }
+                } catch (IOException ioe) {
+                    queue.put(new Chunk(null, -1, ioe));
+                }
+            } catch (InterruptedException ie) {
+                // closed
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }, "read-ahead-" + threadCount.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n > 0 ? (0xFF & b[0]) : -1;
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        if (null == current || (current.length >= 0 && position == current.length)) {
+            try {
+                current = queue.take();
+                position = 0;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            }
+        }
+
+        if (null != current.failure) {
+            throw current.failure;
+        }
+        if (current.length < 0) {
+            return -1;
+        }
+
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, buf, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return null != current && current.length > 0 ? current.length - position : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        queue.clear();
+        try {
+            reader.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of records, as kept by the caches ({@link DigestCache} and
+ * {@link ResultCache}). The file starts with a magic number, identifying the kind of
+ * cache, followed by records -- each being the length of the payload, the payload and
+ * a CRC32 of the payload.
+ * <p>
+ * Records are appended to a stream that is kept open and flushed every
+ * {@link #FLUSH_INTERVAL} records, as well as when {@link #flush()} is called (at the end
+ * of a run). Records not yet flushed when a run is interrupted are simply lost, and
+ * the corresponding digests or results are calculated anew next time. A record that was
+ * not completely written is cut off when the file is loaded, as is everything following it.
+ */
+final class RecordFile {
+    private static final Logger log = LogManager.getLogger(RecordFile.class);
+
+    static final int FLUSH_INTERVAL = 256; // records
+
+    /**
+     * Reads the payload of a record.
+     */
+    interface RecordReader {
+        void read(DataInputStream record) throws IOException;
+    }
+
+    /**
+     * Writes the payload of a record.
+     */
+    interface RecordWriter {
+        void write(DataOutputStream record) throws IOException;
+    }
+
+    /**
+     * Opens a cache in a directory.
+     */
+    interface Opener<C> {
+        C open(File directory) throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final String description;
+
+    private DataOutputStream out = null; // opened on first append
+    private int unflushed = 0;
+
+    RecordFile(File file, int magic, String description) {
+        this.file = file;
+        this.magic = magic;
+        this.description = description;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the cache in the specified directory, opening it if not already opened,
+     * so that caches are shared by everybody using the same directory (in this JVM).
+     */
+    static <C> C shared(ConcurrentMap<File, C> caches, File directory, Opener<C> opener) throws IOException {
+        File key = directory.getCanonicalFile();
+        C cache = caches.get(key);
+        if (null == cache) {
+            synchronized (caches) {
+                cache = caches.get(key);
+                if (null == cache) {
+                    cache = opener.open(key);
+                    caches.put(key, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Loads records stored earlier, returning the number of (valid) records. A file that
+     * is not of the expected kind is removed.
+     */
+    synchronized int load(RecordReader reader) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long validLength = 0L;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != magic) {
+                String info = "Not a " + description + ": " + file.getPath() + " - starting afresh";
+                log.warn(info);
+                validLength = -1L;
+
+            } else {
+                validLength = 4L;
+                for (;;) {
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int expectedCrc = in.readInt();
+
+                    CRC32 crc = new CRC32();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != expectedCrc) {
+                        break;
+                    }
+
+                    reader.read(new DataInputStream(new ByteArrayInputStream(payload)));
+
+                    ++records;
+                    validLength += 4L + length + 4L;
+                }
+            }
+        } catch (EOFException eof) {
+            // Last record was not completely written
+        }
+
+        if (validLength < 0L) {
+            if (!file.delete()) {
+                throw new IOException("Could not remove " + file.getPath());
+            }
+        } else if (validLength < file.length()) {
+            String info = "Cutting off incomplete records in " + file.getPath();
+            info += " at offset " + validLength;
+            log.info(info);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends a record. The payload is assembled before the file is locked.
+     */
+    void append(RecordWriter writer) throws IOException {
+        byte[] payload = payloadOf(writer);
+
+        synchronized (this) {
+            if (null == out) {
+                boolean isNew = !file.exists() || file.length() == 0L;
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file, /* append */ true), 64 * 1024
+                ));
+                if (isNew) {
+                    out.writeInt(magic);
+                }
+            }
+            writeRecord(out, payload);
+
+            if (++unflushed >= FLUSH_INTERVAL) {
+                out.flush();
+                unflushed = 0;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with the specified records only, e.g. when most records have
+     * been superseded.
+     */
+    synchronized void rewrite(Iterable<RecordWriter> writers) throws IOException {
+        close();
+
+        File rewritten = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream tmp = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(rewritten)))) {
+            tmp.writeInt(magic);
+            for (RecordWriter writer : writers) {
+                writeRecord(tmp, payloadOf(writer));
+            }
+        }
+        if (!file.delete() || !rewritten.renameTo(file)) {
+            throw new IOException("Could not replace " + file.getPath() + " with " + rewritten.getPath());
+        }
+    }
+
+    /**
+     * Writes appended records to the file.
+     */
+    synchronized void flush() throws IOException {
+        if (null != out) {
+            out.flush();
+            unflushed = 0;
+        }
+    }
+
+    /**
+     * Writes appended records to the file and closes it (until next appended to).
+     */
+    synchronized void close() throws IOException {
+        if (null != out) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                unflushed = 0;
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] payloadOf(RecordWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        writer.write(record);
+        record.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+}
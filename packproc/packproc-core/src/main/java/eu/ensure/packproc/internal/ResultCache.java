@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import eu.ensure.packproc.model.ProcessorContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the outcome of processing individual entries across runs, so that entries that
+ * are unchanged since an earlier run need not be processed again.
+ * <p>
+ * The outcome of processing an entry is the information associated by the processor, i.e.
+ * the calls to {@link ProcessorContext#associate(String, String, String, Map)}. Statements
+ * follow from the associated information and are made anew when the information is replayed.
+ * Results are kept under a key identifying the processor (alias and configuration) as well
+ * as the entry (name, size and digests of the contents), see {@link #keyOf}.
+ * <p>
+ * Results are appended to a file in the cache directory as they are stored (see
+ * {@link RecordFile}), and loaded when the cache is opened. Since the outcome of a processor is assumed to depend only on
+ * the entry and the configuration, processors that also depend on other entries should
+ * not be used with a cache.
+ */
+public class ResultCache {
+    private static final Logger log = LogManager.getLogger(ResultCache.class);
+
+    private static final String FILE_NAME = "results.db";
+    private static final int MAGIC = 0x52434831; // "RCH1"
+
+    // Caches are shared by everybody using the same directory (in this JVM)
+    private static final ConcurrentMap<File, ResultCache> caches = new ConcurrentHashMap<File, ResultCache>();
+
+    /**
+     * A (recorded) call to {@link ProcessorContext#associate(String, String, String, Map)}.
+     */
+    public static class Association {
+        private final String claimant;
+        private final String path;
+        private final String providedPath;
+        private final Map<String, String> values;
+
+        public Association(String claimant, String path, String providedPath, Map<String, String> values) {
+            this.claimant = claimant;
+            this.path = path;
+            this.providedPath = providedPath;
+            this.values = new LinkedHashMap<String, String>(values); // as the processor may reuse its map
+        }
+
+        public String getClaimant() {
+            return claimant;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getProvidedPath() {
+            return providedPath;
+        }
+
+        public Map<String, String> getValues() {
+            return Collections.unmodifiableMap(values);
+        }
+    }
+
+    private final RecordFile file;
+    private final ConcurrentMap<String, List<Association>> results = new ConcurrentHashMap<String, List<Association>>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens a cache in the specified directory, loading results stored by earlier runs.
+     * The directory is created if it does not exist.
+     */
+    public ResultCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create result cache directory: " + directory.getPath());
+        }
+        this.file = new RecordFile(new File(directory, FILE_NAME), MAGIC, "result cache");
+        load();
+    }
+
+    /**
+     * Returns the cache in the specified directory, opening it if not already opened.
+     */
+    public static ResultCache of(File directory) throws IOException {
+        return RecordFile.shared(caches, directory, ResultCache::new);
+    }
+
+    /**
+     * Creates a key identifying the outcome of a processor on an entry, or returns null if
+     * the entry cannot be reliably identified (i.e. there are no digests apart from CRC32).
+     * <p>
+     * @param alias - alias of processor
+     * @param configurationDigest - digest of configuration of processor (and action)
+     * @param entryName - name of entry
+     * @param size - size of entry
+     * @param digests - digests of contents of entry, by algorithm
+     */
+    public static String keyOf(
+            String alias, String configurationDigest, String entryName, long size, Map<String, byte[]> digests
+    ) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(alias).append('\n').append(configurationDigest).append('\n').append(entryName).append('\n').append(size);
+
+        boolean isIdentified = false;
+        for (Map.Entry<String, byte[]> digest : new TreeMap<String, byte[]>(digests).entrySet()) {
+            if (digest.getKey().equalsIgnoreCase("CRC32")) {
+                continue; // too weak to identify contents
+            }
+            buf.append('\n').append(digest.getKey()).append('=').append(hex(digest.getValue()));
+            isIdentified = true;
+        }
+        if (!isIdentified) {
+            return null;
+        }
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return hex(md.digest(buf.toString().getBytes(StandardCharsets.UTF_8)));
+
+        } catch (NoSuchAlgorithmException nsae) {
+            // SHA-256 is mandatory on all Java platforms
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Returns results stored under key, or null if there are none.
+     */
+    public List<Association> lookup(String key) {
+        List<Association> associations = results.get(key);
+        if (null != associations) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return associations;
+    }
+
+    /**
+     * Stores results under key, in memory as well as in the cache file (once flushed).
+     */
+    public void store(String key, List<Association> associations) throws IOException {
+        List<Association> copy = Collections.unmodifiableList(new ArrayList<Association>(associations));
+
+        file.append(record -> {
+            RecordFile.writeString(record, key);
+            record.writeInt(copy.size());
+            for (Association association : copy) {
+                RecordFile.writeString(record, association.claimant);
+                RecordFile.writeString(record, association.path);
+                RecordFile.writeString(record, association.providedPath);
+                record.writeInt(association.values.size());
+                for (Map.Entry<String, String> value : association.values.entrySet()) {
+                    RecordFile.writeString(record, value.getKey());
+                    RecordFile.writeString(record, value.getValue());
+                }
+            }
+        });
+        results.put(key, copy);
+    }
+
+    /**
+     * Writes stored results to the cache file, e.g. at the end of a run.
+     */
+    public void flush() {
+        try {
+            file.flush();
+
+        } catch (IOException ioe) {
+            // Not fatal, since we only miss out on the results next time
+            String info = "Could not write results to " + file.getFile().getPath() + ": " + ioe.getMessage();
+            log.warn(info);
+        }
+    }
+
+    /**
+     * Replays (recorded) associations onto a context.
+     */
+    public static void replay(List<Association> associations, ProcessorContext context) {
+        for (Association association : associations) {
+            context.associate(
+                    association.claimant, association.path, association.providedPath,
+                    new LinkedHashMap<String, String>(association.values)
+            );
+        }
+    }
+
+    /**
+     * Number of lookups that found results.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that did not find results.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of stored results.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /*
+     * Loads results stored earlier.
+     */
+    private void load() throws IOException {
+        file.load(record -> {
+            String key = RecordFile.readString(record);
+            int count = record.readInt();
+            List<Association> associations = new ArrayList<Association>(count);
+            for (int i = 0; i < count; i++) {
+                String claimant = RecordFile.readString(record);
+                String path = RecordFile.readString(record);
+                String providedPath = RecordFile.readString(record);
+                int valueCount = record.readInt();
+                Map<String, String> values = new LinkedHashMap<String, String>();
+                for (int j = 0; j < valueCount; j++) {
+                    values.put(RecordFile.readString(record), RecordFile.readString(record));
+                }
+                associations.add(new Association(claimant, path, providedPath, values));
+            }
+            results.put(key, Collections.unmodifiableList(associations));
+        });
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + results.size() + " results from " + file.getFile().getPath());
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+            buf.append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.*;
+
+/**
+ * Buffers the contents of an entry (or the output from processing an entry),
+ * keeping it in memory as long as it is small and spilling over to a temporary
+ * file once it grows beyond a threshold.
+ * <p>
+ * Write to the buffer, close it and then read it back (any number of times)
+ * using {@link #getInputStream()} or {@link #writeTo(OutputStream)}. Remember
+ * to {@link #dispose()} the buffer afterwards, since it may refer to a temporary
+ * file.
+ */
+public class SpoolBuffer extends OutputStream {
+    private final String prefix;
+    private final int threshold;
+
+    private ExposedByteArrayOutputStream memory;
+    private File file = null;
+    private OutputStream fileStream = null;
+    private long size = 0L;
+
+    public SpoolBuffer(String prefix, int threshold) {
+        this.prefix = prefix;
+        this.threshold = threshold;
+        this.memory = new ExposedByteArrayOutputStream(Math.min(threshold, 0x2000));
+    }
+
+    /**
+     * Reads the input stream to its end into a new (closed) spool buffer.
+     */
+    public static SpoolBuffer spool(InputStream inputStream, String prefix, int threshold) throws IOException {
+        SpoolBuffer buffer = new SpoolBuffer(prefix, threshold);
+        try {
+            byte[] buf = new byte[0x10000];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buf)) > 0) {
+                buffer.write(buf, 0, bytesRead);
+            }
+            buffer.close();
+
+        } catch (IOException ioe) {
+            buffer.dispose();
+            throw ioe;
+        }
+        return buffer;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        if (null == memory && null == fileStream) {
+            throw new IOException("Spool buffer is closed");
+        }
+        if (null != memory && memory.size() + len > threshold) {
+            spill();
+        }
+        if (null != memory) {
+            memory.write(b, off, len);
+        } else {
+            fileStream.write(b, off, len);
+        }
+        size += len;
+    }
+
+    public void flush() throws IOException {
+        if (null != fileStream) {
+            fileStream.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (null != fileStream) {
+            fileStream.close();
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Number of bytes written to the buffer.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Whether contents has been spilled over to a temporary file.
+     */
+    public boolean isSpilled() {
+        return null != file;
+    }
+
+    /**
+     * Provides the contents of the (closed) buffer.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (null != memory) {
+            return new ByteArrayInputStream(memory.buffer(), 0, memory.size());
+        }
+        close();
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Writes the contents of the (closed) buffer to the output stream.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (null != memory) {
+            outputStream.write(memory.buffer(), 0, memory.size());
+            return;
+        }
+        try (InputStream is = getInputStream()) {
+            byte[] buf = new byte[0x10000];
+            int bytesRead;
+            while ((bytesRead = is.read(buf)) > 0) {
+                outputStream.write(buf, 0, bytesRead);
+            }
+        }
+    }
+
+    /**
+     * Releases the buffer, removing any temporary file.
+     */
+    public void dispose() {
+        memory = null;
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+        if (null != file) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile(prefix, ".spool");
+        fileStream = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileStream);
+        memory = null;
+    }
+
+    /*
+     * Gives access to the internal buffer, so that we do not have to copy it
+     * when reading it back.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
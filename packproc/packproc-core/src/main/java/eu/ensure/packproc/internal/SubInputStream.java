@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A view onto (part of) an underlying stream, such as an entry in a structure,
+ * that does not close the underlying stream when closed. Used when feeding a
+ * nested structure to a processor directly from the encompassing structure.
+ * <p>
+ * The view may optionally be bounded, in which case no more than the specified
+ * number of bytes are read from the underlying stream.
+ */
+public class SubInputStream extends FilterInputStream {
+    private long remaining; // negative if unbounded
+    private long mark = -1L;
+
+    public SubInputStream(InputStream in) {
+        this(in, -1L);
+    }
+
+    public SubInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit;
+    }
+
+    public int read() throws IOException {
+        if (remaining == 0L) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0 && remaining > 0L) {
+            --remaining;
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0L) {
+            return -1;
+        }
+        if (remaining > 0L && len > remaining) {
+            len = (int) remaining;
+        }
+        int bytesRead = in.read(b, off, len);
+        if (bytesRead > 0 && remaining > 0L) {
+            remaining -= bytesRead;
+        }
+        return bytesRead;
+    }
+
+    public long skip(long n) throws IOException {
+        if (remaining >= 0L && n > remaining) {
+            n = remaining;
+        }
+        long skipped = in.skip(n);
+        if (skipped > 0 && remaining > 0L) {
+            remaining -= skipped;
+        }
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        int available = in.available();
+        if (remaining >= 0L && available > remaining) {
+            return (int) remaining;
+        }
+        return available;
+    }
+
+    public synchronized void mark(int readlimit) {
+        in.mark(readlimit);
+        mark = remaining;
+    }
+
+    public synchronized void reset() throws IOException {
+        in.reset();
+        remaining = mark;
+    }
+
+    /**
+     * Reads (and discards) whatever remains of the view, so that the underlying
+     * stream is positioned right after it. Since this is done by reading, any
+     * digests calculated on the underlying stream will cover the whole view.
+     */
+    public void drain() throws IOException {
+        byte[] buf = new byte[0x2000];
+        while (read(buf, 0, buf.length) >= 0) {
+            // discard
+        }
+    }
+
+    /**
+     * Does not close the underlying stream.
+     */
+    public void close() throws IOException {
+        // Intentionally left blank
+    }
+}
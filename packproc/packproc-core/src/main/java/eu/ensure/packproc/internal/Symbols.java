@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.internal;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the keys and claimants used when associating information with files,
+ * since the same handful of keys ("size", "fileName", "0010,0020", ...) and claimants
+ * ("XFDU", "RDF", "DICOM", "CALCULATED", ...) recur for every file.
+ * <p>
+ * Keys are identified by small integers and claimants by a bit in a long, so at most
+ * 64 distinct claimants are interned -- any further claimants are left to the caller
+ * to keep by name. Each run (see {@link TrackingProcessorContext}) has symbols of its own,
+ * and ids are released with them.
+ */
+final class Symbols {
+    static final int MAX_CLAIMANTS = Long.SIZE;
+
+    private final Object lock = new Object();
+
+    // Keys
+    private final ConcurrentMap<String, Integer> keyIds = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] keyNames = new String[64];
+    private volatile int[] foldedKeyIds = new int[64]; // id of first key seen with same lower case spelling
+    private final ConcurrentMap<String, Integer> foldedIds = new ConcurrentHashMap<String, Integer>();
+    private final Set<Integer> foldedWithVariants = ConcurrentHashMap.newKeySet();
+
+    // Claimants
+    private final ConcurrentMap<String, Integer> claimantIds = new ConcurrentHashMap<String, Integer>();
+    private final String[] claimantNames = new String[MAX_CLAIMANTS];
+
+    int key(String key) {
+        Integer id = keyIds.get(key);
+        if (null != id) {
+            return id;
+        }
+
+        synchronized (lock) {
+            id = keyIds.get(key);
+            if (null != id) {
+                return id;
+            }
+
+            int newId = keyIds.size();
+            if (newId >= keyNames.length) {
+                int capacity = 2 * keyNames.length;
+                foldedKeyIds = Arrays.copyOf(foldedKeyIds, capacity);
+                keyNames = Arrays.copyOf(keyNames, capacity);
+            }
+
+            String folded = key.toLowerCase(Locale.ROOT);
+            Integer foldedId = foldedIds.putIfAbsent(folded, newId);
+            if (null == foldedId) {
+                foldedId = newId;
+            } else {
+                // Another key differs from this one in case only
+                foldedWithVariants.add(foldedId);
+            }
+
+            foldedKeyIds[newId] = foldedId;
+            keyNames[newId] = key;
+            keyIds.put(key, newId); // publishes the above
+            return newId;
+        }
+    }
+
+    String keyName(int id) {
+        return keyNames[id];
+    }
+
+    /**
+     * Whether another key exists that differs from this one in case only.
+     */
+    boolean hasVariants(int id) {
+        return foldedWithVariants.contains(foldedKeyIds[id]);
+    }
+
+    boolean differsInCaseOnly(int id, int otherId) {
+        return id != otherId && foldedKeyIds[id] == foldedKeyIds[otherId];
+    }
+
+    /**
+     * The bit identifying a claimant, or 0 if all {@link #MAX_CLAIMANTS} bits are taken
+     * (in which case the claimant is not interned).
+     */
+    long claimant(String claimant) {
+        Integer id = claimantIds.get(claimant);
+        if (null == id) {
+            synchronized (lock) {
+                id = claimantIds.get(claimant);
+                if (null == id) {
+                    id = claimantIds.size();
+                    if (id >= MAX_CLAIMANTS) {
+                        return 0L;
+                    }
+                    claimantNames[id] = claimant;
+                    claimantIds.put(claimant, id); // publishes the above
+                }
+            }
+        }
+        return 1L << id;
+    }
+
+    /**
+     * Adds the names of claimants (bits) to a set.
+     */
+    void claimantNames(long claimants, Set<String> names) {
+        while (claimants != 0L) {
+            int id = Long.numberOfTrailingZeros(claimants);
+            names.add(claimantNames[id]);
+            claimants &= claimants - 1; // clear lowest bit
+        }
+    }
+}
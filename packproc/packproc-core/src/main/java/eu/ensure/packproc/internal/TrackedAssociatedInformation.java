@@ -27,31 +27,64 @@ package eu.ensure.packproc.internal;
 
 import eu.ensure.packproc.model.AssociatedInformation;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Description of TrackedAssociatedInformation:
  * <p>
- *
+ * Keys and claimants are interned (see {@link Symbols}) and, since most keys have
+ * a single value, each key refers directly to a claim (a value and the claimants
+ * of that value) or -- in the case of disagreement -- to an array of claims.
+ * The nested maps offered by {@link #getValues()} are assembled when asked for.
+ * <p>
  * Created by Frode Randers at 2012-03-16 13:58
  */
 class TrackedAssociatedInformation extends AssociatedInformation {
-    private String _path;
-    Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> _values;
-    private boolean _hasDisagreements = false;
 
-    TrackedAssociatedInformation(final String claimant, final String path, final Map<String, String> providedValues) {
+    private static final class Claim {
+        private final String value;
+        private long claimants; // bits, as interned by Symbols
+        private Set<String> uninterned = null; // claimants beyond those interned, if any
+
+        private Claim(String value) {
+            this.value = value;
+        }
+
+        private void addClaimant(long claimantBit, String claimant) {
+            if (0L != claimantBit) {
+                claimants |= claimantBit;
+            } else {
+                if (null == uninterned) {
+                    uninterned = new HashSet<String>();
+                }
+                uninterned.add(claimant);
+            }
+        }
+    }
+
+    private final Symbols _symbols;
+    private final String _path;
+
+    // Keys (ids) and, for each key, either a Claim or a Claim[]
+    private int[] _keys = new int[4];
+    private Object[] _claims = new Object[4];
+    private int _count = 0;
+
+    TrackedAssociatedInformation(final Symbols symbols, final String claimant, final String path, final Map<String, String> providedValues) {
+        _symbols = symbols;
         _path = path;
 
         // Since we want to be able to see which claimant provided which values, we slightly reorganize
         // the provided values - in the process annotating the values with the current claimant.
-        //_values = new HashMap<String, AssociatedInformation.AssociationValue>();
-        _values = new HashMap</* key */ String, Map</* value */ String, /* claimants */ Set<String>>>();
-        for (final String key : providedValues.keySet()) {
-            addValueTo(_values, key, providedValues.get(key), claimant);
+        for (Map.Entry<String, String> entry : providedValues.entrySet()) {
+            addValue(entry.getKey(), entry.getValue(), claimant);
         }
     }
 
@@ -60,12 +93,24 @@ class TrackedAssociatedInformation extends AssociatedInformation {
         return _path;
     }
 
-    public Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> getValues() {
-        return _values;
+    /**
+     * A (read-only) copy of the associated values, as key -> value -> claimants.
+     */
+    public synchronized Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> getValues() {
+        Map<String, Map<String, Set<String>>> values = new LinkedHashMap<String, Map<String, Set<String>>>();
+        for (int i = 0; i < _count; i++) {
+            values.put(_symbols.keyName(_keys[i]), valuesAt(i));
+        }
+        return Collections.unmodifiableMap(values);
     }
 
-    public boolean hasDisagreements() {
-        return _hasDisagreements;
+    public synchronized boolean hasDisagreements() {
+        for (int i = 0; i < _count; i++) {
+            if (_claims[i] instanceof Claim[]) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -76,33 +121,104 @@ class TrackedAssociatedInformation extends AssociatedInformation {
         NEW_VALUE
     }
 
-    static Result addValueTo(Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> values,
-             String key, String value, String claimant) {
-        if (values.containsKey(key)) {
-            // Add value to existing key
-            Map</* value */ String, /* claimants */ Set<String>> assocValue = values.get(key);
-            if (assocValue.containsKey(value)) {
+    synchronized boolean containsKey(String key) {
+        return indexOf(_symbols.key(key)) >= 0;
+    }
+
+    /**
+     * Finds an existing key that differs from 'key' in case only, or returns null.
+     * Unless such keys have been seen at all (in any file), no keys need be examined.
+     */
+    synchronized String findKeyDifferingInCase(String key) {
+        int id = _symbols.key(key);
+        if (!_symbols.hasVariants(id)) {
+            return null;
+        }
+        for (int i = 0; i < _count; i++) {
+            if (_symbols.differsInCaseOnly(id, _keys[i])) {
+                return _symbols.keyName(_keys[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The values (and their claimants) of a key.
+     */
+    synchronized Map</* value */ String, /* claimants */ Set<String>> getValues(String key) {
+        int i = indexOf(_symbols.key(key));
+        if (i < 0) {
+            return Collections.emptyMap();
+        }
+        return valuesAt(i);
+    }
+
+    synchronized Result addValue(String key, String value, String claimant) {
+        int id = _symbols.key(key);
+        long claimantBit = _symbols.claimant(claimant);
+
+        int i = indexOf(id);
+        if (i < 0) {
+            // Create a new associated value (key, value, {claimant})
+            if (_count == _keys.length) {
+                _keys = Arrays.copyOf(_keys, 2 * _count);
+                _claims = Arrays.copyOf(_claims, 2 * _count);
+            }
+            _keys[_count] = id;
+            Claim claim = new Claim(value);
+            claim.addClaimant(claimantBit, claimant);
+            _claims[_count] = claim;
+            _count++;
+            return Result.NEW_VALUE;
+        }
+
+        // Add value to existing key
+        Claim[] claims = _claims[i] instanceof Claim ? new Claim[] { (Claim) _claims[i] } : (Claim[]) _claims[i];
+        for (Claim claim : claims) {
+            if (Objects.equals(claim.value, value)) {
                 // Annotate existing value with additional claimant
-                Set<String> claimants = assocValue.get(value);
-                claimants.add(claimant);
+                claim.addClaimant(claimantBit, claimant);
                 return Result.COINCIDING_VALUE;
+            }
+        }
 
-            } else {
-                // Add new value and annotate with claimant
-                Set<String> claimants = new HashSet<String>();
-                claimants.add(claimant);
-                assocValue.put(value, claimants);
-                return Result.CONFLICTING_VALUE;
+        // Add new value and annotate with claimant
+        claims = Arrays.copyOf(claims, claims.length + 1);
+        Claim claim = new Claim(value);
+        claim.addClaimant(claimantBit, claimant);
+        claims[claims.length - 1] = claim;
+        _claims[i] = claims;
+        return Result.CONFLICTING_VALUE;
+    }
+
+    private int indexOf(int id) {
+        for (int i = 0; i < _count; i++) {
+            if (_keys[i] == id) {
+                return i;
             }
+        }
+        return -1;
+    }
+
+    private Map<String, Set<String>> valuesAt(int i) {
+        Map<String, Set<String>> values = new LinkedHashMap<String, Set<String>>();
+        if (_claims[i] instanceof Claim) {
+            Claim claim = (Claim) _claims[i];
+            values.put(claim.value, claimantNames(claim));
         } else {
-            // Create a new associated value (key, value, {claimant})
-            Map</* value */ String, /* claimants */ Set<String>> assocValue = new HashMap<String, Set<String>>();
-            Set<String> claimants = new HashSet<String>();
-            claimants.add(claimant);
-            assocValue.put(value, claimants);
-            values.put(key, assocValue);
-            return Result.NEW_VALUE;
+            for (Claim claim : (Claim[]) _claims[i]) {
+                values.put(claim.value, claimantNames(claim));
+            }
         }
+        return Collections.unmodifiableMap(values);
     }
-}
 
+    private Set<String> claimantNames(Claim claim) {
+        Set<String> names = new TreeSet<String>();
+        _symbols.claimantNames(claim.claimants, names);
+        if (null != claim.uninterned) {
+            names.addAll(claim.uninterned);
+        }
+        return Collections.unmodifiableSet(names);
+    }
+}
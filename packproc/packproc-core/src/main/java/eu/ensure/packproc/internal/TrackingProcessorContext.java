@@ -26,12 +26,16 @@
 package eu.ensure.packproc.internal;
 
 import eu.ensure.packproc.model.AssociatedInformation;
+import eu.ensure.packproc.model.AssociationSink;
 import eu.ensure.packproc.model.EvaluationStatement;
 import eu.ensure.packproc.model.ProcessorContext;
+import eu.ensure.packproc.model.StatementSink;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Description of TrackingProcessorContext:
@@ -41,17 +45,40 @@ import java.util.*;
 public class TrackingProcessorContext implements ProcessorContext {
     private static final Logger log = LogManager.getLogger(TrackingProcessorContext.class);
 
-    // This is a collection of statements regarding the state of the information package
-    private static Collection<EvaluationStatement> evaluationStatements =
-            new LinkedList<EvaluationStatement>();
-
-    // This is a collection of file information
-    private static Map<String, TrackedAssociatedInformation> associatedInfo =
-            new HashMap<String, TrackedAssociatedInformation>();
+    /*
+     * State shared by all contexts taking part in processing a structure (such as an
+     * information package). The context created by the caller (for a specific run)
+     * owns the root, which is adopted by all contexts push:ed onto it. Since entries
+     * may be processed concurrently, this state is accessed concurrently.
+     */
+    private static class Root {
+        // Receives statements regarding the state of the information package. Unless
+        // set to something else, statements are collected in memory.
+        private final CollectingStatementSink collectedStatements = new CollectingStatementSink();
+        private volatile StatementSink statementSink = collectedStatements;
+
+        // Receives the associations made during this run, if set
+        private volatile AssociationSink associationSink = null;
+
+        // This is a collection of file information
+        private volatile ConcurrentMap<String, TrackedAssociatedInformation> associatedInfo =
+                new ConcurrentHashMap<String, TrackedAssociatedInformation>();
+
+        // Keys and claimants of the file information (interned)
+        private volatile Symbols symbols = new Symbols();
+
+        // This is the stack capturing the 'current context'. Contexts are push:ed
+        // and pop:ed on this stack and the topmost is always current. Each thread
+        // has its own stack, since entries may be processed concurrently.
+        private final ThreadLocal<Stack<ProcessorContext>> stack =
+                ThreadLocal.withInitial(() -> new Stack<ProcessorContext>());
+
+        // Information associated on a thread, while recording (see startRecording())
+        private final ThreadLocal<List<ResultCache.Association>> recording =
+                new ThreadLocal<List<ResultCache.Association>>();
+    }
 
-    // This is the stack capturing the 'current context'. Contexts are push:ed
-    // and pop:ed on this stack and the topmost is always current.
-    private static final Stack<ProcessorContext> stack = new Stack<ProcessorContext>();
+    private Root root = new Root();
 
     // This is a collection of all 'prior sub contexts' of a context.
     // It will be possible to traverse the information hierarchy of a structure
@@ -66,7 +93,7 @@ public class TrackingProcessorContext implements ProcessorContext {
     }
 
     private TrackingProcessorContext(ProcessorContext previous) {
-        stack.push(previous);
+        root.stack.get().push(previous);
     }
 
     public String getContextName() {
@@ -75,11 +102,16 @@ public class TrackingProcessorContext implements ProcessorContext {
 
     // Methods that handle the 'current context' stack
     public <E extends ProcessorContext> E push(E previous) {
-        stack.push(previous);
+        if (previous instanceof TrackingProcessorContext) {
+            // Sub contexts take part in the same run
+            ((TrackingProcessorContext) previous).root = root;
+        }
+        root.stack.get().push(previous);
         return previous;
     }
 
     public ProcessorContext pop() {
+        Stack<ProcessorContext> stack = root.stack.get();
         if (stack.empty()) {
             String info = "[synthetic exception] Mismatched push/pop on context stack: ";
             info += "Current context belongs to " + getContextName();
@@ -94,11 +126,11 @@ public class TrackingProcessorContext implements ProcessorContext {
     }
 
     public Collection<ProcessorContext> getContextStack() {
-        return Collections.unmodifiableCollection(stack);
+        return Collections.unmodifiableCollection(root.stack.get());
     }
 
     public int getDepth() {
-        return stack.size();
+        return root.stack.get().size();
     }
 
     public int getDepth(String className) {
@@ -116,11 +148,15 @@ public class TrackingProcessorContext implements ProcessorContext {
 
     // Methods that handle the information hierarchy
     public void addChild(ProcessorContext child) {
-        children.add(child);
+        synchronized (children) {
+            children.add(child);
+        }
     }
 
     public Collection<ProcessorContext> getChildren() {
-        return Collections.unmodifiableCollection(children);
+        synchronized (children) {
+            return Collections.unmodifiableCollection(new ArrayList<ProcessorContext>(children));
+        }
     }
 
 
@@ -129,31 +165,116 @@ public class TrackingProcessorContext implements ProcessorContext {
         return new HashMap<String, String>(); // empty map
     }
 
+    /**
+     * Sets the sink receiving the statements made during this run. Unless set, statements
+     * are collected and may be retrieved through {@link #extractEvaluationStatements()}.
+     */
+    public void setStatementSink(StatementSink sink) {
+        root.statementSink = (null != sink ? sink : root.collectedStatements);
+    }
+
+    public StatementSink getStatementSink() {
+        return root.statementSink;
+    }
+
+    /**
+     * Sets a sink receiving the associations made during this run (as they are made),
+     * in addition to them being tracked in this context.
+     */
+    public void setAssociationSink(AssociationSink sink) {
+        root.associationSink = sink;
+    }
+
+    public AssociationSink getAssociationSink() {
+        return root.associationSink;
+    }
+
+    private static void state(
+            StatementSink sink, String path, int factor, EvaluationStatement.Kind kind,
+            String claimant, String key, String value
+    ) {
+        if (sink.accepts(factor)) {
+            sink.accept(new EvaluationStatement(path, factor, kind, claimant, key, value));
+        }
+    }
+
+    private static void state(
+            StatementSink sink, List<EvaluationStatement> statements, String path, int factor,
+            EvaluationStatement.Kind kind, String claimant, String key, String value
+    ) {
+        if (sink.accepts(factor)) {
+            statements.add(new EvaluationStatement(path, factor, kind, claimant, key, value));
+        }
+    }
+
+    /**
+     * Starts recording the information associated on the current thread, i.e. while a
+     * processor is called. Returns what was recorded so far (if recording already), which
+     * is to be handed back to {@link #stopRecording(List)}.
+     */
+    public List<ResultCache.Association> startRecording() {
+        List<ResultCache.Association> previous = root.recording.get();
+        root.recording.set(new ArrayList<ResultCache.Association>());
+        return previous;
+    }
+
+    /**
+     * Stops recording and returns the information associated since recording started. If
+     * recording was nested, the recorded information is also added to the outer recording.
+     */
+    public List<ResultCache.Association> stopRecording(List<ResultCache.Association> previous) {
+        List<ResultCache.Association> recorded = root.recording.get();
+        if (null == previous) {
+            root.recording.remove();
+        } else {
+            root.recording.set(previous);
+            if (null != recorded) {
+                previous.addAll(recorded);
+            }
+        }
+        return null != recorded ? recorded : Collections.<ResultCache.Association>emptyList();
+    }
+
     // Methods that handle information on a per-file basis
     public void associate(final String claimant, final String path, final String providedPath, final Map<String, String> providedValues) {
+        final Root root = this.root;
+        final StatementSink sink = root.statementSink;
 
-        if (!path.equals(providedPath)) {
-            String statement = claimant + " does not correctly refer to file within the information package. ";
-            statement += "The provided path was \"" + providedPath + "\"";
-            evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEGATIVE, statement));
+        List<ResultCache.Association> recorded = root.recording.get();
+        if (null != recorded) {
+            recorded.add(new ResultCache.Association(claimant, path, providedPath, providedValues));
         }
 
-        if (! associatedInfo.containsKey(path)) {
-            // New information for this path
-            TrackedAssociatedInformation assocInfo = new TrackedAssociatedInformation(claimant, path, providedValues);
-            associatedInfo.put(path, assocInfo);
+        final AssociationSink associationSink = root.associationSink;
+        if (null != associationSink) {
+            associationSink.accept(claimant, path, providedValues);
+        }
+
+        if (!path.equals(providedPath)) {
+            state(sink, path, EvaluationStatement.NEGATIVE, EvaluationStatement.Kind.INCORRECT_PATH, claimant, null, providedPath);
+        }
 
-            //
-            for (String key : providedValues.keySet()) {
-                String statement = claimant + " states that ";
-                statement += key + "=\"" + providedValues.get(key) + "\"";
-                evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEUTRAL, statement));
+        TrackedAssociatedInformation assocInfo = root.associatedInfo.get(path);
+        if (null == assocInfo) {
+            // New information for this path (unless somebody beats us to it)
+            TrackedAssociatedInformation newInfo = new TrackedAssociatedInformation(root.symbols, claimant, path, providedValues);
+            assocInfo = root.associatedInfo.putIfAbsent(path, newInfo);
+
+            if (null == assocInfo) {
+                //
+                if (sink.accepts(EvaluationStatement.NEUTRAL)) {
+                    for (Map.Entry<String, String> entry : providedValues.entrySet()) {
+                        state(sink, path, EvaluationStatement.NEUTRAL, EvaluationStatement.Kind.STATES, claimant, entry.getKey(), entry.getValue());
+                    }
+                }
+                return;
             }
-        } else {
-            // Additional information for this path
-            TrackedAssociatedInformation assocInfo = associatedInfo.get(path);
-            Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> existingValues = assocInfo.getValues();
+        }
 
+        // Additional information for this path. Statements are handed to the sink once the
+        // information is released, since the sink may block (waiting for a subscriber, say).
+        List<EvaluationStatement> statements = new ArrayList<EvaluationStatement>();
+        synchronized (assocInfo) {
             boolean isAffirmative = true;
             for (String newKey : providedValues.keySet()) {
 
@@ -163,42 +284,33 @@ public class TrackingProcessorContext implements ProcessorContext {
                     continue; // and ignore
                 }
 
-                if (!existingValues.containsKey(newKey)) {
+                if (!assocInfo.containsKey(newKey)) {
                     // Is it only the case that differs?
-                    boolean differsInCaseOnly = false;
-                    for (String key : existingValues.keySet()) {
-                        if (key.equalsIgnoreCase(newKey)) {
-                            // Ouch!
-                            String info = "A key already exists that seems to be spelled slightly different ";
-                            info += "- adjusted to match; ";
-                            info += " Key changed from \"" + newKey + "\" to \"" + key + "\"";
-                            log.warn(info);
-
-                            //
-                            String statement = claimant + " states that the key \"";
-                            statement += newKey + "\" is similar, but not equal, to previously used key \"" + key + "\"";
-                            evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEGATIVE, statement));
-
-                            newKey = key; // Adjust key so that we don't miss this!
-
-                            differsInCaseOnly = true;
-                            break;
-                        }
-                    }
-                    if (!differsInCaseOnly) {
+                    String key = assocInfo.findKeyDifferingInCase(newKey);
+                    if (null != key) {
+                        // Ouch!
+                        String info = "A key already exists that seems to be spelled slightly different ";
+                        info += "- adjusted to match; ";
+                        info += " Key changed from \"" + newKey + "\" to \"" + key + "\"";
+                        log.warn(info);
+
+                        //
+                        state(sink, statements, path, EvaluationStatement.NEGATIVE, EvaluationStatement.Kind.SIMILAR_KEY, claimant, newKey, key);
+
+                        newKey = key; // Adjust key so that we don't miss this!
+
+                    } else {
                         // We have no existing values for this key yet
-                        TrackedAssociatedInformation.addValueTo(existingValues, newKey, newValue, claimant);
+                        assocInfo.addValue(newKey, newValue, claimant);
 
                         //
-                        String statement = claimant + " states that ";
-                        statement += newKey + "=\"" + newValue + "\"  ";
-                        evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEUTRAL, statement));
+                        state(sink, statements, path, EvaluationStatement.NEUTRAL, EvaluationStatement.Kind.STATES, claimant, newKey, newValue);
 
                         continue; // with next key/value
                     }
                 }
 
-                switch (TrackedAssociatedInformation.addValueTo(existingValues, newKey, newValue, claimant)) {
+                switch (assocInfo.addValue(newKey, newValue, claimant)) {
                     case COINCIDING_VALUE:
                         {
                             if (log.isDebugEnabled()) {
@@ -208,17 +320,13 @@ public class TrackingProcessorContext implements ProcessorContext {
                                 log.debug(info);
                             }
 
-                            String statement = claimant + " confirms that ";
-                            statement += newKey + "=\"" + newValue + "\"  ";
-                            evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.POSITIVE, statement));
+                            state(sink, statements, path, EvaluationStatement.POSITIVE, EvaluationStatement.Kind.CONFIRMS, claimant, newKey, newValue);
                         }
                         break;
 
                     case NEW_VALUE:
                         {
-                            String statement = claimant + " states that ";
-                            statement += newKey + "=\"" + newValue + "\"  ";
-                            evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEUTRAL, statement));
+                            state(sink, statements, path, EvaluationStatement.NEUTRAL, EvaluationStatement.Kind.STATES, claimant, newKey, newValue);
                         }
                         break;
 
@@ -226,58 +334,50 @@ public class TrackingProcessorContext implements ProcessorContext {
                         {
                             isAffirmative = false;
 
-                            String statement = claimant + " contests prior claims regarding ";
-                            statement += path;
-                            statement += ". We now have these conflicting values for key \"" + newKey + "\": ";
-
-                            Map</* value */ String, /* claimants */ Set<String>> values = existingValues.get(newKey);
-                            Iterator<String> vit = values.keySet().iterator();
-                            while (vit.hasNext()) {
-                                String value = vit.next();
-                                statement += "\"" + value + "\" ";
-                                {
-                                    statement += "[";
-                                    Iterator</* claimant */ String> cit = values.get(value).iterator();
-                                    while (cit.hasNext()) {
-                                        statement += /* claimant */ cit.next();
-                                        if (cit.hasNext()) {
-                                            statement += ", ";
-                                        }
-                                    }
-                                    statement += "]";
-                                }
-                                if (vit.hasNext()) {
-                                    statement += ", ";
-                                }
+                            EvaluationStatement statement = new EvaluationStatement(
+                                    path, claimant, newKey, assocInfo.getValues(newKey)
+                            );
+                            log.warn(statement.getStatement());
+                            if (sink.accepts(EvaluationStatement.NEGATIVE)) {
+                                statements.add(statement);
                             }
-
-                            log.warn(statement);
-                            evaluationStatements.add(new EvaluationStatement(path, EvaluationStatement.NEGATIVE, statement));
                         }
                         break;
                 }
             }
         }
+
+        for (EvaluationStatement statement : statements) {
+            sink.accept(statement);
+        }
+    }
+
+    public AssociatedInformation getAssociatedInformation(String path) {
+        return root.associatedInfo.get(path);
     }
 
     public Collection<? extends AssociatedInformation> extractAssociatedInformation() {
-        Collection<? extends AssociatedInformation> assocInfo = associatedInfo.values();
+        Collection<? extends AssociatedInformation> assocInfo = root.associatedInfo.values();
 
         // Prepare for next
-        associatedInfo = new HashMap<String, TrackedAssociatedInformation>();
+        root.associatedInfo = new ConcurrentHashMap<String, TrackedAssociatedInformation>();
+        root.symbols = new Symbols();
         return assocInfo;
     }
 
-    public static Collection<EvaluationStatement> getEvaluationStatements() {
-        return evaluationStatements;
+    /**
+     * Statements regarding the state of the structure processed in this run
+     */
+    public Collection<EvaluationStatement> getEvaluationStatements() {
+        return root.collectedStatements.getStatements();
     }
 
-    public static Collection<EvaluationStatement> extractEvaluationStatements() {
-        Collection<EvaluationStatement> statements = evaluationStatements;
-
-        // Prepare for next
-        evaluationStatements = new LinkedList<EvaluationStatement>();
-        return statements;
+    /**
+     * Statements collected since last extracted. If a sink of its own was set
+     * on the context, statements are delivered to that sink instead.
+     */
+    public Collection<EvaluationStatement> extractEvaluationStatements() {
+        return root.collectedStatements.extract();
     }
 
     public static void debugEvaluationStatements(Collection<EvaluationStatement> statements) {
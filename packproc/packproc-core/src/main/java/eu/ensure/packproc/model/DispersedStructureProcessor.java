@@ -30,6 +30,7 @@ import org.apache.commons.compress.archivers.ArchiveException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * Some kind of processor operating on dispersed _structures_ such as the filesystem.
@@ -48,4 +49,21 @@ public interface DispersedStructureProcessor extends Processor {
      */
     void process(String name, File inputNode, ProcessorContext context)
             throws IOException, ArchiveException, ProcessorException, ClassNotFoundException;
+
+    /**
+     * Processes only the specified files of a non-mutable file system structure, e.g. files
+     * that were created or modified since the structure was last processed.
+     * <p>
+     * @param name - entity name
+     * @param inputNode - input node onto entity
+     * @param files - files (below input node) to process
+     * @throws java.io.IOException
+     * @throws eu.ensure.packproc.ProcessorException
+     * @throws ClassNotFoundException
+     */
+    default void processFiles(String name, File inputNode, Collection<File> files, ProcessorContext context)
+            throws IOException, ProcessorException, ClassNotFoundException {
+        String info = "Processing individual files is not supported by " + getAlias();
+        throw new UnsupportedOperationException(info);
+    }
 }
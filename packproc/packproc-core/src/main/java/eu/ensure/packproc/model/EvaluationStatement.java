@@ -1,5 +1,12 @@
 package eu.ensure.packproc.model;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * User: Frode Randers
  * Date: 2012-03-07
@@ -9,16 +16,69 @@ public class EvaluationStatement {
     public static final int NEUTRAL = 0;
     public static final int NEGATIVE = -1;
 
-    private String path;
-    private int factor;
-    private String statement;
+    /**
+     * What the statement is about. Apart from TEXT, statements are kept
+     * as records and rendered as text only when asked for.
+     */
+    public enum Kind {
+        TEXT,               // free text
+        INCORRECT_PATH,     // claimant refers to file using a path ('value') that differs from the actual path
+        STATES,             // claimant states that key=value
+        SIMILAR_KEY,        // claimant uses a key that differs only in case from a previously used key ('value')
+        CONFIRMS,           // claimant confirms that key=value
+        CONTESTS            // claimant contests prior claims regarding key
+    }
+
+    private final String path;
+    private final int factor;
+    private final Kind kind;
+    private final String claimant;
+    private final String key;
+    private final String value;
+    private final Map</* value */ String, /* claimants */ Set<String>> conflictingValues;
+
+    private String statement = null; // rendered on demand (unless TEXT)
 
     public EvaluationStatement(String path, int factor, String statement) {
         this.path = path;
         this.factor = factor;
+        this.kind = Kind.TEXT;
+        this.claimant = null;
+        this.key = null;
+        this.value = null;
+        this.conflictingValues = null;
         this.statement = statement;
     }
 
+    public EvaluationStatement(String path, int factor, Kind kind, String claimant, String key, String value) {
+        this.path = path;
+        this.factor = factor;
+        this.kind = kind;
+        this.claimant = claimant;
+        this.key = key;
+        this.value = value;
+        this.conflictingValues = null;
+    }
+
+    /**
+     * A claimant contests prior claims; the (currently) conflicting values and their
+     * respective claimants are copied.
+     */
+    public EvaluationStatement(String path, String claimant, String key, Map<String, Set<String>> conflictingValues) {
+        this.path = path;
+        this.factor = NEGATIVE;
+        this.kind = Kind.CONTESTS;
+        this.claimant = claimant;
+        this.key = key;
+        this.value = null;
+
+        Map<String, Set<String>> copy = new LinkedHashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> entry : conflictingValues.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new TreeSet<String>(entry.getValue())));
+        }
+        this.conflictingValues = Collections.unmodifiableMap(copy);
+    }
+
     public String getPath() {
         return path;
     }
@@ -27,7 +87,84 @@ public class EvaluationStatement {
         return factor;
     }
 
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getClaimant() {
+        return claimant;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public Map<String, Set<String>> getConflictingValues() {
+        return null != conflictingValues ? conflictingValues : Collections.<String, Set<String>>emptyMap();
+    }
+
     public String getStatement() {
+        if (null == statement) {
+            statement = render();
+        }
         return statement;
     }
+
+    private String render() {
+        StringBuilder buf = new StringBuilder().append(claimant);
+        switch (kind) {
+            case INCORRECT_PATH:
+                buf.append(" does not correctly refer to file within the information package. ");
+                buf.append("The provided path was \"").append(value).append("\"");
+                break;
+
+            case STATES:
+                buf.append(" states that ").append(key).append("=\"").append(value).append("\"");
+                break;
+
+            case SIMILAR_KEY:
+                buf.append(" states that the key \"").append(key);
+                buf.append("\" is similar, but not equal, to previously used key \"").append(value).append("\"");
+                break;
+
+            case CONFIRMS:
+                buf.append(" confirms that ").append(key).append("=\"").append(value).append("\"");
+                break;
+
+            case CONTESTS:
+                buf.append(" contests prior claims regarding ").append(path);
+                buf.append(". We now have these conflicting values for key \"").append(key).append("\": ");
+
+                Iterator<Map.Entry<String, Set<String>>> vit = conflictingValues.entrySet().iterator();
+                while (vit.hasNext()) {
+                    Map.Entry<String, Set<String>> entry = vit.next();
+                    buf.append("\"").append(entry.getKey()).append("\" [");
+                    Iterator</* claimant */ String> cit = entry.getValue().iterator();
+                    while (cit.hasNext()) {
+                        buf.append(cit.next());
+                        if (cit.hasNext()) {
+                            buf.append(", ");
+                        }
+                    }
+                    buf.append("]");
+                    if (vit.hasNext()) {
+                        buf.append(", ");
+                    }
+                }
+                break;
+
+            default:
+                break;
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getStatement();
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.model;
+
+/**
+ * Interfaces for publishing items to subscribers, with subscriber-driven demand
+ * (backpressure). These mirror {@code java.util.concurrent.Flow} (of Java 9 and later)
+ * method by method, so that adapting either way is trivial, while still running on Java 8.
+ */
+public final class Flow {
+    private Flow() {}
+
+    /**
+     * A producer of items, received by subscribers as they request them.
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. Methods are called in sequence (never concurrently) for each
+     * subscription: onSubscribe first, then onNext (no more times than requested) and
+     * finally either onError or onComplete (regardless of requests).
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Links a publisher and a subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Requests up to n more items. A non-positive n is signalled as an error.
+         */
+        void request(long n);
+
+        /**
+         * Stops receiving items (eventually).
+         */
+        void cancel();
+    }
+}
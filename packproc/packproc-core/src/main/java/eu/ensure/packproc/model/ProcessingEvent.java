@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Something that happened while processing a structure, as published by
+ * {@link eu.ensure.packproc.ProcessingPublisher}:
+ * <ul>
+ *     <li>An entry (file) was read, with calculated information such as size and digests</li>
+ *     <li>A processor associated information with an entry</li>
+ *     <li>A statement was made regarding the state of the structure</li>
+ * </ul>
+ */
+public class ProcessingEvent {
+    public enum Kind {
+        ENTRY,          // an entry was read, 'values' being the calculated information
+        ASSOCIATION,    // 'claimant' associated 'values' with the entry
+        STATEMENT       // see 'statement'
+    }
+
+    // Claimant of information calculated for each entry read
+    public static final String CALCULATED = "CALCULATED";
+
+    private final Kind kind;
+    private final String claimant;
+    private final String path;
+    private final Map<String, String> values;
+    private final EvaluationStatement statement;
+
+    private ProcessingEvent(
+            Kind kind, String claimant, String path, Map<String, String> values, EvaluationStatement statement
+    ) {
+        this.kind = kind;
+        this.claimant = claimant;
+        this.path = path;
+        this.values = values;
+        this.statement = statement;
+    }
+
+    /**
+     * An association, which is an entry event if the information was calculated.
+     */
+    public static ProcessingEvent associated(String claimant, String path, Map<String, String> values) {
+        Map<String, String> copy = Collections.unmodifiableMap(new LinkedHashMap<String, String>(values));
+        Kind kind = CALCULATED.equals(claimant) ? Kind.ENTRY : Kind.ASSOCIATION;
+        return new ProcessingEvent(kind, claimant, path, copy, null);
+    }
+
+    public static ProcessingEvent stated(EvaluationStatement statement) {
+        return new ProcessingEvent(
+                Kind.STATEMENT, statement.getClaimant(), statement.getPath(),
+                Collections.<String, String>emptyMap(), statement
+        );
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getClaimant() {
+        return claimant;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * The statement, if a statement event - else null.
+     */
+    public EvaluationStatement getStatement() {
+        return statement;
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(kind).append(' ').append(path);
+        if (Kind.STATEMENT == kind) {
+            buf.append(": ").append(statement.getStatement());
+        } else {
+            buf.append(" (").append(claimant).append(") ").append(values);
+        }
+        return buf.toString();
+    }
+}
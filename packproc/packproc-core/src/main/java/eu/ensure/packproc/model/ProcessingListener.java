@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.model;
+
+/**
+ * Receives notifications on the progress of processing, such as when a container
+ * is entered and left, when entries are read and processors called. Registered with
+ * the {@link eu.ensure.packproc.ProcessorManager}.
+ * <p>
+ * Notifications may arrive concurrently from several threads (when entries are
+ * processed concurrently, or when the manager is used by several runs at once),
+ * so implementations must be thread safe. All methods do nothing by default.
+ * <p>
+ * Processors are referred to by their alias (i.e. the namespace prefix in the
+ * configuration) and times are in nanoseconds.
+ */
+public interface ProcessingListener {
+
+    // A container structure (package, directory, WARC file, ...) is about to be processed
+    default void containerStarted(String alias, String name) {}
+
+    // A container structure was processed
+    default void containerEnded(String alias, String name, long nanos) {}
+
+    // An entry in a container structure was read
+    default void entryRead(String alias, String entryName, long bytes) {}
+
+    // An entry in a container structure was passed over without being read
+    default void entrySkipped(String alias, String entryName, long bytes) {}
+
+    // An action matched an entry in a container structure
+    default void actionMatched(String alias, String entryName, String processorAlias, String method) {}
+
+    // A processor is about to be called
+    default void processorStarted(String alias, String method, String name) {}
+
+    // A call to a processor returned (successful or not)
+    default void processorEnded(String alias, String method, String name, long nanos, boolean successful) {}
+
+    // Bytes read by a processor from a stream handed to it
+    default void bytesRead(String alias, long bytes) {}
+
+    // Bytes written by a processor to a stream handed to it
+    default void bytesWritten(String alias, long bytes) {}
+
+    // Data that did not fit in memory was written to a temporary file
+    default void spilled(String alias, long bytes) {}
+
+    // Results of a processor on an entry were found in (hit) or not found in (miss) the result cache
+    default void resultCached(String alias, String entryName, boolean hit) {}
+}
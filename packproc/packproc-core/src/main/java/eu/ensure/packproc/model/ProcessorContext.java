@@ -53,5 +53,6 @@ public interface ProcessorContext {
 
     // Methods that handle information on a per-file basis
     void associate(String claimant, String path, String providedPath, Map<String, String> map);
+    AssociatedInformation getAssociatedInformation(String path); // or null if nothing associated yet
     Collection<? extends AssociatedInformation> extractAssociatedInformation();
 }
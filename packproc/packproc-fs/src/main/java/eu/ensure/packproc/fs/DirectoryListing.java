@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.fs;
+
+import java.io.File;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lists a directory and (asynchronously) all directories below it.
+ * <p>
+ * Listing a directory forks the listing of its sub-directories, without waiting for them,
+ * so that a whole file system tree is listed concurrently by the workers of a fork-join pool
+ * (stealing work from each other). Listings are consumed in depth-first order by joining
+ * each sub-directory listing when it is reached.
+ */
+class DirectoryListing extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final File directory;
+
+    private File[] children = null; // null if directory could not be listed
+    private DirectoryListing[] subListings = null; // non-null for sub-directories
+
+    DirectoryListing(File directory) {
+        this.directory = directory;
+    }
+
+    protected void compute() {
+        children = directory.listFiles();
+        if (null == children) {
+            return;
+        }
+
+        subListings = new DirectoryListing[children.length];
+        for (int i = 0; i < children.length; i++) {
+            if (children[i].isDirectory()) {
+                subListings[i] = new DirectoryListing(children[i]);
+                subListings[i].fork();
+            }
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Children of the directory, in the order they were listed. Waits for the listing
+     * if not yet done. Returns null if the directory could not be listed.
+     */
+    File[] getChildren() {
+        join();
+        return children;
+    }
+
+    /**
+     * Listing of the i:th child, if a directory - or null if not a directory.
+     */
+    DirectoryListing getSubListing(int i) {
+        join();
+        return subListings[i];
+    }
+}
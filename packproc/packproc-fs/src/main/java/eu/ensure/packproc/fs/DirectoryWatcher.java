@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.fs;
+
+import eu.ensure.packproc.BasicProcessorContext;
+import eu.ensure.packproc.ProcessorException;
+import eu.ensure.packproc.ProcessorManager;
+import eu.ensure.packproc.internal.TrackingProcessorContext;
+import eu.ensure.packproc.model.ProcessorContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory (and all directories below it) for files being created or modified,
+ * applying a prepared configuration on those files only - as they land - rather than
+ * processing the whole directory over and over again.
+ * <p>
+ * Since a file is typically written in several steps (each one reported as a modification),
+ * a file is processed when it has been left alone for a while, i.e. events are debounced.
+ * If events were lost (i.e. too many events to keep up with), the whole directory is
+ * processed anew. While there is nothing to process, the watching thread is blocked.
+ * <p>
+ * Files already in the directory when the watcher is created are not processed, so
+ * process the directory first if needed (e.g. through {@link ProcessorManager#apply(File, ProcessorContext)}).
+ * <p>
+ * Since watching goes on indefinitely, each batch of files is processed with a context of
+ * its own, delivering statements and associations to the sinks set on the watching context
+ * (see {@link TrackingProcessorContext#setStatementSink} and
+ * {@link TrackingProcessorContext#setAssociationSink}) as files are processed. Nothing
+ * accumulates in the watching context, apart from statements collected there if no
+ * statement sink was set.
+ */
+public class DirectoryWatcher implements Closeable {
+    private static final Logger log = LogManager.getLogger(DirectoryWatcher.class);
+
+    private final ProcessorManager manager;
+    private final File directory;
+    private final long debounceNanos;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    // Files created or modified (but not yet processed), with the time of the latest event
+    private final Map<Path, Long> pending = new HashMap<Path, Long>();
+    private boolean isOverflowed = false;
+
+    /**
+     * Creates a watcher for a directory, using a prepared processor manager. Files are
+     * processed when no events have been reported for them during 'debounceMillis'.
+     */
+    public DirectoryWatcher(ProcessorManager manager, File directory, long debounceMillis) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("Not a directory: " + directory.getAbsolutePath());
+        }
+        this.manager = manager;
+        this.directory = directory.getAbsoluteFile();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+
+        watchService = this.directory.toPath().getFileSystem().newWatchService();
+        register(this.directory.toPath(), /* are new? */ false);
+    }
+
+    /**
+     * Watches the directory until the watcher is closed (e.g. from another thread) or the
+     * thread is interrupted, processing files as they are created or modified. Failing to
+     * process files does not stop the watching.
+     * <p>
+     * If the context is not a {@link TrackingProcessorContext}, files are processed with
+     * the context itself, which then accumulates all information associated while watching.
+     */
+    public void watch(ProcessorContext context) throws IOException {
+        try {
+            for (;;) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    key = watchService.poll(nanosUntilReady(), TimeUnit.NANOSECONDS);
+                }
+
+                while (null != key) {
+                    handle(key);
+                    key = watchService.poll();
+                }
+
+                if (isOverflowed) {
+                    processAll(context);
+                } else {
+                    processReady(context);
+                }
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            // We were closed
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        Path parent = directories.get(key);
+        long now = System.nanoTime();
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                isOverflowed = true;
+                continue;
+            }
+            if (null == parent) {
+                continue;
+            }
+
+            Path path = parent.resolve((Path) event.context());
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // Files may have landed in the directory before we started watching it
+                    register(path, /* are new? */ true);
+                }
+            } else {
+                pending.put(path, now);
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory is no longer accessible (e.g. removed)
+            directories.remove(key);
+        }
+    }
+
+    /*
+     * Watches a directory and all directories below it. Files found are considered
+     * created, if the directories are new.
+     */
+    private void register(Path start, final boolean areNew) throws IOException {
+        final long now = System.nanoTime();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = dir.register(
+                        watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY
+                );
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (areNew && attributes.isRegularFile()) {
+                    pending.put(file, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+                log.info("Could not watch " + file + ": " + ioe.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private long nanosUntilReady() {
+        long oldest = Long.MAX_VALUE;
+        for (long time : pending.values()) {
+            oldest = Math.min(oldest, time);
+        }
+        return Math.max(1L, oldest + debounceNanos - System.nanoTime());
+    }
+
+    /*
+     * Processes files that have been left alone long enough.
+     */
+    private void processReady(ProcessorContext context) {
+        long now = System.nanoTime();
+
+        List<File> ready = new ArrayList<File>();
+        for (Iterator<Map.Entry<Path, Long>> pi = pending.entrySet().iterator(); pi.hasNext(); ) {
+            Map.Entry<Path, Long> file = pi.next();
+            if (now - file.getValue() >= debounceNanos) {
+                ready.add(file.getKey().toFile());
+                pi.remove();
+            }
+        }
+
+        if (!ready.isEmpty()) {
+            try {
+                manager.apply(directory, ready, contextFor(context));
+
+            } catch (ProcessorException | IOException | RuntimeException e) {
+                String info = "Failed to process " + ready.size() + " files in " + directory.getPath();
+                info += ": " + e.getMessage();
+                log.warn(info, e);
+            }
+        }
+    }
+
+    /*
+     * Processes the whole directory, since we lost track of what was created or modified.
+     */
+    private void processAll(ProcessorContext context) throws IOException {
+        log.info("Lost track of events in " + directory.getPath() + " - processing all of it");
+        isOverflowed = false;
+        pending.clear();
+
+        // Directories may have been created as well
+        register(directory.toPath(), /* are new? */ false);
+        try {
+            manager.apply(directory, contextFor(context));
+
+        } catch (ProcessorException | IOException | RuntimeException e) {
+            String info = "Failed to process " + directory.getPath() + ": " + e.getMessage();
+            log.warn(info, e);
+        }
+    }
+
+    /*
+     * A context of its own for a batch of files, delivering to the sinks of the watching context.
+     */
+    private static ProcessorContext contextFor(ProcessorContext context) {
+        if (!(context instanceof TrackingProcessorContext)) {
+            return context;
+        }
+        TrackingProcessorContext watching = (TrackingProcessorContext) context;
+
+        BasicProcessorContext batch = new BasicProcessorContext(context.getContextName());
+        batch.setStatementSink(watching.getStatementSink());
+        batch.setAssociationSink(watching.getAssociationSink());
+        return batch;
+    }
+}
@@ -25,12 +25,15 @@
  */
 package eu.ensure.packproc.fs;
 
-import org.gautelis.vopn.io.MultiDigestInputStream;
 import eu.ensure.packproc.BasicProcessorContext;
 import eu.ensure.packproc.ProcessorException;
 import eu.ensure.packproc.ProcessorManager;
 import eu.ensure.packproc.internal.Action;
-import eu.ensure.packproc.internal.FileTool;
+import eu.ensure.packproc.internal.ActionIndex;
+import eu.ensure.packproc.internal.DigestCache;
+import eu.ensure.packproc.internal.MappedFileInputStream;
+import eu.ensure.packproc.internal.ParallelDigestInputStream;
+import eu.ensure.packproc.internal.SubInputStream;
 import eu.ensure.packproc.model.*;
 import org.apache.axiom.om.OMElement;
 import org.apache.logging.log4j.LogManager;
@@ -39,6 +42,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Operates on file container streams
@@ -61,7 +66,34 @@ public class FileSystemProcessor implements DispersedStructureProcessor {
 
     // Sub-processors (actions)
     private List<Action> actions = new Vector<Action>();
+    private ActionIndex actionIndex = new ActionIndex(actions);
 
+    // Digest algorithms calculated for each entry, as specified through the 'digests'
+    // attribute (e.g. digests="MD5, SHA-256"). Each algorithm is calculated by a worker of its own.
+    private String[] digestAlgorithms = ParallelDigestInputStream.DEFAULT_ALGORITHMS;
+
+    //
+    // Directories may optionally be traversed concurrently, in which case directories are listed
+    // ahead of the traversal by a fork-join pool and files are handed over to a pool of workers.
+    // The number of workers is specified through the 'pool-size' attribute and the number of
+    // files that may wait for a worker through the 'queue-depth' attribute. Contexts are still
+    // push:ed and pop:ed in depth-first order by the thread traversing the file system and
+    // embedded containers (e.g. TAR-files) are processed by that thread as well, in order.
+    //
+    private int poolSize = 1; // i.e. sequential processing
+    private int queueDepth = 0;
+
+    // Files may optionally be memory mapped (the 'memory-mapped' attribute), in which case
+    // file processors may read them randomly and without copying, e.g. through a channel.
+    // A file is mapped only if the processor asks for it, and otherwise streamed.
+    private boolean memoryMapped = false;
+
+    // Digests of files may optionally be kept across runs (the 'digest-cache' attribute naming
+    // a directory), so that unchanged files need not be digested again. Cached digests are
+    // verified anyhow when older than 'digest-cache-max-age' days, as well as for a random
+    // sample of 'digest-cache-sample' percent of the files.
+    private DigestCache digestCache = null;
+    private DigestCache.VerificationPolicy verificationPolicy = DigestCache.VerificationPolicy.TRUST;
 
     public FileSystemProcessor() {
     }
@@ -86,10 +118,70 @@ public class FileSystemProcessor implements DispersedStructureProcessor {
         this.configText = text;
         this.alias = alias;
         this.outerProcessors = outerProcessors;
+
+        this.digestAlgorithms = ParallelDigestInputStream.algorithmsFrom(attributes.get("digests"));
+
+        this.poolSize = getPositiveInteger(attributes, "pool-size", 1);
+        this.queueDepth = getPositiveInteger(attributes, "queue-depth", this.poolSize);
+        this.memoryMapped = Boolean.parseBoolean(attributes.get("memory-mapped"));
+
+        String cacheDirectory = attributes.get("digest-cache");
+        if (null != cacheDirectory && cacheDirectory.trim().length() > 0) {
+            try {
+                this.digestCache = DigestCache.of(new File(cacheDirectory.trim()));
+                this.verificationPolicy = new DigestCache.VerificationPolicy(
+                        TimeUnit.DAYS.toMillis(getPositiveInteger(attributes, "digest-cache-max-age", 0)),
+                        getPercentage(attributes, "digest-cache-sample", 0.0) / 100.0
+                );
+            } catch (IOException ioe) {
+                String info = "Could not open digest cache in \"" + cacheDirectory + "\": " + ioe.getMessage();
+                info += " - processing without";
+                log.warn(me() + ": " + info);
+            }
+        }
+    }
+
+    private int getPositiveInteger(Map<String, String> attributes, String name, int defaultValue) {
+        String value = attributes.get(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException ignore) {
+        }
+
+        String info = "Invalid value for attribute \"" + name + "\": \"" + value + "\"";
+        info += " - using " + defaultValue;
+        log.warn(me() + ": " + info);
+        return defaultValue;
+    }
+
+    private double getPercentage(Map<String, String> attributes, String name, double defaultValue) {
+        String value = attributes.get(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            double percentage = Double.parseDouble(value.trim());
+            if (percentage >= 0.0 && percentage <= 100.0) {
+                return percentage;
+            }
+        } catch (NumberFormatException ignore) {
+        }
+
+        String info = "Invalid value for attribute \"" + name + "\": \"" + value + "\"";
+        info += " - using " + defaultValue;
+        log.warn(me() + ": " + info);
+        return defaultValue;
     }
 
     public void define(List<Action> actions) {
         this.actions = actions;
+        this.actionIndex = new ActionIndex(actions);
     }
 
     public List<Action> getActions() {
@@ -104,6 +196,7 @@ public class FileSystemProcessor implements DispersedStructureProcessor {
      * Generic entry to the file system-processor. Will route to more specific actions based on the
      * plugin-specific configuration.
      * <p>
+     * The file system is traversed depth-first, concurrently if 'pool-size' is larger than 1.
      * <p>
      * @param inputNode
      * @throws java.io.IOException
@@ -117,14 +210,25 @@ public class FileSystemProcessor implements DispersedStructureProcessor {
             log.info("Processing " + inputNode.getPath());
         }
 
+        if (poolSize > 1) {
+            processConcurrently(name, inputNode, context);
+            return;
+        }
+
         BasicProcessorContext basicContext = context.push(new BasicProcessorContext(name));
 
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+        }
+
         try {
             // Iterate through objects
             File[] children = inputNode.listFiles();
             int i = 0;
 
-            with_next_entry:
             while (i < children.length) {
                 File child = children[i++];
                 FileSystemEntry structureEntry = new FileSystemEntry(child);
@@ -147,134 +251,555 @@ public class FileSystemProcessor implements DispersedStructureProcessor {
                     continue; // with next entry
                 }
 
-                MultiDigestInputStream entryInputStream = null;
-                try {
-                    Iterator<Action> ait = actions.iterator();
-                    while (ait.hasNext()) {
-                        Action action = ait.next();
-
-                        if (action.matchOnName(structureEntry.getName())) {
-                            if (log.isDebugEnabled()) {
-                                log.debug(me() + ":process container");
-                            }
-                            entryInputStream = new MultiDigestInputStream(structureEntry.getInputStream());
-
-                            Processor processor = action.getProcessor();
-                            if (processor instanceof ContainerStructureProcessor) {
-                                if (action.getMethod().equalsIgnoreCase("process")) {
-                                    //-----------------------------------------------------------------------------
-                                    // Since we are referring to a structure (processor), we are probably just
-                                    // going to process an embedded TAR-file (or the like). We create a
-                                    // temporary file and recursively feed it to the processor manager...
-                                    //-----------------------------------------------------------------------------
-                                    File subInputFile = extractEntry(structureEntry, entryInputStream);
-                                    InputStream subInputStream = null;
-                                    OutputStream subOutputStream = null;
-                                    try {
-                                        subInputStream = new BufferedInputStream(new FileInputStream(subInputFile));
-
-                                        // Run it through the processor manager which knows what to do with it
-                                        manager.applyOnContainerWithStructure(
-                                                action.getProcessor(), action.getMethod(),
-                                                structureEntry.getName(), subInputStream, subOutputStream, basicContext
-                                        );
-                                    } finally {
-                                        if (null != subInputStream) subInputStream.close();
-                                        if (null != subInputFile && subInputFile.exists()) subInputFile.delete();
-                                    }
-                                    continue with_next_entry; // since we operated on a unique entry
-
-                                } else {
-                                    // Unknown operation on a container file
-                                    throw new ProcessorException("Unknown action on container: " + action.getMethod());
-                                }
-                            } else if (processor instanceof FileProcessor) {
-                                //---------------------------------------------------------------------------------
-                                // Since we are referring to a file processor, we will just pass the entry with it's
-                                // input stream back to the processor manager that will know what to do with it.
-                                //---------------------------------------------------------------------------------
-                                manager.applyOnEntry(
-                                        action.getProcessor(), action.getMethod(),
-                                        structureEntry, entryInputStream, /* OutputStream */ null, basicContext
-                                );
-                                continue with_next_entry; // since we operated on a unique entry
-                            }
-                        }
+                processFile(structureEntry, entryName, basicContext, context);
+            }
+        } finally {
+            context.pop();
+
+            if (null != digestCache) {
+                digestCache.flush();
+            }
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /*
+     * Traverses the file system concurrently. Directories are listed ahead of the traversal
+     * by a fork-join pool, so that latency (e.g. on network file systems) is hidden, while
+     * files are processed by a bounded pool of workers.
+     */
+    private void processConcurrently(String name, File inputNode, ProcessorContext context)
+            throws IOException, ProcessorException, ClassNotFoundException {
+
+        ForkJoinPool listingPool = new ForkJoinPool(poolSize, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(alias + "-lister-" + thread.getPoolIndex());
+            return thread;
+        }, null, /* asyncMode */ false);
+
+        FileWorkers workers = new FileWorkers(poolSize, queueDepth);
+        try {
+            DirectoryListing listing = new DirectoryListing(inputNode);
+            listingPool.execute(listing);
+
+            traverse(name, listing, context, workers);
+            workers.drain();
+
+        } finally {
+            workers.close();
+            listingPool.shutdownNow();
+
+            if (null != digestCache) {
+                digestCache.flush();
+            }
+        }
+    }
+
+    /**
+     * Processes only the specified files (below the input node), e.g. files that were created
+     * or modified since the file system was last processed. Files are processed in order of
+     * their paths, below a context for each directory leading up to them (as when traversing
+     * the file system). Files are processed concurrently if 'pool-size' is larger than 1.
+     * <p>
+     * @param name - entity name
+     * @param inputNode - input node onto entity
+     * @param files - files to process
+     * @throws java.io.IOException
+     * @throws eu.ensure.packproc.ProcessorException
+     * @throws ClassNotFoundException
+     */
+    public void processFiles(String name, File inputNode, Collection<File> files, ProcessorContext context)
+            throws IOException, ProcessorException, ClassNotFoundException {
+
+        File top = inputNode.getAbsoluteFile();
+        String topPath = top.getPath() + File.separator;
+
+        // Group files by directory (as path segments below the input node)
+        Map<List<String>, List<File>> directories =
+                new TreeMap<List<String>, List<File>>(FileSystemProcessor::compareSegments);
+        for (File file : files) {
+            file = file.getAbsoluteFile();
+            if (!file.getPath().startsWith(topPath)) {
+                log.warn(me() + ": Ignoring " + file.getPath() + " - not below " + top.getPath());
+                continue;
+            }
+            if (!file.isFile()) {
+                continue; // e.g. removed since
+            }
+            List<String> segments = new ArrayList<String>();
+            for (File directory = file.getParentFile(); !directory.equals(top); directory = directory.getParentFile()) {
+                segments.add(0, directory.getName());
+            }
+            directories.computeIfAbsent(segments, directory -> new ArrayList<File>()).add(file);
+        }
+
+        BasicProcessorContext basicContext = context.push(new BasicProcessorContext(name));
+
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+        }
+
+        // Contexts of the directories leading up to the current one, starting with the input node
+        List<String> path = new ArrayList<String>();
+        List<BasicProcessorContext> contexts = new ArrayList<BasicProcessorContext>();
+        contexts.add(basicContext);
+
+        FileWorkers workers = poolSize > 1 ? new FileWorkers(poolSize, queueDepth) : null;
+        try {
+            for (Map.Entry<List<String>, List<File>> directory : directories.entrySet()) {
+                List<String> segments = directory.getKey();
+
+                // Leave directories not leading up to this one and enter those that do, just as when traversing
+                int common = 0;
+                while (common < path.size() && common < segments.size() && path.get(common).equals(segments.get(common))) {
+                    common++;
+                }
+                while (path.size() > common) {
+                    path.remove(path.size() - 1);
+                    contexts.remove(contexts.size() - 1);
+                    contexts.get(contexts.size() - 1).pop();
+                }
+                while (path.size() < segments.size()) {
+                    String segment = segments.get(path.size());
+                    path.add(segment);
+                    BasicProcessorContext parent = contexts.get(contexts.size() - 1);
+                    contexts.add(parent.push(new BasicProcessorContext(segment + "/")));
+                }
+
+                BasicProcessorContext directoryContext = contexts.get(contexts.size() - 1);
+                ProcessorContext parentContext = contexts.size() > 1 ? contexts.get(contexts.size() - 2) : context;
+
+                List<File> directoryFiles = directory.getValue();
+                Collections.sort(directoryFiles);
+
+                for (File file : directoryFiles) {
+                    FileSystemEntry structureEntry = new FileSystemEntry(file);
+                    String entryName = structureEntry.getName();
+
+                    if (log.isInfoEnabled()) {
+                        log.info("");
+                        String info = "### " + entryName;
+                        log.info(info);
                     }
-                } finally {
-                    try {
-                        if (! structureEntry.isDirectory() && null != entryInputStream) {
-                            // Collect bitstream information - this is where we associate _actual_ values,
-                            // i.e. calculated checksums and calculated byte lengths.
-                            Map<String, String> bitstreamInfo = new HashMap<String, String>();
-
-                            if (entryInputStream.getSize() > 0) {
-                                bitstreamInfo.put("size", "" + entryInputStream.getSize());
-
-                                Map<String, byte[]> digests = entryInputStream.getDigests();
-                                for (String key : digests.keySet()) {
-                                    byte[] digest = digests.get(key);
-
-                                    if (digest.length == 8) {
-                                        ByteBuffer buf = ByteBuffer.wrap(digest);
-                                        String value = "" + buf.getLong();
-                                        bitstreamInfo.put(key, value);
-                                    } else {
-                                        StringBuffer hexString = new StringBuffer();
-                                        for (int j=0;j<digest.length;j++) {
-                                            hexString.append(Integer.toHexString(0xFF & digest[j]));
-                                        }
-                                        String value = hexString.toString();
-                                        bitstreamInfo.put(key, value);
-                                    }
-                                }
-
-                                // Create a package-relative path...
-                                File top = new File("/");
-                                File contentStream = top; // starting point relative to top
-
-                                // ...and reassemble
-                                int start = entryName.startsWith("/") ? 0 : 1; /* skip [example1]/content/... */
-
-                                String[] parts = entryName.split("/");
-                                for (int j=start; j < parts.length; j++) {
-                                    contentStream = new File(contentStream, parts[j]);
-                                }
-                                bitstreamInfo.put("fileName", parts[parts.length-1]);
-
-                                String path = contentStream.getPath().replace("\\", "/"); // in case we're on Windoze
-                                context.associate("CALCULATED", path, path, bitstreamInfo);
-                            }
-                        }
+
+                    Action action = actionIndex.firstMatchOnName(structureEntry.getName());
+                    if (null != workers && !(null != action && action.getProcessor() instanceof ContainerStructureProcessor)) {
+                        workers.submit(structureEntry, entryName, directoryContext, parentContext);
+                    } else {
+                        processFile(structureEntry, entryName, directoryContext, parentContext);
                     }
-                    finally {
-                        if (null != entryInputStream) {
-                            entryInputStream.close();
-                            entryInputStream = null;
+                }
+            }
+
+            if (null != workers) {
+                workers.drain();
+            }
+        } finally {
+            if (null != workers) {
+                workers.close();
+            }
+
+            for (int i = contexts.size() - 1; i > 0; i--) {
+                contexts.get(i - 1).pop();
+            }
+            context.pop();
+
+            if (null != digestCache) {
+                digestCache.flush();
+            }
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /*
+     * Orders directories (as path segments) as when traversing depth-first, i.e. each
+     * directory ahead of its subdirectories and these ahead of its siblings.
+     */
+    private static int compareSegments(List<String> segments, List<String> otherSegments) {
+        for (int i = 0; i < segments.size() && i < otherSegments.size(); i++) {
+            int comparison = segments.get(i).compareTo(otherSegments.get(i));
+            if (0 != comparison) {
+                return comparison;
+            }
+        }
+        return segments.size() - otherSegments.size();
+    }
+
+    /*
+     * Traverses a directory (as listed ahead by the fork-join pool), handing files over to
+     * the workers. Contexts are push:ed and pop:ed by the calling thread, just as when
+     * traversing sequentially.
+     */
+    private void traverse(
+            String name, DirectoryListing listing, ProcessorContext context, FileWorkers workers
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        BasicProcessorContext basicContext = context.push(new BasicProcessorContext(name));
+
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+        }
+
+        try {
+            File[] children = listing.getChildren();
+            if (null == children) {
+                throw new IOException("Could not list directory: " + listing.getDirectory().getPath());
+            }
+
+            for (int i = 0; i < children.length; i++) {
+                DirectoryListing subListing = listing.getSubListing(i);
+                FileSystemEntry structureEntry = new FileSystemEntry(children[i]);
+
+                String entryName = structureEntry.getName();
+                if (null != subListing) {
+                    entryName += "/";
+                }
+
+                if (log.isInfoEnabled()) {
+                    log.info("");
+                    String info = "### " + entryName;
+                    log.info(info);
+                }
+
+                // Directories are not processed per se (depth-first, as when traversing sequentially)
+                if (null != subListing) {
+                    traverse(entryName, subListing, basicContext, workers);
+                    continue; // with next entry
+                }
+
+                // Embedded containers push contexts of their own, so they are processed here
+                // (in order) in order to keep the context hierarchy independent of timing.
+                Action action = actionIndex.firstMatchOnName(structureEntry.getName());
+                if (null != action && action.getProcessor() instanceof ContainerStructureProcessor) {
+                    processFile(structureEntry, entryName, basicContext, context);
+                } else {
+                    workers.submit(structureEntry, entryName, basicContext, context);
+                }
+            }
+        } finally {
+            context.pop();
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /*
+     * Processes an individual file, applying the matching action (if any) and associating
+     * calculated bitstream information.
+     */
+    private void processFile(
+            FileSystemEntry structureEntry, String entryName, BasicProcessorContext basicContext, ProcessorContext context
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        ProcessingListener listener = manager.getListener();
+
+        ParallelDigestInputStream entryInputStream = null;
+        MappedFileInputStream mappedInputStream = null;
+        InputStream plainInputStream = null; // if digests are not calculated (i.e. taken from cache)
+
+        DigestCache.Identity identity = null;
+        DigestCache.Entry cachedDigests = null;
+        boolean isTrusted = false;
+        try {
+            Action action = actionIndex.firstMatchOnName(structureEntry.getName());
+            if (null != action) {
+                if (null != listener) {
+                    listener.actionMatched(
+                            alias, structureEntry.getName(), action.getProcessor().getAlias(), action.getMethod()
+                    );
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug(me() + ":process container");
+                }
+
+                if (null != digestCache) {
+                    identity = DigestCache.identify(structureEntry.getWrappedObject());
+                    cachedDigests = digestCache.lookup(identity, digestAlgorithms);
+                    isTrusted = null != cachedDigests
+                            && !verificationPolicy.requiresVerification(cachedDigests, System.currentTimeMillis());
+                    if (null != listener) {
+                        listener.resultCached(alias, entryName, isTrusted);
+                    }
+                }
+
+                if (memoryMapped) {
+                    // Digests are calculated from a stream of its own, reading the same file (and mapping)
+                    mappedInputStream = new MappedFileInputStream(structureEntry.getWrappedObject());
+                    if (!isTrusted) {
+                        entryInputStream = new ParallelDigestInputStream(digestAlgorithms, mappedInputStream.duplicate());
+                    }
+                } else if (isTrusted) {
+                    plainInputStream = structureEntry.getInputStream();
+                } else {
+                    entryInputStream = new ParallelDigestInputStream(digestAlgorithms, structureEntry.getInputStream());
+                }
+
+                Processor processor = action.getProcessor();
+                if (processor instanceof ContainerStructureProcessor) {
+                    if (action.getMethod().equalsIgnoreCase("process")) {
+                        //-----------------------------------------------------------------------------
+                        // Since we are referring to a structure (processor), we are probably just
+                        // going to process an embedded TAR-file (or the like). We feed the file
+                        // recursively to the processor manager, directly from the file system.
+                        //-----------------------------------------------------------------------------
+                        InputStream containerInputStream = entryInputStream;
+                        if (isTrusted) {
+                            containerInputStream = null != mappedInputStream ? mappedInputStream : plainInputStream;
+                        }
+                        SubInputStream subInputStream = new SubInputStream(containerInputStream, structureEntry.getSize());
+
+                        // Run it through the processor manager which knows what to do with it
+                        manager.applyOnContainerWithStructure(
+                                action, structureEntry.getName(), subInputStream, /* OutputStream */ null, basicContext
+                        );
+
+                        // Whatever the processor left unread is read here, so digests cover the file
+                        if (!isTrusted) {
+                            subInputStream.drain();
                         }
+                        return; // since we operated on a unique entry
+
+                    } else {
+                        // Unknown operation on a container file
+                        throw new ProcessorException("Unknown action on container: " + action.getMethod());
+                    }
+                } else if (processor instanceof FileProcessor) {
+                    //---------------------------------------------------------------------------------
+                    // Since we are referring to a file processor, we will just pass the entry with it's
+                    // input stream back to the processor manager that will know what to do with it.
+                    //---------------------------------------------------------------------------------
+                    if (null != mappedInputStream) {
+                        // The processor may read the mapped file randomly (or through a channel),
+                        // so the digests are calculated separately
+                        manager.applyOnEntry(
+                                action, structureEntry, mappedInputStream, /* OutputStream */ null, basicContext
+                        );
+                    } else {
+                        manager.applyOnEntry(
+                                action, structureEntry, isTrusted ? plainInputStream : entryInputStream,
+                                /* OutputStream */ null, basicContext
+                        );
                     }
+
+                    // Digests that are cached must cover the complete file
+                    if (null != entryInputStream && (null != mappedInputStream || null != digestCache)) {
+                        entryInputStream.drain();
+                    }
+                    return; // since we operated on a unique entry
                 }
             }
         } finally {
-            context.pop();
+            try {
+                if (null != listener && null != entryInputStream) {
+                    listener.entryRead(alias, entryName, entryInputStream.getSize());
+                }
+
+                if (isTrusted) {
+                    // Collect bitstream information, as calculated by an earlier run
+                    associateCalculatedInformation(
+                            entryName, cachedDigests.getSize(), cachedDigests.getDigests(digestAlgorithms), context
+                    );
+
+                } else if (! structureEntry.isDirectory() && null != entryInputStream) {
+                    // Collect bitstream information - this is where we associate _actual_ values,
+                    // i.e. calculated checksums and calculated byte lengths.
+                    Map<String, byte[]> digests = entryInputStream.getDigests();
+                    associateCalculatedInformation(entryName, entryInputStream.getSize(), digests, context);
+
+                    if (null != digestCache && entryInputStream.getSize() == identity.getSize()) {
+                        cacheDigests(structureEntry, entryName, identity, cachedDigests, digests, context);
+                    }
+                }
+            }
+            finally {
+                if (null != entryInputStream) {
+                    entryInputStream.close();
+                    entryInputStream = null;
+                }
+                if (null != mappedInputStream) {
+                    mappedInputStream.close();
+                }
+                if (null != plainInputStream) {
+                    plainInputStream.close();
+                }
+            }
         }
     }
 
-    /**
-     *
-     * @param entry
-     * @param entryInputStream
-     * @return
-     * @throws eu.ensure.packproc.ProcessorException
-     * @throws java.io.IOException
+    /*
+     * Stores digests just calculated in the digest cache, unless the file was modified while
+     * being read. If the file seemed unchanged, but digests differ from the cached ones (i.e.
+     * the file has changed without its modification time being affected), the cached digests
+     * are associated as well - in effect contesting the calculated digests.
      */
-    private File extractEntry(
-            StructureEntry entry,
-            InputStream entryInputStream
-    ) throws ProcessorException, IOException {
+    private void cacheDigests(
+            FileSystemEntry structureEntry, String entryName, DigestCache.Identity identity,
+            DigestCache.Entry cachedDigests, Map<String, byte[]> digests, ProcessorContext context
+    ) {
+        try {
+            if (!identity.equals(DigestCache.identify(structureEntry.getWrappedObject()))) {
+                log.info(me() + ": Not caching digests of " + identity.getPath() + " - modified while read");
+                return;
+            }
+
+            if (null != cachedDigests) {
+                Map<String, byte[]> expected = cachedDigests.getDigests(digestAlgorithms);
+                for (Map.Entry<String, byte[]> digest : expected.entrySet()) {
+                    if (!Arrays.equals(digest.getValue(), digests.get(digest.getKey()))) {
+                        String info = "Digests of " + identity.getPath() + " have changed since ";
+                        info += new Date(cachedDigests.getVerified()) + ", although the file seems unchanged";
+                        log.warn(me() + ": " + info);
 
-        FileTool fileTool = new FileTool(alias);
-        return fileTool.extractEntry(entry, entryInputStream);
+                        associateCalculatedInformation("DIGEST-CACHE", entryName, cachedDigests.getSize(), expected, context);
+                        break;
+                    }
+                }
+            }
+
+            digestCache.store(identity, digests);
+
+        } catch (IOException ioe) {
+            String info = "Could not cache digests of " + identity.getPath() + ": " + ioe.getMessage();
+            log.warn(me() + ": " + info);
+        }
+    }
+
+    private void associateCalculatedInformation(
+            String entryName, long size, Map<String, byte[]> digests, ProcessorContext context
+    ) {
+        associateCalculatedInformation("CALCULATED", entryName, size, digests, context);
+    }
+
+    private void associateCalculatedInformation(
+            String claimant, String entryName, long size, Map<String, byte[]> digests, ProcessorContext context
+    ) {
+        Map<String, String> bitstreamInfo = new HashMap<String, String>();
+
+        if (size > 0) {
+            bitstreamInfo.put("size", "" + size);
+
+            for (String key : digests.keySet()) {
+                byte[] digest = digests.get(key);
+
+                if (digest.length == 8) {
+                    ByteBuffer buf = ByteBuffer.wrap(digest);
+                    String value = "" + buf.getLong();
+                    bitstreamInfo.put(key, value);
+                } else {
+                    StringBuffer hexString = new StringBuffer();
+                    for (int j=0;j<digest.length;j++) {
+                        hexString.append(Character.forDigit((digest[j] >> 4) & 0xF, 16));
+                        hexString.append(Character.forDigit(digest[j] & 0xF, 16));
+                    }
+                    String value = hexString.toString();
+                    bitstreamInfo.put(key, value);
+                }
+            }
+
+            // Create a package-relative path...
+            File top = new File("/");
+            File contentStream = top; // starting point relative to top
+
+            // ...and reassemble
+            int start = entryName.startsWith("/") ? 0 : 1; /* skip [example1]/content/... */
+
+            String[] parts = entryName.split("/");
+            for (int j=start; j < parts.length; j++) {
+                contentStream = new File(contentStream, parts[j]);
+            }
+            bitstreamInfo.put("fileName", parts[parts.length-1]);
+
+            String path = contentStream.getPath().replace("\\", "/"); // in case we're on Windoze
+            context.associate(claimant, path, path, bitstreamInfo);
+        }
+    }
+
+    /*
+     * Bounded pool of workers processing files, while the file system is being traversed.
+     * Failures are reported in the order the files were submitted.
+     */
+    private class FileWorkers {
+        private final int capacity;
+        private final ExecutorService executor;
+        private final LinkedList<Future<Void>> pending = new LinkedList<Future<Void>>();
+
+        FileWorkers(int poolSize, int queueDepth) {
+            this.capacity = poolSize + queueDepth;
+
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable, alias + "-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void submit(
+                final FileSystemEntry structureEntry, final String entryName,
+                final BasicProcessorContext basicContext, final ProcessorContext context
+        ) throws IOException, ProcessorException, ClassNotFoundException {
+
+            while (pending.size() >= capacity) {
+                awaitFirst();
+            }
+            pending.add(executor.submit(() -> {
+                processFile(structureEntry, entryName, basicContext, context);
+                return null;
+            }));
+
+            while (!pending.isEmpty() && pending.getFirst().isDone()) {
+                awaitFirst();
+            }
+        }
+
+        void drain() throws IOException, ProcessorException, ClassNotFoundException {
+            while (!pending.isEmpty()) {
+                awaitFirst();
+            }
+        }
+
+        void close() {
+            executor.shutdownNow();
+        }
+
+        private void awaitFirst() throws IOException, ProcessorException, ClassNotFoundException {
+            Future<Void> future = pending.removeFirst();
+            try {
+                future.get();
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ProcessorException("Interrupted while waiting for file to be processed", ie);
+
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof ProcessorException) {
+                    throw (ProcessorException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                } else {
+                    String info = "Failed to process file: " + cause.getMessage();
+                    log.warn(info);
+                    throw new ProcessorException(info, cause);
+                }
+            }
+        }
     }
 
     /**
@@ -25,16 +25,59 @@
  */
 package eu.ensure.packproc;
 
+import eu.ensure.packproc.fs.DirectoryWatcher;
+import eu.ensure.packproc.internal.Compression;
+import eu.ensure.packproc.internal.CountingInputStream;
+import eu.ensure.packproc.internal.DigestCache;
+import eu.ensure.packproc.internal.MappedFileInputStream;
+import eu.ensure.packproc.internal.ParallelDigestInputStream;
+import eu.ensure.packproc.internal.ResultCache;
+import eu.ensure.packproc.model.AssociatedInformation;
+import eu.ensure.packproc.model.EvaluationStatement;
+import eu.ensure.packproc.model.Flow;
+import eu.ensure.packproc.model.ProcessingEvent;
+import eu.ensure.packproc.model.ProcessorContext;
 import org.gautelis.vopn.lang.Stacktrace;
 import junit.framework.TestCase;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
 /**
  */
@@ -63,9 +106,19 @@ public class ProcessingTest extends TestCase {
             File cwd = new File(System.getProperty("user.dir"));
             System.out.println("Processing filesystem; cwd=" + cwd.getPath());
 
+            ProcessingStatistics statistics = new ProcessingStatistics();
+            manager.setListener(statistics);
+
             BasicProcessorContext context = new BasicProcessorContext(/* just a name */ cwd.getPath());
             manager.apply(cwd, context);
 
+            System.out.print(statistics);
+            ProcessingStatistics.Statistics fs = statistics.getStatistics("fs-processor");
+            assertNotNull("No statistics for file system processor", fs);
+            assertTrue("Directories should have been processed", fs.getContainers() > 0);
+            assertEquals("Processor should have been called once", 1, fs.getCalls());
+            assertEquals(0, fs.getFailures());
+
         } catch (ProcessorException pe) {
             Throwable cause = Stacktrace.getBaseCause(pe);
             String info = "Failed to process test file system traversing: " + cause.getMessage();
@@ -78,4 +131,792 @@ public class ProcessingTest extends TestCase {
             fail(info);
         }
     }
+
+    @Test
+    public void testConcurrentProcessing() {
+        File directory = null;
+        try {
+            ProcessorManager manager = null;
+
+            try (InputStream config = getClass().getResourceAsStream("filesystem-processing-configuration.xml")) {
+                Properties properties = new Properties();
+                manager = new ProcessorManager(properties, config);
+                manager.prepare();
+            }
+
+            // A prepared manager may be used by several concurrent runs (over a tree that does
+            // not change while processed, as opposed to the working directory)
+            final ProcessorManager preparedManager = manager;
+            final File tree = directory = createTree();
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Map<String, Object>>> runs = new ArrayList<Future<Map<String, Object>>>();
+                for (int i = 0; i < 4; i++) {
+                    runs.add(executor.submit(new Callable<Map<String, Object>>() {
+                        public Map<String, Object> call() throws Exception {
+                            BasicProcessorContext context = new BasicProcessorContext(tree.getPath());
+                            preparedManager.apply(tree, context);
+
+                            Map<String, Object> information = new TreeMap<String, Object>();
+                            for (AssociatedInformation info : context.extractAssociatedInformation()) {
+                                information.put(info.getPath(), info.getValues());
+                            }
+                            return information;
+                        }
+                    }));
+                }
+
+                Map<String, Object> expected = null;
+                for (Future<Map<String, Object>> run : runs) {
+                    Map<String, Object> information = run.get();
+                    if (null == expected) {
+                        expected = information;
+                        assertEquals(60, expected.size());
+                    }
+                    assertEquals("Concurrent runs should yield the same results", expected, information);
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process file system concurrently: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentTraversal() {
+        File directory = null;
+        try {
+            directory = createTree();
+
+            String sequential = traverse(directory, "");
+            String concurrent = traverse(directory, " pool-size=\"4\" queue-depth=\"2\"");
+            assertEquals("Concurrent traversal should yield the same results", sequential, concurrent);
+
+            String mapped = traverse(directory, " memory-mapped=\"true\"");
+            assertEquals("Traversal of mapped files should yield the same results", sequential, mapped);
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to traverse file system concurrently: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedFiles() {
+        File file = null;
+        try {
+            // Large enough to be mapped (and not just read)
+            byte[] data = new byte[(int) MappedFileInputStream.MAP_THRESHOLD + 4711];
+            new Random(17L).nextBytes(data);
+
+            file = File.createTempFile("mapped-", ".raw");
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            }
+
+            try (MappedFileInputStream in = new MappedFileInputStream(file)) {
+                assertEquals(data.length, in.size());
+                assertEquals(1000, in.skip(1000));
+
+                // Duplicates read independently
+                assertTrue(Arrays.equals(data, readAll(in.duplicate())));
+                assertEquals(data[1000], (byte) in.read());
+
+                // Found through a counting stream
+                assertSame(in, MappedFileInputStream.from(new CountingInputStream(in)));
+                assertNull(MappedFileInputStream.from(new ByteArrayInputStream(data)));
+
+                // The channel is positioned where the stream is
+                FileChannel channel = in.getChannel();
+                assertEquals(1001L, channel.position());
+
+                ByteBuffer[] buffers = in.map();
+                assertEquals(1, buffers.length);
+                assertTrue(buffers[0].isReadOnly());
+                assertEquals(ByteBuffer.wrap(data), buffers[0]);
+
+                in.close();
+                assertFalse(channel.isOpen());
+            }
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to read mapped file: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != file) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testDigestCache() {
+        File directory = null;
+        File cacheDirectory = null;
+        try {
+            directory = createTree();
+            cacheDirectory = Files.createTempDirectory("digest-cache-").toFile();
+
+            String uncached = traverse(directory, "");
+            String attributes = " digest-cache=\"" + cacheDirectory.getPath() + "\"";
+
+            // Digests are calculated and cached by the first run, and taken from the cache by the next
+            assertEquals(uncached, traverse(directory, attributes));
+            DigestCache cache = DigestCache.of(cacheDirectory);
+            assertEquals(60, cache.size());
+            assertEquals(0L, cache.getHits());
+
+            assertEquals(uncached, traverse(directory, attributes));
+            assertEquals(60L, cache.getHits());
+
+            // ...and survive across runs (i.e. when the cache is opened anew)
+            assertEquals(60, new DigestCache(cacheDirectory).size());
+
+            // A file that changes without its size or time of modification being affected...
+            File file = new File(directory, "branch-1/leaf-2/file-3.xml");
+            long lastModified = file.lastModified();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write("<configuration><process id=\"999\"/></configuration>".getBytes("UTF-8"));
+            }
+            assertTrue(file.setLastModified(lastModified));
+
+            // ...is still trusted, unless verified
+            String trusted = traverse(directory, attributes);
+            assertFalse(trusted.contains("DIGEST-CACHE"));
+
+            String verified = traverse(directory, attributes + " digest-cache-sample=\"100\"");
+            assertTrue("Changed digests should be contested", verified.contains("DIGEST-CACHE"));
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to cache digests: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+            if (null != cacheDirectory) {
+                delete(cacheDirectory);
+            }
+        }
+    }
+
+    @Test
+    public void testDirectoryWatcher() {
+        File directory = null;
+        try {
+            directory = createTree();
+
+            String configuration = "<configuration xmlns:fs-processor=\"classpath:eu.ensure.packproc.fs.FileSystemProcessor\"";
+            configuration += " xmlns:xml-processor=\"classpath:eu.ensure.packproc.XmlFileProcessor\">";
+            configuration += "<fs-processor:process>";
+            configuration += "<xml-processor:process name-re=\".*?\\.xml\"><contains node=\"//process\"/></xml-processor:process>";
+            configuration += "</fs-processor:process></configuration>";
+
+            ProcessorManager manager = new ProcessorManager(
+                    new Properties(), new ByteArrayInputStream(configuration.getBytes("UTF-8"))
+            );
+            manager.prepare();
+
+            // Each batch is processed with a context of its own, so associations are observed through a sink
+            final Set<String> processed = ConcurrentHashMap.newKeySet();
+            final BasicProcessorContext context = new BasicProcessorContext(directory.getPath());
+            context.setAssociationSink((claimant, path, values) -> processed.add(path));
+            final DirectoryWatcher watcher = new DirectoryWatcher(manager, directory, /* debounce */ 100L);
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Void> watching = executor.submit(() -> {
+                    watcher.watch(context);
+                    return null;
+                });
+
+                // Files landing in existing as well as in new directories
+                File existing = new File(directory, "branch-0/leaf-0/landed.xml");
+                File landed = new File(directory, "branch-4/leaf-0/landed.xml");
+                assertTrue(landed.getParentFile().mkdirs());
+                for (File file : new File[] { existing, landed }) {
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        out.write("<configuration><process id=\"landed\"/></configuration>".getBytes("UTF-8"));
+                    }
+                }
+
+                long deadline = System.currentTimeMillis() + 20000L;
+                while ((!processed.contains(existing.getAbsolutePath()) || !processed.contains(landed.getAbsolutePath()))
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50L);
+                }
+                assertTrue("Created file should have been processed", processed.contains(existing.getAbsolutePath()));
+                assertTrue("File in created directory should have been processed", processed.contains(landed.getAbsolutePath()));
+
+                // Files that were already there are left alone
+                File untouched = new File(directory, "branch-1/leaf-1/file-1.xml");
+                assertFalse(processed.contains(untouched.getAbsolutePath()));
+
+                // ...and nothing accumulates in the watching context
+                assertNull(context.getAssociatedInformation(existing.getAbsolutePath()));
+                assertTrue(context.getChildren().isEmpty());
+
+                watcher.close();
+                watching.get(10, TimeUnit.SECONDS);
+
+            } finally {
+                executor.shutdownNow();
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to watch directory: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testProcessingPublisher() {
+        File directory = null;
+        try {
+            directory = createTree();
+
+            String configuration = "<configuration xmlns:fs-processor=\"classpath:eu.ensure.packproc.fs.FileSystemProcessor\"";
+            configuration += " xmlns:xml-processor=\"classpath:eu.ensure.packproc.XmlFileProcessor\">";
+            configuration += "<fs-processor:process pool-size=\"4\">";
+            configuration += "<xml-processor:process name-re=\".*?\\.xml\"><contains node=\"//process\"/></xml-processor:process>";
+            configuration += "</fs-processor:process></configuration>";
+
+            ProcessorManager manager = new ProcessorManager(
+                    new Properties(), new ByteArrayInputStream(configuration.getBytes("UTF-8"))
+            );
+            manager.prepare();
+
+            // A slow subscriber, requesting one event at a time
+            final List<ProcessingEvent> received = new Vector<ProcessingEvent>();
+            final AtomicLong outstanding = new AtomicLong();
+            final AtomicInteger overflows = new AtomicInteger();
+            final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+            ProcessingPublisher publisher = ProcessingPublisher.of(manager, directory, /* buffer size */ 4);
+            publisher.subscribe(new Flow.Subscriber<ProcessingEvent>() {
+                private Flow.Subscription subscription;
+
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    outstanding.incrementAndGet();
+                    subscription.request(1);
+                }
+
+                public void onNext(ProcessingEvent event) {
+                    if (outstanding.decrementAndGet() < 0) {
+                        overflows.incrementAndGet();
+                    }
+                    received.add(event);
+                    if (0 == received.size() % 10) {
+                        try {
+                            Thread.sleep(5L);
+                        } catch (InterruptedException ignore) {}
+                    }
+                    outstanding.incrementAndGet();
+                    subscription.request(1);
+                }
+
+                public void onError(Throwable throwable) {
+                    completion.completeExceptionally(throwable);
+                }
+
+                public void onComplete() {
+                    completion.complete(null);
+                }
+            });
+            completion.get(60, TimeUnit.SECONDS);
+
+            assertEquals("More events delivered than requested", 0, overflows.get());
+
+            // One entry event per file read, matching what was collected in the context
+            int entries = 0;
+            for (ProcessingEvent event : received) {
+                if (ProcessingEvent.Kind.ENTRY == event.getKind()) {
+                    entries++;
+                    assertNotNull(event.getValues().get("size"));
+                    assertNotNull(publisher.getContext().getAssociatedInformation(event.getPath()));
+                }
+            }
+            assertEquals(60, entries);
+
+            // A run is published only once
+            final CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+            publisher.subscribe(new Flow.Subscriber<ProcessingEvent>() {
+                public void onSubscribe(Flow.Subscription subscription) {}
+                public void onNext(ProcessingEvent event) {}
+                public void onError(Throwable throwable) { rejected.completeExceptionally(throwable); }
+                public void onComplete() { rejected.complete(null); }
+            });
+            assertTrue(rejected.isCompletedExceptionally());
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to publish processing: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testFileProcessing() {
+        File directory = null;
+        try {
+            directory = createTree();
+
+            // A file directly in a branch, as well as files in leaves of different branches
+            File branchFile = new File(directory, "branch-1/file-0.xml");
+            try (OutputStream out = new FileOutputStream(branchFile)) {
+                out.write("<configuration><process id=\"1\"/></configuration>".getBytes("UTF-8"));
+            }
+            List<File> files = new ArrayList<File>();
+            files.add(new File(directory, "branch-3/leaf-1/file-0.xml"));
+            files.add(new File(directory, "branch-1/leaf-2/file-3.xml"));
+            files.add(branchFile);
+            files.add(new File(directory, "branch-1/leaf-0/file-1.xml"));
+
+            // One context for each directory below the input node, as when traversing the file system
+            String expected = directory.getPath() + "\n";
+            expected += "  " + directory.getPath() + "\n";
+            expected += "    branch-1/\n";
+            expected += "      leaf-0/\n";
+            expected += "      leaf-2/\n";
+            expected += "    branch-3/\n";
+            expected += "      leaf-1/\n";
+
+            for (String attributes : new String[] { "", " pool-size=\"4\"" }) {
+                String configuration = "<configuration xmlns:fs-processor=\"classpath:eu.ensure.packproc.fs.FileSystemProcessor\"";
+                configuration += " xmlns:xml-processor=\"classpath:eu.ensure.packproc.XmlFileProcessor\">";
+                configuration += "<fs-processor:process" + attributes + ">";
+                configuration += "<xml-processor:process name-re=\".*?\\.xml\"><contains node=\"//process\"/></xml-processor:process>";
+                configuration += "</fs-processor:process></configuration>";
+
+                ProcessorManager manager = new ProcessorManager(
+                        new Properties(), new ByteArrayInputStream(configuration.getBytes("UTF-8"))
+                );
+                manager.prepare();
+
+                BasicProcessorContext context = new BasicProcessorContext(directory.getPath());
+                manager.apply(directory, files, context);
+
+                StringBuilder description = new StringBuilder();
+                describe(context, "", description);
+                assertEquals("Contexts of processed files" + attributes, expected, description.toString());
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process files: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    /*
+     * A file system tree of some width and depth, with times of modification in whole
+     * seconds (as some file systems keep them).
+     */
+    private static File createTree() throws IOException {
+        File directory = Files.createTempDirectory("traversal-").toFile();
+        for (int i = 0; i < 4; i++) {
+            File branch = new File(directory, "branch-" + i);
+            for (int j = 0; j < 3; j++) {
+                File leaf = new File(branch, "leaf-" + j);
+                assertTrue(leaf.mkdirs());
+                for (int k = 0; k < 5; k++) {
+                    File file = new File(leaf, "file-" + k + ".xml");
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        out.write(("<configuration><process id=\"" + i + j + k + "\"/></configuration>").getBytes("UTF-8"));
+                    }
+                    assertTrue(file.setLastModified(1000L * (file.lastModified() / 1000L)));
+                }
+            }
+        }
+        return directory;
+    }
+
+    /*
+     * Processes a directory, describing the resulting context hierarchy and associated information.
+     */
+    private String traverse(File directory, String attributes) throws Exception {
+        String configuration = "<configuration xmlns:fs-processor=\"classpath:eu.ensure.packproc.fs.FileSystemProcessor\"";
+        configuration += " xmlns:xml-processor=\"classpath:eu.ensure.packproc.XmlFileProcessor\">";
+        configuration += "<fs-processor:process" + attributes + ">";
+        configuration += "<xml-processor:process name-re=\".*?\\.xml\"><contains node=\"//process\"/></xml-processor:process>";
+        configuration += "</fs-processor:process></configuration>";
+
+        ProcessorManager manager = new ProcessorManager(
+                new Properties(), new ByteArrayInputStream(configuration.getBytes("UTF-8"))
+        );
+        manager.prepare();
+
+        ProcessingStatistics statistics = new ProcessingStatistics();
+        manager.setListener(statistics);
+
+        BasicProcessorContext context = new BasicProcessorContext(directory.getPath());
+        manager.apply(directory, context);
+        assertEquals(0, statistics.getStatistics("xml-processor").getFailures());
+        assertEquals(60, statistics.getStatistics("xml-processor").getCalls());
+
+        StringBuilder description = new StringBuilder();
+        describe(context, "", description);
+
+        Map<String, Object> information = new TreeMap<String, Object>();
+        for (AssociatedInformation info : context.extractAssociatedInformation()) {
+            information.put(info.getPath(), info.getValues());
+        }
+        description.append(information);
+        return description.toString();
+    }
+
+    private static void describe(ProcessorContext context, String indent, StringBuilder description) {
+        description.append(indent).append(context.getContextName()).append('\n');
+        for (ProcessorContext child : context.getChildren()) {
+            describe(child, indent + "  ", description);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testBatchProcessing() {
+        try {
+            ProcessorManager manager = null;
+
+            try (InputStream config = getClass().getResourceAsStream("filesystem-processing-configuration.xml")) {
+                Properties properties = new Properties();
+                manager = new ProcessorManager(properties, config);
+                manager.prepare();
+            }
+
+            // More packages than workers and queue slots, so that submitting blocks
+            File cwd = new File(System.getProperty("user.dir"));
+            List<BatchProcessor.PackageSource> sources = new ArrayList<BatchProcessor.PackageSource>();
+            for (int i = 0; i < 8; i++) {
+                sources.add(BatchProcessor.of(cwd));
+            }
+
+            List<Future<BatchProcessor.Result>> results;
+            try (BatchProcessor batch = manager.newBatch(/* workers */ 2, /* queue depth */ 1, /* unbounded */ 0L)) {
+                results = batch.submitAll(sources.iterator());
+            }
+
+            assertEquals(sources.size(), results.size());
+            Integer expected = null;
+            for (Future<BatchProcessor.Result> result : results) {
+                assertTrue("Batch should have completed", result.isDone());
+                int count = result.get().getAssociatedInformation().size();
+                if (null == expected) {
+                    expected = count;
+                }
+                assertEquals("Packages in batch should yield the same results", expected.intValue(), count);
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process batch: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    @Test
+    public void testStatementSink() {
+        try {
+            ProcessorManager manager = null;
+
+            try (InputStream config = getClass().getResourceAsStream("filesystem-processing-configuration.xml")) {
+                Properties properties = new Properties();
+                manager = new ProcessorManager(properties, config);
+                manager.prepare();
+            }
+
+            File cwd = new File(System.getProperty("user.dir"));
+
+            // Statements are collected unless a sink is set
+            BasicProcessorContext context = new BasicProcessorContext(cwd.getPath());
+            manager.apply(cwd, context);
+
+            int neutral = 0;
+            for (EvaluationStatement statement : context.extractEvaluationStatements()) {
+                if (EvaluationStatement.NEUTRAL == statement.getFactor()) {
+                    assertNotNull(statement.getStatement());
+                    ++neutral;
+                }
+            }
+            assertTrue("Neutral statements should have been made", neutral > 0);
+
+            // Only statements of interest are delivered to the sink
+            final List<EvaluationStatement> received = new Vector<EvaluationStatement>();
+            context = new BasicProcessorContext(cwd.getPath());
+            context.setStatementSink(StatementSinks.only(received::add, EvaluationStatement.NEUTRAL));
+            manager.apply(cwd, context);
+
+            assertEquals(neutral, received.size());
+            assertTrue("Statements should not be collected", context.extractEvaluationStatements().isEmpty());
+
+            received.clear();
+            context = new BasicProcessorContext(cwd.getPath());
+            context.setStatementSink(StatementSinks.only(received::add, EvaluationStatement.NEGATIVE));
+            manager.apply(cwd, context);
+
+            for (EvaluationStatement statement : received) {
+                assertEquals(EvaluationStatement.NEGATIVE, statement.getFactor());
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process file system: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    @Test
+    public void testParallelDigests() {
+        try {
+            // Digested on the reading thread (fewer than two algorithms) as well as by workers
+            String[][] algorithmSets = {
+                    { "MD5" },
+                    { "CRC32", "SHA-1" },
+                    { "CRC32", "MD5", "SHA-1", "SHA-256" }
+            };
+            Random random = new Random(4711L);
+
+            for (String[] algorithms : algorithmSets) {
+                // Empty, shorter than a chunk, exactly a chunk and more than fits in the ring
+                for (int size : new int[] { 0, 1000, 64 * 1024, 3 * 1024 * 1024 + 17 }) {
+                    byte[] data = new byte[size];
+                    random.nextBytes(data);
+
+                    // Mixing single byte and block reads, as well as only single byte reads
+                    for (boolean isBytewise : new boolean[] { false, true }) {
+                        ParallelDigestInputStream in = new ParallelDigestInputStream(algorithms, new ByteArrayInputStream(data));
+                        if (isBytewise) {
+                            while (in.read() >= 0) {
+                                // consume
+                            }
+                        } else {
+                            byte[] buf = new byte[1 + random.nextInt(20000)];
+                            if (in.read() >= 0) { // single byte reads are digested as well
+                                while (in.read(buf, 0, 1 + random.nextInt(buf.length)) >= 0) {
+                                    // consume
+                                }
+                            }
+                        }
+                        assertEquals(size, in.getSize());
+
+                        Map<String, byte[]> digests = in.getDigests();
+                        assertEquals(algorithms.length, digests.size());
+
+                        for (String algorithm : algorithms) {
+                            String info = algorithm + " (of " + algorithms.length + ") differs for size " + size;
+                            info += (isBytewise ? ", read bytewise" : "");
+                            if ("CRC32".equals(algorithm)) {
+                                CRC32 crc32 = new CRC32();
+                                crc32.update(data, 0, data.length);
+                                assertEquals(info, crc32.getValue(), ByteBuffer.wrap(digests.get(algorithm)).getLong());
+                            } else {
+                                byte[] expected = MessageDigest.getInstance(algorithm).digest(data);
+                                assertTrue(info, Arrays.equals(expected, digests.get(algorithm)));
+                            }
+                        }
+                        in.close();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to calculate digests: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    @Test
+    public void testParallelCompression() {
+        try {
+            Random random = new Random(4711L);
+
+            // Incompressible as well as compressible data, spanning several blocks
+            byte[] data = new byte[3 * 1024 * 1024];
+            random.nextBytes(data);
+            for (int i = data.length / 2; i < data.length; i++) {
+                data[i] = (byte) ('a' + (i % 577) % 26);
+            }
+
+            for (String name : new String[] { CompressorStreamFactory.GZIP, CompressorStreamFactory.BZIP2 }) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = Compression.compress(name, compressed, 4)) {
+                    out.write(data);
+                }
+
+                // Readable by ordinary (sequential) decompressors...
+                InputStream in = new BufferedInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+                assertEquals(name, Compression.detect(in));
+                assertTrue(name + " differs", Arrays.equals(data, readAll(
+                        new CompressorStreamFactory(/* decompressConcatenated */ true).createCompressorInputStream(name, in)
+                )));
+
+                // ...as well as in parallel
+                in = new ByteArrayInputStream(compressed.toByteArray());
+                assertTrue(name + " differs", Arrays.equals(data, readAll(Compression.decompress(name, in, 4))));
+            }
+
+            // Ordinary gzip and bzip2 streams are handled as well
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(data);
+            }
+            InputStream in = new ByteArrayInputStream(compressed.toByteArray());
+            assertTrue(Arrays.equals(data, readAll(Compression.decompress(CompressorStreamFactory.GZIP, in, 4))));
+
+            compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new BZip2CompressorOutputStream(compressed, 1)) {
+                out.write(data);
+            }
+            in = new ByteArrayInputStream(compressed.toByteArray());
+            assertTrue(Arrays.equals(data, readAll(Compression.decompress(CompressorStreamFactory.BZIP2, in, 4))));
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to (de-)compress: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    @Test
+    public void testResultCache() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("result-cache-").toFile();
+
+            Map<String, byte[]> digests = new HashMap<String, byte[]>();
+            digests.put("CRC32", new byte[] { 0, 0, 0, 0, 0x12, 0x34, 0x56, 0x78 });
+            assertNull("CRC32 alone should not identify contents", ResultCache.keyOf("x", "c", "e", 3L, digests));
+            digests.put("SHA-256", MessageDigest.getInstance("SHA-256").digest(new byte[] { 1, 2, 3 }));
+            String key = ResultCache.keyOf("x", "c", "e", 3L, digests);
+            assertNotNull(key);
+            assertFalse(key.equals(ResultCache.keyOf("x", "other", "e", 3L, digests)));
+
+            // Record what a processor associates...
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("size", "3");
+            values.put("format", "text/plain");
+
+            BasicProcessorContext context = new BasicProcessorContext("recording");
+            List<ResultCache.Association> previous = context.startRecording();
+            context.associate("X", "/content/e", "/content/e", values);
+            List<ResultCache.Association> recorded = context.stopRecording(previous);
+            assertEquals(1, recorded.size());
+
+            ResultCache cache = new ResultCache(directory);
+            assertNull(cache.lookup(key));
+            cache.store(key, recorded);
+            cache.flush();
+
+            // ...and a run that was interrupted while storing
+            try (OutputStream out = new FileOutputStream(new File(directory, "results.db"), /* append */ true)) {
+                out.write(new byte[] { 0, 0, 1, 0, 42 });
+            }
+
+            // Results survive across runs (i.e. when the cache is opened anew)
+            cache = new ResultCache(directory);
+            assertEquals(1, cache.size());
+            List<ResultCache.Association> results = cache.lookup(key);
+            assertNotNull(results);
+            assertEquals(1L, cache.getHits());
+
+            context = new BasicProcessorContext("replaying");
+            ResultCache.replay(results, context);
+            AssociatedInformation information = context.getAssociatedInformation("/content/e");
+            assertNotNull(information);
+            assertTrue(information.getValues().get("format").get("text/plain").contains("X"));
+            assertTrue(information.getValues().get("size").get("3").contains("X"));
+
+            // Incompletely written results were cut off, so appending works
+            cache.store(key + "-2", recorded);
+            cache.flush();
+            assertEquals(2, new ResultCache(directory).size());
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to cache results: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                File[] files = directory.listFiles();
+                if (null != files) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                out.write(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
 }
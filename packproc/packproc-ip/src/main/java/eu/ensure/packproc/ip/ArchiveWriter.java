@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.ip;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes to an archive output stream on a thread of its own, so that compression (i.e.
+ * deflation of ZIP entries) and writes to the underlying stream overlap with reading and
+ * processing the input.
+ * <p>
+ * Data is collected in buffers that are handed over to the writer thread when filled, along
+ * with entry boundaries, through a small bounded queue. Buffers are recycled once written,
+ * so a (fixed) number of buffers are in use at any time. Failures on the writer thread are
+ * reported by the next call made by the producer.
+ * <p>
+ * All methods (apart from the writer thread) are intended to be called from a single thread.
+ */
+class ArchiveWriter {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private interface Operation {
+        void apply(ArchiveOutputStream outputStream) throws IOException;
+    }
+
+    // Marks the end of operations
+    private static final Operation STOP = outputStream -> {};
+
+    private final ArchiveOutputStream outputStream;
+    private final BlockingQueue<Operation> operations;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final Thread writer;
+
+    private volatile IOException failure = null;
+
+    private byte[] buffer = null;
+    private int length = 0;
+    private boolean stopped = false;
+
+    ArchiveWriter(ArchiveOutputStream outputStream, int buffers, int bufferSize) {
+        this.outputStream = outputStream;
+        this.operations = new ArrayBlockingQueue<Operation>(2 * buffers);
+        this.freeBuffers = new ArrayBlockingQueue<byte[]>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            freeBuffers.add(new byte[bufferSize]);
+        }
+
+        writer = new Thread(this::run, "package-writer-" + threadCount.incrementAndGet());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void putArchiveEntry(final ArchiveEntry entry) throws IOException {
+        submitBuffer();
+        submit(out -> out.putArchiveEntry(entry));
+    }
+
+    void closeArchiveEntry() throws IOException {
+        submitBuffer();
+        submit(ArchiveOutputStream::closeArchiveEntry);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (null == buffer) {
+                buffer = take(freeBuffers);
+                length = 0;
+            }
+            int count = Math.min(len, buffer.length - length);
+            System.arraycopy(b, off, buffer, length, count);
+            length += count;
+            off += count;
+            len -= count;
+
+            if (length == buffer.length) {
+                submitBuffer();
+            }
+        }
+    }
+
+    /**
+     * Completes the archive, waiting for all operations to be carried out.
+     */
+    void finish() throws IOException {
+        submitBuffer();
+        submit(ArchiveOutputStream::finish);
+        await();
+    }
+
+    /**
+     * Waits for all operations to be carried out and flushes the archive output stream.
+     */
+    void flush() throws IOException {
+        submitBuffer();
+        submit(ArchiveOutputStream::flush);
+        await();
+    }
+
+    /**
+     * Stops the writer thread, once all operations have been carried out.
+     */
+    void close() throws IOException {
+        if (stopped) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            stopped = true;
+            try {
+                operations.put(STOP);
+                writer.join();
+            } catch (InterruptedException ie) {
+                writer.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void submitBuffer() throws IOException {
+        if (null == buffer) {
+            return;
+        }
+        final byte[] data = buffer;
+        final int count = length;
+        buffer = null;
+        length = 0;
+
+        if (0 == count) {
+            freeBuffers.add(data);
+            return;
+        }
+        submit(out -> {
+            try {
+                out.write(data, 0, count);
+            } finally {
+                freeBuffers.add(data);
+            }
+        });
+    }
+
+    private void submit(Operation operation) throws IOException {
+        checkFailure();
+        if (stopped) {
+            throw new IOException("Package writer is closed");
+        }
+        try {
+            operations.put(operation);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over to package writer");
+        }
+    }
+
+    private void await() throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        submit(out -> done.countDown());
+        try {
+            done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for package writer");
+        }
+        checkFailure();
+    }
+
+    private <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for package writer");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (null != failure) {
+            throw new IOException("Failed to write package: " + failure.getMessage(), failure);
+        }
+    }
+
+    /*
+     * The writer thread. Once an operation fails, remaining operations are passed over (apart
+     * from releasing buffers and waiting producers).
+     */
+    private void run() {
+        ArchiveOutputStream broken = new NullArchiveOutputStream();
+        for (;;) {
+            Operation operation;
+            try {
+                operation = operations.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (STOP == operation) {
+                return;
+            }
+
+            try {
+                operation.apply(null == failure ? outputStream : broken);
+            } catch (IOException ioe) {
+                failure = ioe;
+            } catch (RuntimeException re) {
+                failure = new IOException(re.getMessage(), re);
+            }
+        }
+    }
+
+    /*
+     * Stands in for the archive output stream once writing failed.
+     */
+    private static class NullArchiveOutputStream extends ArchiveOutputStream {
+        public void putArchiveEntry(ArchiveEntry entry) {}
+        public void closeArchiveEntry() {}
+        public void finish() {}
+        public ArchiveEntry createArchiveEntry(File inputFile, String entryName) {
+            return null;
+        }
+        public void write(byte[] b, int off, int len) {}
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.ip;
+
+import eu.ensure.packproc.internal.SpoolBuffer;
+import eu.ensure.packproc.model.StructureEntry;
+import eu.ensure.packproc.model.StructureOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A structure output stream that records entries (and their contents) instead of
+ * writing them, so that they later may be replayed onto the real output stream.
+ * <p>
+ * Used when entries are processed concurrently, so that the processed entries
+ * can be written to the output package in their original order.
+ */
+class DeferredOutputStream extends StructureOutputStream {
+
+    private static class DeferredEntry {
+        private final StructureEntry entry;
+        private final boolean isReplacement;
+        private final SpoolBuffer data;
+
+        private DeferredEntry(StructureEntry entry, boolean isReplacement, SpoolBuffer data) {
+            this.entry = entry;
+            this.isReplacement = isReplacement;
+            this.data = data;
+        }
+    }
+
+    private final String prefix;
+    private final int threshold;
+
+    private final List<DeferredEntry> entries = new LinkedList<DeferredEntry>();
+    private DeferredEntry current = null;
+
+    DeferredOutputStream(String prefix, int threshold) {
+        this.prefix = prefix;
+        this.threshold = threshold;
+    }
+
+    /*
+     * These are StructureOutputStream methods
+     */
+    public void copyEntry(StructureEntry entry) throws IOException {
+        beginEntry(entry, false);
+    }
+
+    public void replaceEntry(StructureEntry entry, File file) throws IOException {
+        // The file is (typically) temporary and will be gone by the time we replay,
+        // so we use the data written to this stream instead (held in memory if small).
+        beginEntry(entry, true);
+    }
+
+    public void closeEntry() throws IOException {
+        if (null != current) {
+            current.data.close();
+            current = null;
+        }
+    }
+
+    /*
+     * Here follows standard OutputStream methods
+     */
+    public void write(int b) throws IOException {
+        currentData().write(b);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        currentData().write(b, off, len);
+    }
+
+    /**
+     * Writes recorded entries onto the real output stream, in the order they were recorded.
+     * Replaced entries keep the attributes of the original entries, exactly as when written
+     * directly to the package output stream.
+     */
+    void replayOnto(PackageOutputStream outputStream) throws IOException {
+        closeEntry();
+        for (DeferredEntry deferred : entries) {
+            if (deferred.isReplacement) {
+                outputStream.replaceEntry(deferred.entry, deferred.data.size());
+            } else {
+                outputStream.copyEntry(deferred.entry);
+            }
+            try {
+                deferred.data.writeTo(outputStream);
+            } finally {
+                outputStream.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of recorded bytes that did not fit in memory.
+     */
+    long spilledBytes() {
+        long bytes = 0L;
+        for (DeferredEntry deferred : entries) {
+            if (deferred.data.isSpilled()) {
+                bytes += deferred.data.size();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases buffered contents, removing any temporary files.
+     */
+    void dispose() {
+        for (DeferredEntry deferred : entries) {
+            deferred.data.dispose();
+        }
+        entries.clear();
+        current = null;
+    }
+
+    private void beginEntry(StructureEntry entry, boolean isReplacement) throws IOException {
+        closeEntry();
+        current = new DeferredEntry(entry, isReplacement, new SpoolBuffer(prefix, threshold));
+        entries.add(current);
+    }
+
+    private SpoolBuffer currentData() throws IOException {
+        if (null == current) {
+            throw new IOException("No current entry to write to");
+        }
+        return current.data;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.ip;
+
+import eu.ensure.packproc.ProcessorException;
+import eu.ensure.packproc.ProcessorManager;
+import eu.ensure.packproc.internal.Action;
+import eu.ensure.packproc.internal.FileTool;
+import eu.ensure.packproc.internal.ResultCache;
+import eu.ensure.packproc.internal.SpoolBuffer;
+import eu.ensure.packproc.model.ProcessingListener;
+import eu.ensure.packproc.model.ProcessorContext;
+import eu.ensure.packproc.model.StructureEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands entries over to a bounded pool of workers and writes the outcome
+ * to the output package in the original order of the entries.
+ * <p>
+ * All methods are intended to be called from the thread reading the package,
+ * which is also the only thread writing to the output package.
+ */
+class EntrySequencer {
+    private static final Logger log = LogManager.getLogger(EntrySequencer.class);
+
+    private final String alias;
+    private final ProcessorManager manager;
+    private final PackageOutputStream outputStream; // null for read-only calls
+    private final ResultCache resultCache; // null if results are not cached
+
+    private final int capacity;
+    private final int spoolThreshold;
+
+    private final ThreadPoolExecutor executor;
+
+    // Entries in original order, either being processed or already processed
+    // but not yet written.
+    private final LinkedList<Future<DeferredOutputStream>> pending = new LinkedList<Future<DeferredOutputStream>>();
+
+    EntrySequencer(
+            String alias, ProcessorManager manager, PackageOutputStream outputStream, ResultCache resultCache,
+            int poolSize, int queueDepth, int spoolThreshold
+    ) {
+        this.alias = alias;
+        this.manager = manager;
+        this.outputStream = outputStream;
+        this.resultCache = resultCache;
+        this.capacity = poolSize + queueDepth;
+        this.spoolThreshold = spoolThreshold;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, alias + "-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Whether there are entries that have not yet been written.
+     */
+    boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Processes a (spooled) entry on a worker thread. Blocks if too many entries are pending.
+     * The spooled contents are disposed of when processed. Results are looked up in (and
+     * stored in) the result cache under the key, unless null.
+     */
+    void submit(
+            final Action action, final StructureEntry entry, final SpoolBuffer contents, final ProcessorContext context,
+            final String resultKey
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        try {
+            awaitCapacity();
+        } catch (IOException | ProcessorException | ClassNotFoundException e) {
+            contents.dispose();
+            throw e;
+        }
+
+        pending.add(executor.submit(() -> {
+            DeferredOutputStream deferred = null;
+            if (null != outputStream) {
+                deferred = new DeferredOutputStream(alias + "-", spoolThreshold);
+            }
+            try (InputStream entryInputStream = contents.getInputStream()) {
+                manager.applyOnEntry(
+                        action, entry, entryInputStream, deferred, context, resultCache, resultKey
+                );
+                return deferred;
+
+            } catch (Exception e) {
+                if (null != deferred) deferred.dispose();
+                throw e;
+
+            } finally {
+                contents.dispose();
+            }
+        }));
+
+        writeCompleted();
+    }
+
+    /**
+     * Copies an (unprocessed) entry to the output package, behind any pending entries.
+     */
+    void copy(
+            StructureEntry entry, InputStream entryInputStream
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        FileTool fileTool = new FileTool(alias);
+        if (pending.isEmpty()) {
+            fileTool.copyEntry(entry, entryInputStream, outputStream);
+            return;
+        }
+
+        awaitCapacity();
+
+        DeferredOutputStream deferred = new DeferredOutputStream(alias + "-", spoolThreshold);
+        try {
+            fileTool.copyEntry(entry, entryInputStream, deferred);
+        } catch (IOException | ProcessorException e) {
+            deferred.dispose();
+            throw e;
+        }
+        pending.add(CompletableFuture.completedFuture(deferred));
+
+        writeCompleted();
+    }
+
+    /**
+     * Waits for all pending entries and writes them to the output package.
+     */
+    void drain() throws IOException, ProcessorException, ClassNotFoundException {
+        while (!pending.isEmpty()) {
+            writeFirst();
+        }
+    }
+
+    /**
+     * Releases the workers. Any pending entries (due to an earlier failure) are discarded.
+     */
+    void close() {
+        try {
+            while (!pending.isEmpty()) {
+                Future<DeferredOutputStream> future = pending.removeFirst();
+                try {
+                    DeferredOutputStream deferred = future.get();
+                    if (null != deferred) deferred.dispose();
+                } catch (ExecutionException ignore) {
+                    // Already reported by the processor manager
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void awaitCapacity() throws IOException, ProcessorException, ClassNotFoundException {
+        while (pending.size() >= capacity) {
+            writeFirst();
+        }
+    }
+
+    private void writeCompleted() throws IOException, ProcessorException, ClassNotFoundException {
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+            writeFirst();
+        }
+    }
+
+    private void writeFirst() throws IOException, ProcessorException, ClassNotFoundException {
+        Future<DeferredOutputStream> future = pending.removeFirst();
+
+        DeferredOutputStream deferred;
+        try {
+            deferred = future.get();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ProcessorException("Interrupted while waiting for entry to be processed", ie);
+
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof ProcessorException) {
+                throw (ProcessorException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            } else {
+                String info = "Failed to process entry: " + cause.getMessage();
+                log.warn(info);
+                throw new ProcessorException(info, cause);
+            }
+        }
+
+        if (null != deferred) {
+            ProcessingListener listener = manager.getListener();
+            if (null != listener) {
+                long spilledBytes = deferred.spilledBytes();
+                if (spilledBytes > 0L) {
+                    listener.spilled(alias, spilledBytes);
+                }
+            }
+            try {
+                deferred.replayOnto(outputStream);
+            } finally {
+                deferred.dispose();
+            }
+        }
+    }
+}
@@ -38,13 +38,20 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
 public class PackageOutputStream extends StructureOutputStream {
 
+    // Buffers handed over to the writer thread, when writing asynchronously
+    private static final int WRITER_BUFFERS = 4;
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+
 	private ArchiveOutputStream outputStream = null;
+    private ArchiveWriter writer = null; // if writing asynchronously
+    private boolean isFinished = false;
 	
     public PackageOutputStream(ArchiveOutputStream aos) throws IllegalArgumentException {
 		if (null == aos) {
@@ -53,32 +60,98 @@ public class PackageOutputStream extends StructureOutputStream {
         outputStream = aos;
     }
 
+    /**
+     * Creates a package output stream that (optionally) writes to the archive output stream
+     * on a thread of its own, so that compression and writes overlap with the producer.
+     */
+    public PackageOutputStream(ArchiveOutputStream aos, boolean writeAsynchronously) throws IllegalArgumentException {
+        this(aos);
+        if (writeAsynchronously) {
+            writer = new ArchiveWriter(aos, WRITER_BUFFERS, WRITER_BUFFER_SIZE);
+        }
+    }
+
+    private void putArchiveEntry(ArchiveEntry entry) throws IOException {
+        if (null != writer) {
+            writer.putArchiveEntry(entry);
+        } else {
+            outputStream.putArchiveEntry(entry);
+        }
+    }
+
     /*
      * These are StructureOutputStream methods
      */
     public void copyEntry(StructureEntry entry) throws IOException {
         if (entry instanceof PackageEntry) {
-            outputStream.putArchiveEntry((ArchiveEntry)entry.getWrappedObject());
+            ArchiveEntry archiveEntry = (ArchiveEntry)entry.getWrappedObject();
+            if (archiveEntry instanceof ZipArchiveEntry) {
+                // The ZIP output stream updates sizes (and such) of the entry when it is closed, but
+                // the entry is shared with the input stream that still depends on the original values.
+                archiveEntry = new ZipArchiveEntry((ZipArchiveEntry) archiveEntry);
+            }
+            putArchiveEntry(archiveEntry);
         } else {
             throw new IOException("Incompatible entry: " + entry.getClass().getName());
         }
     }
 
+    /**
+     * Replaces an entry with the contents of a (typically temporary) file, which are
+     * then written to this stream. The replacement keeps the attributes (such as the
+     * time of modification) of the original entry, so that the package does not depend
+     * on when or where the entry was processed.
+     */
     public void replaceEntry(StructureEntry entry, File file) throws IOException {
+        replaceEntry(entry, file.length());
+    }
+
+    /**
+     * Replaces an entry with contents that are written directly to this stream,
+     * rather than being taken from a file. If the size of the replacement is not
+     * known up front (size &lt; 0), the output format must not depend on it, i.e.
+     * {@link #needsSizeBeforeData()} must return false.
+     */
+    public void replaceEntry(StructureEntry entry, long size) throws IOException {
         if (entry instanceof PackageEntry) {
-            // Well, at least we have encapsulated these specifics in this adapter
+            ArchiveEntry original = (ArchiveEntry)entry.getWrappedObject();
+            Date lastModified = null != original ? original.getLastModifiedDate() : null;
+            if (null == lastModified) {
+                lastModified = new Date();
+            }
+
             ArchiveEntry replacement = null;
             if (outputStream instanceof TarArchiveOutputStream) {
-                replacement = new TarArchiveEntry(file, entry.getName());
+                if (size < 0) {
+                    throw new IOException("Size of TAR entry must be known up front: " + entry.getName());
+                }
+                TarArchiveEntry tare = new TarArchiveEntry(entry.getName());
+                if (original instanceof TarArchiveEntry) {
+                    TarArchiveEntry orig = (TarArchiveEntry) original;
+                    tare.setMode(orig.getMode());
+                    tare.setUserName(orig.getUserName());
+                    tare.setGroupName(orig.getGroupName());
+                    tare.setUserId(orig.getLongUserId());
+                    tare.setGroupId(orig.getLongGroupId());
+                }
+                tare.setModTime(lastModified);
+                tare.setSize(size);
+                replacement = tare;
             }
             else if (outputStream instanceof JarArchiveOutputStream) {
                 JarArchiveEntry jarrr = new JarArchiveEntry(entry.getName());
-                jarrr.setSize(file.length());
+                if (size >= 0) {
+                    jarrr.setSize(size);
+                }
+                jarrr.setTime(lastModified.getTime());
                 replacement = jarrr;
             }
             else if (outputStream instanceof ZipArchiveOutputStream) {
                 ZipArchiveEntry zipe = new ZipArchiveEntry(entry.getName());
-                zipe.setSize(file.length());
+                if (size >= 0) {
+                    zipe.setSize(size);
+                }
+                zipe.setTime(lastModified.getTime());
                 replacement = zipe;
             }
             else {
@@ -86,37 +159,86 @@ public class PackageOutputStream extends StructureOutputStream {
                 Exception syntheticException = new Exception(info); // just to get a stack trace
                 throw new UnsupportedOperationException(info, syntheticException);
             }
-            outputStream.putArchiveEntry(replacement);
+            putArchiveEntry(replacement);
         } else {
             throw new IOException("Incompatible entry: " + entry.getClass().getName());
         }
     }
 
+    /**
+     * Indicates whether the size of an entry has to be known before writing its
+     * contents, which is the case with TAR (where the header precedes the data)
+     * but not with ZIP (where sizes may follow in a data descriptor).
+     */
+    public boolean needsSizeBeforeData() {
+        return !(outputStream instanceof ZipArchiveOutputStream);
+    }
+
     public void closeEntry() throws IOException {
-        outputStream.closeArchiveEntry();
+        if (null != writer) {
+            writer.closeArchiveEntry();
+        } else {
+            outputStream.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Completes the package, writing any trailing structures (such as the ZIP
+     * central directory or the TAR end-of-archive blocks), without closing the
+     * underlying stream.
+     */
+    public void finish() throws IOException {
+        if (!isFinished) {
+            isFinished = true;
+            if (null != writer) {
+                writer.finish();
+            } else {
+                outputStream.finish();
+            }
+        }
     }
 
     /*
      * Here follows standard OutputStream methods
      */
     public void write(int b) throws IOException {
-        outputStream.write(b);
+        if (null != writer) {
+            writer.write(new byte[] { (byte) b }, 0, 1);
+        } else {
+            outputStream.write(b);
+        }
     }
 
     public void write(byte b[]) throws IOException {
-        outputStream.write(b);
+        write(b, 0, b.length);
     }
 
     public void write(byte b[], int off, int len) throws IOException {
-        outputStream.write(b, off, len);
+        if (null != writer) {
+            writer.write(b, off, len);
+        } else {
+            outputStream.write(b, off, len);
+        }
     }
 
     public void flush() throws IOException {
-        outputStream.flush();
+        if (null != writer) {
+            writer.flush();
+        } else {
+            outputStream.flush();
+        }
     }
 
+    /**
+     * Flushes, but does not close, the underlying stream. When writing asynchronously,
+     * the writer thread is stopped.
+     */
     public void close() throws IOException {
-        outputStream.flush();
+        if (null != writer) {
+            writer.close();
+        } else {
+            outputStream.flush();
+        }
     }
 
     /*
@@ -129,6 +251,12 @@ public class PackageOutputStream extends StructureOutputStream {
     private static final Pattern PATTERN = Pattern.compile(RE, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
     public static PackageOutputStream createOutputStreamFrom(ArchiveInputStream is, OutputStream os) throws ArchiveException {
+        return createOutputStreamFrom(is, os, false);
+    }
+
+    public static PackageOutputStream createOutputStreamFrom(
+            ArchiveInputStream is, OutputStream os, boolean writeAsynchronously
+    ) throws ArchiveException {
         // We will only wrap existing output streams
         if (null == os) {
             return null;
@@ -138,10 +266,12 @@ public class PackageOutputStream extends StructureOutputStream {
         if (m.find())
         {
             String archiver = m.group(1);
-            return new PackageOutputStream(factory.createArchiveOutputStream(archiver, os));
+            return new PackageOutputStream(factory.createArchiveOutputStream(archiver, os), writeAsynchronously);
         }
 
         // As some kind of default, create a TAR archive
-        return new PackageOutputStream(factory.createArchiveOutputStream(ArchiveStreamFactory.TAR, os));
+        return new PackageOutputStream(
+                factory.createArchiveOutputStream(ArchiveStreamFactory.TAR, os), writeAsynchronously
+        );
     }
 }
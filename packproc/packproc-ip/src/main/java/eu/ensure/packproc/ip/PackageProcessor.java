@@ -25,30 +25,46 @@
  */
 package eu.ensure.packproc.ip;
 
-import org.gautelis.vopn.io.MultiDigestInputStream;
 import org.gautelis.vopn.lang.Number;
-import eu.ensure.packproc.BasicProcessorContext;
 import eu.ensure.packproc.ProcessorException;
 import eu.ensure.packproc.ProcessorManager;
 import eu.ensure.packproc.internal.Action;
+import eu.ensure.packproc.internal.ActionIndex;
+import eu.ensure.packproc.internal.ChannelRangeInputStream;
+import eu.ensure.packproc.internal.Compression;
 import eu.ensure.packproc.internal.FileTool;
+import eu.ensure.packproc.internal.NonClosingOutputStream;
+import eu.ensure.packproc.internal.ParallelDigestInputStream;
+import eu.ensure.packproc.internal.ResultCache;
+import eu.ensure.packproc.internal.SpoolBuffer;
+import eu.ensure.packproc.internal.SubInputStream;
 import eu.ensure.packproc.model.*;
 import org.apache.axiom.om.OMElement;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Operates on file container streams
  */
-public class PackageProcessor implements ContainerStructureProcessor {
+public class PackageProcessor implements RandomAccessStructureProcessor {
     private static final Logger log = LogManager.getLogger(PackageProcessor.class);
 
     private String alias = "ip-processor"; // a reasonable default
@@ -69,16 +85,54 @@ public class PackageProcessor implements ContainerStructureProcessor {
 
     // Sub-processors (actions)
     private List<Action> actions = new Vector<Action>();
+    private ActionIndex actionIndex = new ActionIndex(actions);
 
     //
-    // If a package in addition to being read and processed is also modified, i.e.
-    // we are not writing the same entries to an (optional) output stream, we must
-    // track changes to the package. Changes such as adding files, removing files or
-    // directories must be tracked so that we do not accidentally write the originals
-    // to the output stream.
+    // Entries may optionally be processed concurrently, in which case matched entries are
+    // spooled (in memory if small enough, else to file) and handed over to a pool of workers.
+    // The number of workers is specified through the 'pool-size' attribute and the number of
+    // entries that may wait for a worker through the 'queue-depth' attribute. Processed entries
+    // are written to the output package in their original order.
     //
-    private final Set<String> addedEntries = new HashSet<String>();
-    private final Set<String> removedEntries = new HashSet<String>();
+    private static final int SPOOL_THRESHOLD = 1024 * 1024; // bytes kept in memory per entry
+
+    private int poolSize = 1; // i.e. sequential processing
+    private int queueDepth = 0;
+
+    // Digest algorithms calculated for each entry, as specified through the 'digests'
+    // attribute (e.g. digests="MD5, SHA-256"). Each algorithm is calculated by a worker of its own.
+    private String[] digestAlgorithms = ParallelDigestInputStream.DEFAULT_ALGORITHMS;
+
+    // When verifying fixity (the 'verify-fixity' attribute), entries for which checksums have
+    // already been declared (i.e. by the manifest) are digested using the declared algorithms only.
+    // The calculated values are checked against the declared ones as soon as each entry is read.
+    // If processed concurrently, each entry matched by an action is therefore processed before
+    // the next entry is read.
+    private boolean verifyFixity = false;
+
+    // Whether (uncompressed) TAR-files in the file system are indexed (the 'tar-index' attribute),
+    // so that later runs may locate matched entries directly instead of reading the whole package.
+    // The attribute is either "true", in which case indexes are kept in memory only, or names a
+    // directory in which indexes are also persisted.
+    private boolean useTarIndex = false;
+    private File tarIndexDirectory = null;
+
+    // Compressed packages (e.g. .tar.gz or .tar.bz2) are decompressed, and when processing
+    // a package into a new one, the new package is compressed likewise. Gzip (if blocked) and
+    // bzip2 are decompressed by several threads concurrently, as specified through the
+    // 'compression-threads' attribute. The same goes for compression.
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+    // Results of file processors on entries may be kept across runs in a result cache, located
+    // in the directory specified through the 'result-cache' attribute. Entries that are unchanged
+    // since an earlier run (same name, size and digests) are then not processed again, but the
+    // information associated by the processor is replayed. Only used for read-only processing.
+    private ResultCache resultCache = null;
+
+    // When processing a package into a new one, the new package may be written on a thread of
+    // its own (the 'async-output' attribute), so that compression and writes overlap with reading
+    // and processing the input package.
+    private boolean writeAsynchronously = false;
 
 
     public PackageProcessor() {
@@ -104,10 +158,60 @@ public class PackageProcessor implements ContainerStructureProcessor {
         this.configText = text;
         this.alias = alias;
         this.outerProcessors = outerProcessors;
+
+        this.digestAlgorithms = ParallelDigestInputStream.algorithmsFrom(attributes.get("digests"));
+        this.verifyFixity = Boolean.parseBoolean(attributes.get("verify-fixity"));
+
+        String tarIndex = attributes.get("tar-index");
+        if (null != tarIndex && tarIndex.trim().length() > 0 && !"false".equalsIgnoreCase(tarIndex.trim())) {
+            this.useTarIndex = true;
+            if (!"true".equalsIgnoreCase(tarIndex.trim())) {
+                this.tarIndexDirectory = new File(tarIndex.trim());
+            }
+        }
+
+        this.writeAsynchronously = Boolean.parseBoolean(attributes.get("async-output"));
+
+        this.poolSize = getPositiveInteger(attributes, "pool-size", 1);
+        this.queueDepth = getPositiveInteger(attributes, "queue-depth", this.poolSize);
+        this.compressionThreads = getPositiveInteger(
+                attributes, "compression-threads", Runtime.getRuntime().availableProcessors()
+        );
+
+        String cacheDirectory = attributes.get("result-cache");
+        if (null != cacheDirectory && cacheDirectory.trim().length() > 0) {
+            try {
+                this.resultCache = ResultCache.of(new File(cacheDirectory.trim()));
+            } catch (IOException ioe) {
+                String info = "Could not open result cache in \"" + cacheDirectory + "\": " + ioe.getMessage();
+                info += " - processing without";
+                log.warn(me() + ": " + info);
+            }
+        }
+    }
+
+    private int getPositiveInteger(Map<String, String> attributes, String name, int defaultValue) {
+        String value = attributes.get(name);
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException ignore) {
+        }
+
+        String info = "Invalid value for attribute \"" + name + "\": \"" + value + "\"";
+        info += " - using " + defaultValue;
+        log.warn(me() + ": " + info);
+        return defaultValue;
     }
 
     public void define(List<Action> actions) {
         this.actions = actions;
+        this.actionIndex = new ActionIndex(actions);
     }
 
     public List<Action> getActions() {
@@ -126,55 +230,106 @@ public class PackageProcessor implements ContainerStructureProcessor {
         REMOVED
     }
 
-    /**
-     * Tracks structural changes to an information package.
-     * <p>
-     * Entries in a package may not be ordered, which is typically the case with entries in ZIP-files,
-     * so that additional files may be appended to existing entries. We need to handle this kind of
-     * behavior.
+    /*
+     * Create a package-relative path from the entry name
+     */
+    private static String packageRelativePath(String entryName) {
+        File top = new File("/");
+        File contentStream = top; // starting point relative to top
+
+        // ...and reassemble
+        int start = entryName.startsWith("/") ? 0 : 1; /* skip [example1]/content/... */
+
+        String[] parts = entryName.split("/");
+        for (int i=start; i < parts.length; i++) {
+            contentStream = new File(contentStream, parts[i]);
+        }
+        return contentStream.getPath().replace("\\", "/"); // in case we're on Windoze
+    }
+
+    /*
+     * Algorithms of the checksums already declared for this path (typically by the manifest),
+     * or the configured algorithms if none has been declared (yet).
+     */
+    private String[] declaredAlgorithms(String path, ProcessorContext context) {
+        AssociatedInformation info = context.getAssociatedInformation(path);
+        if (null != info) {
+            List<String> declared = new ArrayList<String>();
+            for (String key : info.getValues().keySet()) {
+                if (ParallelDigestInputStream.isSupported(key)) {
+                    declared.add(key);
+                }
+            }
+            if (!declared.isEmpty()) {
+                if (log.isDebugEnabled()) {
+                    log.debug(me() + ": verifying " + path + " using " + declared);
+                }
+                return declared.toArray(new String[declared.size()]);
+            }
+        }
+        return digestAlgorithms;
+    }
+
+    /*
+     * Associates _actual_ values with the entry, i.e. calculated checksums and calculated byte lengths.
      */
-    public void trackStructuralChange(String path, StructuralModificationType modification) {
-        switch (modification) {
-            case REMOVED:
-                removedEntries.add(path);
-                break;
-
-            case ADDED:
-                String[] parts = path.split("[\\\\/]");
-                if (parts.length > 0) {
-                    String partial = "";
-                    for (int i=0; i<parts.length-1; i++) {
-                        partial += parts[i];
-                        partial += "/"; // The POSIX separator is never wrong!
-
-                        addedEntries.add(partial);
+    private static void associateCalculatedInformation(
+            String entryName, ParallelDigestInputStream entryInputStream, ProcessorContext context
+    ) throws IOException {
+        // Collect bitstream information
+        Map<String, String> bitstreamInfo = new HashMap<String, String>();
+
+        // OBSERVE: The following might not be completely valid in all circumstances,
+        // as InputStream.getSize() only returns the number of bytes that you can read
+        // and not necessarily the number of bytes in the stream. But in this case,
+        // I believe it to be valid...
+        if (entryInputStream.getSize() > 0) {
+            bitstreamInfo.put("size", "" + entryInputStream.getSize());
+
+            Map<String, byte[]> digests = entryInputStream.getDigests();
+            for (String key : digests.keySet()) {
+                byte[] digest = digests.get(key);
+
+                if (digest.length == 8) {
+                    ByteBuffer buf = ByteBuffer.wrap(digest);
+                    String value = "" + buf.getLong();
+                    bitstreamInfo.put(key, value);
+                } else {
+                    StringBuffer hexString = new StringBuffer();
+                    for (int i=0;i<digest.length;i++) {
+                        hexString.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+                        hexString.append(Character.forDigit(digest[i] & 0xF, 16));
                     }
+                    String value = hexString.toString();
+                    bitstreamInfo.put(key, value);
                 }
-                break;
+            }
+
+            String[] parts = entryName.split("/");
+            bitstreamInfo.put("fileName", parts[parts.length-1]);
+
+            String path = packageRelativePath(entryName);
+            context.associate("CALCULATED", path, path, bitstreamInfo);
         }
     }
 
-    private void reportAddedEntry(String path) {
+    private void reportAddedEntry(String path, PackageProcessorContext context, ProcessorContext outerContext) {
         if (outerProcessors.empty()) {
-            trackStructuralChange(path, StructuralModificationType.ADDED);
+            context.trackStructuralChange(path, StructuralModificationType.ADDED);
         }
-        else {
-            Processor parent = outerProcessors.peek();
-            if (null != parent && parent instanceof PackageProcessor) {
-                ((PackageProcessor)parent).trackStructuralChange(path, StructuralModificationType.ADDED);
-            }
+        else if (outerContext instanceof PackageProcessorContext) {
+            // The encompassing package is being processed by a (parent) package processor
+            ((PackageProcessorContext)outerContext).trackStructuralChange(path, StructuralModificationType.ADDED);
         }
     }
 
-    private void reportRemovedEntry(String path) {
+    private void reportRemovedEntry(String path, PackageProcessorContext context, ProcessorContext outerContext) {
         if (outerProcessors.empty()) {
-            trackStructuralChange(path, StructuralModificationType.REMOVED);
+            context.trackStructuralChange(path, StructuralModificationType.REMOVED);
         }
-        else {
-            Processor parent = outerProcessors.peek();
-            if (null != parent && parent instanceof PackageProcessor) {
-                ((PackageProcessor)parent).trackStructuralChange(path, StructuralModificationType.REMOVED);
-            }
+        else if (outerContext instanceof PackageProcessorContext) {
+            // The encompassing package is being processed by a (parent) package processor
+            ((PackageProcessorContext)outerContext).trackStructuralChange(path, StructuralModificationType.REMOVED);
         }
     }
 
@@ -217,19 +372,52 @@ public class PackageProcessor implements ContainerStructureProcessor {
     public void process(String name, InputStream inputStream, OutputStream outputStream, ProcessorContext context)
             throws IOException, ArchiveException, ProcessorException, ClassNotFoundException {
 
-        BasicProcessorContext basicContext = context.push(new BasicProcessorContext(name));
+        PackageProcessorContext basicContext = context.push(new PackageProcessorContext(name));
         boolean isMutableCall = null != outputStream;
 
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+        }
+
         ArchiveInputStream archiveInputStream = null;
         PackageOutputStream archiveOutputStream = null;
+        OutputStream compressedOutputStream = null;
+        EntrySequencer sequencer = null;
         try {
             // Package readers and writers
-            archiveInputStream = factory.createArchiveInputStream(
-                    new BufferedInputStream(inputStream)
-            );
+            InputStream packageInputStream = new BufferedInputStream(inputStream);
+            String compression = Compression.detect(packageInputStream);
+            if (null != compression) {
+                if (log.isDebugEnabled()) {
+                    log.debug(me() + ": Decompressing " + compression + " package " + name);
+                }
+                packageInputStream = new BufferedInputStream(
+                        Compression.decompress(compression, packageInputStream, compressionThreads)
+                );
+            }
+            archiveInputStream = factory.createArchiveInputStream(packageInputStream);
 
             if (isMutableCall) {
-                archiveOutputStream = PackageOutputStream.createOutputStreamFrom(archiveInputStream, outputStream);
+                if (null != compression) {
+                    // Compress the new package likewise
+                    compressedOutputStream = Compression.compress(
+                            compression, new NonClosingOutputStream(outputStream), compressionThreads
+                    );
+                    outputStream = compressedOutputStream;
+                }
+                archiveOutputStream = PackageOutputStream.createOutputStreamFrom(
+                        archiveInputStream, outputStream, writeAsynchronously
+                );
+            }
+
+            if (poolSize > 1) {
+                sequencer = new EntrySequencer(
+                        alias, manager, archiveOutputStream, isMutableCall ? null : resultCache,
+                        poolSize, queueDepth, SPOOL_THRESHOLD
+                );
             }
 
             // Iterate through objects in the input package
@@ -253,83 +441,145 @@ public class PackageProcessor implements ContainerStructureProcessor {
 
                 // TODO: Triggers for "/" will have to be processed manually here!
 
-                MultiDigestInputStream entryInputStream = null;
+                ParallelDigestInputStream entryInputStream = null;
                 try {
                     PackageEntry structureEntry = new PackageEntry(archiveEntry);
-                    entryInputStream = new MultiDigestInputStream(archiveInputStream); // As it happens to be!
+                    String[] algorithms = digestAlgorithms;
+                    if (verifyFixity && !archiveEntry.isDirectory()) {
+                        algorithms = declaredAlgorithms(packageRelativePath(entryName), context);
+                    }
+                    entryInputStream = new ParallelDigestInputStream(algorithms, archiveInputStream); // As it happens to be!
 
                     // Directories are not processed per se
-                    Iterator<Action> ait = actions.iterator();
-                    while (ait.hasNext()) {
-                        Action action = ait.next();
+                    Action action = actionIndex.firstMatchOnName(structureEntry.getName());
+                    if (null != action) {
+                        if (null != listener) {
+                            listener.actionMatched(
+                                    alias, structureEntry.getName(), action.getProcessor().getAlias(), action.getMethod()
+                            );
+                        }
+                        if (log.isDebugEnabled()) {
+                            log.debug(me() + ":process container");
+                        }
+                        Processor processor = action.getProcessor();
+                        if (processor instanceof ContainerStructureProcessor) {
+                            if (action.getMethod().equalsIgnoreCase("process")) {
+                                //-----------------------------------------------------------------------------
+                                // Since we are referring to a structure (processor), we are probably just
+                                // going to process an embedded TAR-file (or the like). We feed the entry
+                                // recursively to the processor manager, directly from the package stream.
+                                //-----------------------------------------------------------------------------
+                                if (null != sequencer) {
+                                    // Entries prior to this one have to be written first
+                                    sequencer.drain();
+                                }
 
-                        if (action.matchOnName(structureEntry.getName())) {
-                            if (log.isDebugEnabled()) {
-                                log.debug(me() + ":process container");
-                            }
-                            Processor processor = action.getProcessor();
-                            if (processor instanceof ContainerStructureProcessor) {
-                                if (action.getMethod().equalsIgnoreCase("process")) {
-                                    //-----------------------------------------------------------------------------
-                                    // Since we are referring to a structure (processor), we are probably just
-                                    // going to process an embedded TAR-file (or the like). We create a
-                                    // temporary file and recursively feed it to the processor manager...
-                                    //-----------------------------------------------------------------------------
-                                    File subInputFile = extractEntry(structureEntry, entryInputStream);
-                                    File subOutputFile = null;
-                                    if (isMutableCall) {
-                                        subOutputFile = File.createTempFile("temporary-processed", ".package");
+                                SubInputStream subInputStream = new SubInputStream(entryInputStream, structureEntry.getSize());
+                                if (!isMutableCall) {
+                                    manager.applyOnContainerWithStructure(
+                                            action, structureEntry.getName(), subInputStream, null, basicContext
+                                    );
+
+                                } else if (!archiveOutputStream.needsSizeBeforeData()) {
+                                    // Write processed container straight into the output package
+                                    archiveOutputStream.replaceEntry(structureEntry, -1L);
+                                    OutputStream subOutputStream = new NonClosingOutputStream(archiveOutputStream);
+                                    try {
+                                        manager.applyOnContainerWithStructure(
+                                                action, structureEntry.getName(), subInputStream, subOutputStream, basicContext
+                                        );
+                                    } finally {
+                                        subOutputStream.close();
                                     }
+                                    archiveOutputStream.closeEntry();
+
+                                } else {
+                                    // Size of processed container has to be known before writing it
+                                    SpoolBuffer subOutput = new SpoolBuffer(alias + "-", SPOOL_THRESHOLD);
                                     try {
-                                        InputStream subInputStream = null;
-                                        OutputStream subOutputStream = null;
                                         try {
-                                            subInputStream = new BufferedInputStream(new FileInputStream(subInputFile));
-                                            if (isMutableCall) {
-                                                subOutputStream = new BufferedOutputStream(new FileOutputStream(subOutputFile));
-                                            }
-
-                                            // Run it through the processor manager which knows what to do with it
                                             manager.applyOnContainerWithStructure(
-                                                    action.getProcessor(), action.getMethod(),
-                                                    structureEntry.getName(), subInputStream, subOutputStream, basicContext
+                                                    action, structureEntry.getName(), subInputStream, subOutput, basicContext
                                             );
                                         } finally {
-                                            if (null != subInputStream) subInputStream.close();
-                                            if (null != subOutputStream) subOutputStream.close();
+                                            subOutput.close();
                                         }
-
-                                        if (isMutableCall) {
-                                            // Add the temporary file to the output stream instead of the original
-                                            addEntry(subOutputFile, structureEntry, archiveOutputStream);
+                                        if (null != listener && subOutput.isSpilled()) {
+                                            listener.spilled(alias, subOutput.size());
                                         }
+                                        archiveOutputStream.replaceEntry(structureEntry, subOutput.size());
+                                        subOutput.writeTo(archiveOutputStream);
+                                        archiveOutputStream.closeEntry();
                                     } finally {
-                                        if (null != subInputFile && subInputFile.exists()) subInputFile.delete();
-                                        if (null != subOutputFile && subOutputFile.exists()) subOutputFile.delete();
+                                        subOutput.dispose();
                                     }
-                                    continue with_next_entry; // since we operated on a unique entry
+                                }
 
-                                } else {
-                                    // Unknown operation on a container file
-                                    throw new ProcessorException("Unknown action on container: " + action.getMethod());
+                                // Whatever the processor left unread is read here, so digests cover the entry
+                                subInputStream.drain();
+                                continue with_next_entry; // since we operated on a unique entry
+
+                            } else {
+                                // Unknown operation on a container file
+                                throw new ProcessorException("Unknown action on container: " + action.getMethod());
+                            }
+                        } else if (processor instanceof FileProcessor) {
+                            //---------------------------------------------------------------------------------
+                            // Since we are referring to a file processor, we will just pass the entry with it's
+                            // input stream back to the processor manager that will know what to do with it.
+                            //---------------------------------------------------------------------------------
+                            if (null != sequencer) {
+                                // Spool entry (calculating digests while at it) and let a worker process it
+                                SpoolBuffer contents = SpoolBuffer.spool(entryInputStream, alias + "-", SPOOL_THRESHOLD);
+                                if (null != listener && contents.isSpilled()) {
+                                    listener.spilled(alias, contents.size());
                                 }
-                            } else if (processor instanceof FileProcessor) {
-                                //---------------------------------------------------------------------------------
-                                // Since we are referring to a file processor, we will just pass the entry with it's
-                                // input stream back to the processor manager that will know what to do with it.
-                                //---------------------------------------------------------------------------------
+                                String resultKey = isMutableCall ? null : resultKey(action, structureEntry, entryInputStream);
+                                sequencer.submit(action, structureEntry, contents, basicContext, resultKey);
+                                if (verifyFixity) {
+                                    // Checksums declared by this entry (i.e. by the manifest) have to be
+                                    // known before later entries are verified against them
+                                    sequencer.drain();
+                                }
+
+                            } else if (null != resultCache && !isMutableCall) {
+                                // Spool entry (calculating digests while at it), so that results may be looked up
+                                SpoolBuffer contents = SpoolBuffer.spool(entryInputStream, alias + "-", SPOOL_THRESHOLD);
+                                try (InputStream contentsInputStream = contents.getInputStream()) {
+                                    if (null != listener && contents.isSpilled()) {
+                                        listener.spilled(alias, contents.size());
+                                    }
+                                    manager.applyOnEntry(
+                                            action, structureEntry, contentsInputStream, null, basicContext,
+                                            resultCache, resultKey(action, structureEntry, entryInputStream)
+                                    );
+                                } finally {
+                                    contents.dispose();
+                                }
+
+                            } else {
                                 manager.applyOnEntry(
-                                        action.getProcessor(), action.getMethod(),
-                                        structureEntry, entryInputStream, archiveOutputStream, basicContext
+                                        action, structureEntry, entryInputStream, archiveOutputStream, basicContext
                                 );
-                                continue with_next_entry; // since we operated on a unique entry
+                                if (verifyFixity) {
+                                    // The processor may not have read all of the entry
+                                    entryInputStream.drain();
+                                }
                             }
+                            continue with_next_entry; // since we operated on a unique entry
                         }
                     }
 
-                    if (isMutableCall && !addedEntries.contains(structureEntry.getName())) {
+                    if (isMutableCall && !basicContext.wasAdded(structureEntry.getName())) {
                         // We may safely copy file
-                        copyEntry(structureEntry, entryInputStream, archiveOutputStream);
+                        if (null != sequencer) {
+                            sequencer.copy(structureEntry, entryInputStream);
+                        } else {
+                            copyEntry(structureEntry, entryInputStream, archiveOutputStream);
+                        }
+                    } else if (verifyFixity && !archiveEntry.isDirectory()) {
+                        // Not otherwise read, but we need the digests
+                        entryInputStream.drain();
                     }
                 } finally {
                     /*
@@ -337,91 +587,387 @@ public class PackageProcessor implements ContainerStructureProcessor {
                      * which we want to continue operating upon.
                      */
 
+                    if (null != listener && null != entryInputStream && !archiveEntry.isDirectory()) {
+                        if (0L == entryInputStream.getSize() && archiveEntry.getSize() > 0L) {
+                            // Not read by us (but possibly by the archive stream in order to get past it)
+                            listener.entrySkipped(alias, entryName, archiveEntry.getSize());
+                        } else {
+                            listener.entryRead(alias, entryName, entryInputStream.getSize());
+                        }
+                    }
+
                     if (! archiveEntry.isDirectory()) {
-                        // Collect bitstream information - this is where we associate _actual_ values,
-                        // i.e. calculated checksums and calculated byte lengths.
-                        Map<String, String> bitstreamInfo = new HashMap<String, String>();
-
-                        // OBSERVE: The following might not be completely valid in all circumstances,
-                        // as InputStream.getSize() only returns the number of bytes that you can read
-                        // and not necessarily the number of bytes in the stream. But in this case,
-                        // I believe it to be valid...
-                        if (entryInputStream.getSize() > 0) {
-                            bitstreamInfo.put("size", "" + entryInputStream.getSize());
-
-                            Map<String, byte[]> digests = entryInputStream.getDigests();
-                            for (String key : digests.keySet()) {
-                                byte[] digest = digests.get(key);
-
-                                if (digest.length == 8) {
-                                    ByteBuffer buf = ByteBuffer.wrap(digest);
-                                    String value = "" + buf.getLong();
-                                    bitstreamInfo.put(key, value);
-                                } else {
-                                    StringBuffer hexString = new StringBuffer();
-                                    for (int i=0;i<digest.length;i++) {
-                                        hexString.append(Integer.toHexString(0xFF & digest[i]));
-                                    }
-                                    String value = hexString.toString();
-                                    bitstreamInfo.put(key, value);
-                                }
-                            }
+                        associateCalculatedInformation(entryName, entryInputStream, context);
+                    }
+                }
+            }
 
-                            // Create a package-relative path...
-                            File top = new File("/");
-                            File contentStream = top; // starting point relative to top
+            if (null != sequencer) {
+                sequencer.drain();
+            }
 
-                            // ...and reassemble
-                            int start = entryName.startsWith("/") ? 0 : 1; /* skip [example1]/content/... */
+            if (null != archiveOutputStream) {
+                // Complete the package, i.e. write trailing structures
+                archiveOutputStream.finish();
+            }
+            if (null != compressedOutputStream) {
+                // Complete the compressed data, leaving the output stream as is
+                compressedOutputStream.close();
+                compressedOutputStream = null;
+            }
+        } finally {
+            if (null != sequencer) sequencer.close();
+            if (null != archiveOutputStream) archiveOutputStream.close();
+            if (null != compressedOutputStream) compressedOutputStream.close();
+            if (null != archiveInputStream) archiveInputStream.close();
 
-                            String[] parts = entryName.split("/");
-                            for (int i=start; i < parts.length; i++) {
-                                contentStream = new File(contentStream, parts[i]);
-                            }
-                            bitstreamInfo.put("fileName", parts[parts.length-1]);
+            context.pop();
 
-                            String path = contentStream.getPath().replace("\\", "/"); // in case we're on Windoze
-                            context.associate("CALCULATED", path, path, bitstreamInfo);
-                        }
+            if (null != resultCache) {
+                resultCache.flush();
+            }
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /**
+     * Entry to the information package-processor for (non-mutable) packages in the file system.
+     * <p>
+     * ZIP-files are located through their central directory, so that actions are matched up
+     * front and only matched entries are read (i.e. inflated). (Uncompressed) TAR-files are
+     * likewise located through an index, built by scanning the headers while seeking past the
+     * data of entries. If so configured (the 'tar-index' attribute), the index is kept (in
+     * memory and optionally in an index directory) and reused by later runs. Since each entry
+     * may be read independently, entries are read concurrently if 'pool-size' is larger than 1.
+     * Other packages (e.g. compressed TAR-files) are read sequentially, as with
+     * {@link #process(String, InputStream, OutputStream, ProcessorContext)}.
+     * <p>
+     * @param name - name of entity (information package)
+     * @param file - the information package
+     * @param context - a context for this processor
+     * @throws IOException - if file I/O fails
+     * @throws ArchiveException - if information package has unknown packaging format
+     * @throws ProcessorException - if processing of information package fails
+     * @throws ClassNotFoundException - if action not found
+     */
+    public void process(String name, File file, ProcessorContext context)
+            throws IOException, ArchiveException, ProcessorException, ClassNotFoundException {
+
+        if (isZipFile(file)) {
+            try (ZipFile zipFile = ZipFile.builder().setFile(file).get()) {
+                List<PackageEntry> entries = new ArrayList<PackageEntry>();
+                Enumeration<ZipArchiveEntry> zipEntries = zipFile.getEntriesInPhysicalOrder();
+                while (zipEntries.hasMoreElements()) {
+                    entries.add(new PackageEntry(zipEntries.nextElement()));
+                }
+
+                List<PackageEntry> matched = new ArrayList<PackageEntry>();
+                List<PackageEntry> unmatched = new ArrayList<PackageEntry>();
+                List<PackageEntry> skipped = new ArrayList<PackageEntry>();
+                selectEntries(entries, matched, unmatched, skipped);
+
+                processEntries(
+                        name, matched, unmatched, skipped,
+                        entry -> zipFile.getInputStream((ZipArchiveEntry) entry.getWrappedObject()),
+                        context
+                );
+            }
+            return;
+        }
+
+        TarIndex index = useTarIndex ? TarIndex.of(file, tarIndexDirectory) : TarIndex.scan(file);
+        if (null != index) {
+            Map<ArchiveEntry, TarIndex.Entry> located = new IdentityHashMap<ArchiveEntry, TarIndex.Entry>();
+            List<PackageEntry> entries = new ArrayList<PackageEntry>();
+            for (TarIndex.Entry indexEntry : index.getEntries()) {
+                ArchiveEntry archiveEntry = indexEntry.asArchiveEntry();
+                located.put(archiveEntry, indexEntry);
+                entries.add(new PackageEntry(archiveEntry));
+            }
+
+            List<PackageEntry> matched = new ArrayList<PackageEntry>();
+            List<PackageEntry> unmatched = new ArrayList<PackageEntry>();
+            List<PackageEntry> skipped = new ArrayList<PackageEntry>();
+            selectEntries(entries, matched, unmatched, skipped);
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // Make sure that the index is still valid, before we start processing
+                boolean isValid = true;
+                for (List<PackageEntry> selected : Arrays.asList(matched, unmatched)) {
+                    for (PackageEntry entry : selected) {
+                        isValid &= TarIndex.verify(channel, located.get(entry.getWrappedObject()));
                     }
                 }
+
+                if (isValid) {
+                    processEntries(
+                            name, matched, unmatched, skipped,
+                            entry -> {
+                                TarIndex.Entry indexEntry = located.get(entry.getWrappedObject());
+                                return new ChannelRangeInputStream(channel, indexEntry.dataOffset, indexEntry.size);
+                            },
+                            context
+                    );
+                    return;
+                }
+            }
+
+            log.info(me() + ": Index of " + file.getPath() + " is stale - reading package sequentially");
+            if (useTarIndex) {
+                TarIndex.invalidate(file, tarIndexDirectory);
+            }
+        }
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            process(name, inputStream, null, context);
+        }
+    }
+
+    private static boolean isZipFile(File file) throws IOException {
+        byte[] signature = new byte[4];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int length = 0;
+            int count;
+            while (length < signature.length
+                    && (count = inputStream.read(signature, length, signature.length - length)) > 0) {
+                length += count;
+            }
+            return length == signature.length && ZipArchiveInputStream.matches(signature, length);
+        }
+    }
+
+    /*
+     * Opens an individual entry in a package that is randomly accessible.
+     */
+    private interface EntryOpener {
+        InputStream open(PackageEntry entry) throws IOException;
+    }
+
+    /*
+     * Matches actions against the entries up front. Entries not matched are not read
+     * at all (i.e. skipped), unless we need their digests in order to verify fixity.
+     */
+    private void selectEntries(
+            List<PackageEntry> entries, List<PackageEntry> matched, List<PackageEntry> unmatched,
+            List<PackageEntry> skipped
+    ) {
+        for (PackageEntry entry : entries) {
+            // Directories are not processed per se
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (null != actionIndex.firstMatchOnName(entry.getName())) {
+                matched.add(entry);
+            } else if (verifyFixity) {
+                unmatched.add(entry);
+            } else {
+                skipped.add(entry);
+            }
+        }
+    }
+
+    /*
+     * Processes selected entries of a package that is randomly accessible.
+     */
+    private void processEntries(
+            String name, List<PackageEntry> matched, List<PackageEntry> unmatched, List<PackageEntry> skipped,
+            EntryOpener opener, ProcessorContext context
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        PackageProcessorContext basicContext = context.push(new PackageProcessorContext(name));
+
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+
+            for (PackageEntry entry : skipped) {
+                listener.entrySkipped(alias, entry.getName(), entry.getSize());
             }
+        }
+
+        ExecutorService executor = null;
+        try {
+            if (poolSize > 1) {
+                final AtomicInteger threadCount = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(poolSize, runnable -> {
+                    Thread thread = new Thread(runnable, alias + "-reader-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            // Matched entries first, so that checksums declared by the manifest are known
+            // by the time the remaining entries are verified
+            readEntries(matched, opener, executor, basicContext, context);
+            readEntries(unmatched, opener, executor, basicContext, context);
+
         } finally {
-            if (null != archiveOutputStream) archiveOutputStream.close();
-            if (null != archiveInputStream) archiveInputStream.close();
+            if (null != executor) executor.shutdownNow();
 
             context.pop();
+
+            if (null != resultCache) {
+                resultCache.flush();
+            }
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
+        }
+    }
+    /*
+     * Reads entries, one at a time or concurrently (if there is an executor), waiting for all
+     * of them to be processed.
+     */
+    private void readEntries(
+            List<PackageEntry> entries, final EntryOpener opener, ExecutorService executor,
+            final PackageProcessorContext basicContext, final ProcessorContext context
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        if (null == executor) {
+            for (PackageEntry entry : entries) {
+                readEntry(entry, opener, basicContext, context);
+            }
+            return;
+        }
+
+        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+        for (final PackageEntry entry : entries) {
+            pending.add(executor.submit(() -> {
+                readEntry(entry, opener, basicContext, context);
+                return null;
+            }));
+        }
+
+        for (Future<Void> future : pending) {
+            try {
+                future.get();
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ProcessorException("Interrupted while waiting for entry to be processed", ie);
+
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof ProcessorException) {
+                    throw (ProcessorException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                } else {
+                    String info = "Failed to process entry: " + cause.getMessage();
+                    log.warn(info);
+                    throw new ProcessorException(info, cause);
+                }
+            }
         }
     }
 
-    /**
-     *
-     * @param entry
-     * @param entryInputStream
-     * @return
-     * @throws eu.ensure.packproc.ProcessorException
-     * @throws java.io.IOException
+    /*
+     * Reads an individual entry, applying the matching action (if any) and associating
+     * calculated bitstream information.
      */
-    private File extractEntry(
-            StructureEntry entry,
-            InputStream entryInputStream
-    ) throws ProcessorException, IOException {
+    private void readEntry(
+            PackageEntry structureEntry, EntryOpener opener, PackageProcessorContext basicContext, ProcessorContext context
+    ) throws IOException, ProcessorException, ClassNotFoundException {
+
+        String entryName = structureEntry.getName();
+
+        if (log.isInfoEnabled()) {
+            log.info("");
+            String info = "### " + entryName;
+            long size = structureEntry.getSize();
+            info += " (~" + Number.asHumanApproximate(size) + " or " + size + " bytes)";
+            log.info(info);
+        }
 
-        FileTool fileTool = new FileTool(alias);
-        return fileTool.extractEntry(entry, entryInputStream);
+        String[] algorithms = digestAlgorithms;
+        if (verifyFixity) {
+            algorithms = declaredAlgorithms(packageRelativePath(entryName), context);
+        }
+
+        ProcessingListener listener = manager.getListener();
+        try (ParallelDigestInputStream entryInputStream = new ParallelDigestInputStream(
+                algorithms, new BufferedInputStream(opener.open(structureEntry))
+        )) {
+            Action action = actionIndex.firstMatchOnName(structureEntry.getName());
+            if (null != action) {
+                if (null != listener) {
+                    listener.actionMatched(
+                            alias, structureEntry.getName(), action.getProcessor().getAlias(), action.getMethod()
+                    );
+                }
+                Processor processor = action.getProcessor();
+                if (processor instanceof ContainerStructureProcessor) {
+                    if (action.getMethod().equalsIgnoreCase("process")) {
+                        // An embedded TAR-file (or the like), that we feed recursively to the processor manager
+                        SubInputStream subInputStream = new SubInputStream(entryInputStream, structureEntry.getSize());
+                        manager.applyOnContainerWithStructure(
+                                action, structureEntry.getName(), subInputStream, null, basicContext
+                        );
+                        subInputStream.drain();
+
+                    } else {
+                        // Unknown operation on a container file
+                        throw new ProcessorException("Unknown action on container: " + action.getMethod());
+                    }
+                } else if (processor instanceof FileProcessor) {
+                    if (null != resultCache) {
+                        // Results are looked up by the digests, so the entry is spooled up front
+                        // (calculating digests while at it) and then (if not found) read from the spool
+                        SpoolBuffer contents = SpoolBuffer.spool(entryInputStream, alias + "-", SPOOL_THRESHOLD);
+                        try (InputStream contentsInputStream = contents.getInputStream()) {
+                            if (null != listener && contents.isSpilled()) {
+                                listener.spilled(alias, contents.size());
+                            }
+                            manager.applyOnEntry(
+                                    action, structureEntry, contentsInputStream, null, basicContext,
+                                    resultCache, resultKey(action, structureEntry, entryInputStream)
+                            );
+                        } finally {
+                            contents.dispose();
+                        }
+                    } else {
+                        manager.applyOnEntry(
+                                action, structureEntry, entryInputStream, null, basicContext
+                        );
+                    }
+                }
+            }
+
+            if (verifyFixity) {
+                // Not necessarily read (completely) by a processor, but we need the digests
+                entryInputStream.drain();
+            }
+
+            if (null != listener) {
+                listener.entryRead(alias, entryName, entryInputStream.getSize());
+            }
+            associateCalculatedInformation(entryName, entryInputStream, context);
+        }
     }
 
-    /**
-     *
+    /*
+     * Key identifying the results of an action on a (completely read) entry in the result cache,
+     * or null if there is no cache (or the entry could not be identified).
      */
-    private void addEntry(
-            File inputFile,
-            StructureEntry inputEntry,
-            StructureOutputStream structureOutputStream
+    private String resultKey(
+            Action action, StructureEntry entry, ParallelDigestInputStream entryInputStream
     ) throws IOException {
-
-        FileTool fileTool = new FileTool(alias);
-        fileTool.addEntry(inputFile, inputEntry, structureOutputStream);
+        if (null == resultCache) {
+            return null;
+        }
+        return ResultCache.keyOf(
+                action.getProcessor().getAlias(), action.getConfigurationDigest(),
+                entry.getName(), entryInputStream.getSize(), entryInputStream.getDigests()
+        );
     }
 
     /**
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.ip;
+
+import eu.ensure.packproc.BasicProcessorContext;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The context of a single run of a package processor on an information package.
+ * <p>
+ * Since a (prepared) processor may be used for several packages at once, state
+ * that concerns a specific package is kept here rather than in the processor.
+ */
+public class PackageProcessorContext extends BasicProcessorContext {
+    //
+    // If a package in addition to being read and processed is also modified, i.e.
+    // we are not writing the same entries to an (optional) output stream, we must
+    // track changes to the package. Changes such as adding files, removing files or
+    // directories must be tracked so that we do not accidentally write the originals
+    // to the output stream.
+    //
+    private final Set<String> addedEntries = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> removedEntries = Collections.synchronizedSet(new HashSet<String>());
+
+    public PackageProcessorContext(String name) {
+        super(name);
+    }
+
+    /**
+     * Tracks structural changes to an information package.
+     * <p>
+     * Entries in a package may not be ordered, which is typically the case with entries in ZIP-files,
+     * so that additional files may be appended to existing entries. We need to handle this kind of
+     * behavior.
+     */
+    void trackStructuralChange(String path, PackageProcessor.StructuralModificationType modification) {
+        switch (modification) {
+            case REMOVED:
+                removedEntries.add(path);
+                break;
+
+            case ADDED:
+                String[] parts = path.split("[\\\\/]");
+                if (parts.length > 0) {
+                    String partial = "";
+                    for (int i=0; i<parts.length-1; i++) {
+                        partial += parts[i];
+                        partial += "/"; // The POSIX separator is never wrong!
+
+                        addedEntries.add(partial);
+                    }
+                }
+                break;
+        }
+    }
+
+    boolean wasAdded(String path) {
+        return addedEntries.contains(path);
+    }
+}
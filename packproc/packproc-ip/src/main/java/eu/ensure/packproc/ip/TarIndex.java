@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc.ip;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Index of the entries in an (uncompressed) TAR-file, so that entries may be located
+ * without scanning all headers of the package.
+ * <p>
+ * Scanning a package for its index only touches the headers, since the data of entries
+ * is skipped by seeking. Packages are typically processed repeatedly (at ingest, during
+ * fixity checks, after migrations, ...), so the index may also be kept in memory and
+ * persisted in an index directory. Indexes are not written next to the packages, where
+ * they would be picked up by anyone traversing (or watching) the directories of packages.
+ * An index is stale if the length or modification time of the package differs from when
+ * it was built. Entry headers are also verified (using the header checksum) before entries
+ * are read.
+ */
+class TarIndex {
+    private static final Logger log = LogManager.getLogger(TarIndex.class);
+
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x54494458; // "TIDX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 512;
+
+    // Recently used indexes, keyed by (canonical) path of the package
+    private static final int MAX_CACHED = 64;
+    private static final Map<String, TarIndex> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, TarIndex>(16, 0.75f, /* access order */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TarIndex> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            }
+    );
+
+    /**
+     * An entry, located by offsets into the package.
+     */
+    static class Entry {
+        final String name;
+        final long headerOffset;
+        final long dataOffset;
+        final long size;
+        final long modTime;
+
+        Entry(String name, long headerOffset, long dataOffset, long size, long modTime) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.dataOffset = dataOffset;
+            this.size = size;
+            this.modTime = modTime;
+        }
+
+        TarArchiveEntry asArchiveEntry() {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(size);
+            entry.setModTime(modTime);
+            return entry;
+        }
+    }
+
+    private final long fileLength;
+    private final long fileModified;
+    private final List<Entry> entries; // in physical order
+
+    private TarIndex(long fileLength, long fileModified, List<Entry> entries) {
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    private boolean isValidFor(File file) {
+        return fileLength == file.length() && fileModified == file.lastModified();
+    }
+
+    /**
+     * The file in the index directory holding the index of a package. Packages having the
+     * same name (in different directories) are told apart by a digest of their path.
+     */
+    static File indexFileFor(String path, File directory) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("Could not name index of " + path, e);
+        }
+
+        StringBuilder name = new StringBuilder(new File(path).getName()).append('-');
+        for (int i = 0; i < 8; i++) {
+            name.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            name.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+
+    /**
+     * Gets an index for the package, from memory, from the index directory or by scanning the
+     * package (in which case the index is persisted in the index directory). If no directory is
+     * specified, indexes are only kept in memory. Returns null if the package is not a TAR-file
+     * or if it may not be indexed, e.g. due to sparse entries.
+     */
+    static TarIndex of(File file, File directory) throws IOException {
+        String key = file.getCanonicalPath();
+
+        TarIndex index = cache.get(key);
+        if (null != index && index.isValidFor(file)) {
+            return index;
+        }
+
+        File indexFile = null != directory ? indexFileFor(key, directory) : null;
+        index = null != indexFile ? read(indexFile, key) : null;
+        if (null == index || !index.isValidFor(file)) {
+            index = scan(file);
+            if (null == index) {
+                return null;
+            }
+            if (null != indexFile) {
+                index.write(indexFile, key);
+            }
+        }
+        cache.put(key, index);
+        return index;
+    }
+
+    /**
+     * Forgets the index for the package, e.g. if it turned out to be stale after all.
+     */
+    static void invalidate(File file, File directory) throws IOException {
+        String key = file.getCanonicalPath();
+        cache.remove(key);
+
+        if (null != directory) {
+            File indexFile = indexFileFor(key, directory);
+            if (indexFile.exists() && !indexFile.delete()) {
+                log.warn("Could not remove stale index: " + indexFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private static boolean isTarFile(File file) throws IOException {
+        byte[] signature = new byte[HEADER_SIZE];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int length = 0;
+            int count;
+            while (length < signature.length
+                    && (count = inputStream.read(signature, length, signature.length - length)) > 0) {
+                length += count;
+            }
+            return TarArchiveInputStream.matches(signature, length);
+        }
+    }
+
+    /**
+     * Scans the package for an index, without persisting it. Returns null if the package
+     * is not a TAR-file or if it may not be indexed, e.g. due to sparse entries.
+     */
+    static TarIndex scan(File file) throws IOException {
+        if (!isTarFile(file)) {
+            return null;
+        }
+
+        long fileLength = file.length();
+        long fileModified = file.lastModified();
+
+        List<Entry> entries = new ArrayList<Entry>();
+        try (TarFile tarFile = new TarFile(file)) {
+            for (TarArchiveEntry entry : tarFile.getEntries()) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (!entry.isStreamContiguous()) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Not indexing " + file.getPath() + " due to sparse entry " + entry.getName());
+                    }
+                    return null;
+                }
+
+                // The entry header immediately precedes the data (any extended headers precede the entry header)
+                long dataOffset = entry.getDataOffset();
+                entries.add(new Entry(
+                        entry.getName(), dataOffset - HEADER_SIZE, dataOffset, entry.getSize(), entry.getModTime().getTime()
+                ));
+            }
+        }
+        return new TarIndex(fileLength, fileModified, entries);
+    }
+
+    /**
+     * Checks that the header of the entry still is where the index says it is.
+     */
+    static boolean verify(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        long position = entry.headerOffset;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+
+        byte[] header = buffer.array();
+        try {
+            if (!TarUtils.verifyCheckSum(header)) {
+                return false;
+            }
+
+            // Size field (may be zero if size is specified in an extended header)
+            long size = TarUtils.parseOctalOrBinary(header, 124, 12);
+            return 0L == size || entry.size == size;
+
+        } catch (IllegalArgumentException iae) {
+            return false; // not a header at all
+        }
+    }
+
+    private static TarIndex read(File indexFile, String path) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        CRC32 crc32 = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)), crc32
+        ))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt() || !path.equals(in.readUTF())) {
+                return null;
+            }
+            long fileLength = in.readLong();
+            long fileModified = in.readLong();
+
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long headerOffset = in.readLong();
+                long dataOffset = in.readLong();
+                long size = in.readLong();
+                long modTime = in.readLong();
+                entries.add(new Entry(name, headerOffset, dataOffset, size, modTime));
+            }
+
+            long checksum = crc32.getValue();
+            if (checksum != in.readLong()) {
+                log.warn("Ignoring corrupt index: " + indexFile.getAbsolutePath());
+                return null;
+            }
+            return new TarIndex(fileLength, fileModified, entries);
+
+        } catch (IOException ioe) {
+            String info = "Could not read index " + indexFile.getAbsolutePath() + ": " + ioe.getMessage();
+            log.warn(info);
+            return null;
+        }
+    }
+
+    private void write(File indexFile, String path) {
+        File directory = indexFile.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Could not create index directory: " + directory.getAbsolutePath());
+            return; // index is kept in memory only
+        }
+        if (!directory.canWrite()) {
+            return; // index is kept in memory only
+        }
+
+        CRC32 crc32 = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile)), crc32
+        ))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(path);
+            out.writeLong(fileLength);
+            out.writeLong(fileModified);
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.headerOffset);
+                out.writeLong(entry.dataOffset);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modTime);
+            }
+            out.flush();
+            out.writeLong(crc32.getValue());
+
+        } catch (IOException ioe) {
+            String info = "Could not write index " + indexFile.getAbsolutePath() + ": " + ioe.getMessage();
+            log.warn(info);
+            if (!indexFile.delete()) {
+                log.warn("Could not remove partially written index: " + indexFile.getAbsolutePath());
+            }
+        }
+    }
+}
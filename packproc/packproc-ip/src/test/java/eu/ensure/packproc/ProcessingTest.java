@@ -0,0 +1,692 @@
+/*
+ * Copyright (C) 2011-2014 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The research leading to the implementation of this software package
+ * has received funding from the European Community´s Seventh Framework
+ * Programme (FP7/2007-2013) under grant agreement n° 270000.
+ *
+ * Frode Randers was at the time of creation of this software module
+ * employed as a doctoral student by Luleå University of Technology
+ * and remains the copyright holder of this material due to the
+ * Teachers Exemption expressed in Swedish law (LAU 1949:345)
+ */
+package eu.ensure.packproc;
+
+import eu.ensure.packproc.model.AssociatedInformation;
+import eu.ensure.packproc.model.EvaluationStatement;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.gautelis.vopn.lang.Stacktrace;
+import junit.framework.TestCase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ */
+public class ProcessingTest extends TestCase {
+    private static Logger log = LogManager.getLogger(ProcessingTest.class);
+
+    private static final String NAMESPACES =
+            " xmlns:aip-processor=\"classpath:eu.ensure.packproc.ip.PackageProcessor\""
+            + " xmlns:xfdu-processor=\"classpath:eu.ensure.packproc.ip.XfduProcessor\""
+            + " xmlns:premis-processor=\"classpath:eu.ensure.packproc.ip.PremisProcessor\""
+            + " xmlns:rdf-processor=\"classpath:eu.ensure.packproc.ip.RdfProcessor\"";
+
+    private static final String CONTENT_PATH = "/content/Patient A with Visit 01.xml";
+
+    @Test
+    public void testFixityVerification() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("packproc-fixity-").toFile();
+
+            // The manifest declares a single (CRC32) checksum for the content (preceding the manifest)
+            File original = resource("fraunhofer/aip_doctors_encounter_fraunhofer.tar");
+            File tampered = new File(directory, "tampered.tar");
+            rewriteTar(original, tampered, "manifest.xml", "3803150682", "3803150683");
+
+            // ...or a SHA-256 checksum, which is calculated only if declared before the content is read
+            String crc32 = "<checksum checksumName=\"CRC32\">3803150682</checksum>";
+            String digest = digestOf(original, CONTENT_PATH, "SHA-256");
+            String wrongDigest = (digest.startsWith("0") ? "1" : "0") + digest.substring(1);
+            File declared = new File(directory, "declared.tar");
+            rewriteTar(original, declared, "manifest.xml",
+                    crc32, "<checksum checksumName=\"SHA-256\">" + digest + "</checksum>", /* move first? */ true);
+            File declaredTampered = new File(directory, "declared-tampered.tar");
+            rewriteTar(original, declaredTampered, "manifest.xml",
+                    crc32, "<checksum checksumName=\"SHA-256\">" + wrongDigest + "</checksum>", /* move first? */ true);
+
+            String actions = "<xfdu-processor:process name=\"manifest.xml\"><extractBitstreamInformation/></xfdu-processor:process>";
+
+            // Sequentially, as well as concurrently (where the manifest is processed by a worker)
+            for (String attributes : new String[] { "", "pool-size=\"4\"" }) {
+                ProcessorManager manager = prepare(configuration("verify-fixity=\"true\" " + attributes, actions));
+
+                for (File[] files : new File[][] { { original, tampered }, { declared, declaredTampered } }) {
+                    String algorithm = files[0] == original ? "CRC32" : "SHA-256";
+
+                    for (boolean isRandomAccess : new boolean[] { false, true }) {
+                        String mode = algorithm + ", " + (isRandomAccess ? "random access" : "stream") + " " + attributes;
+
+                        List<EvaluationStatement> statements = negativeStatements(manager, files[0], isRandomAccess);
+                        assertTrue("Correct checksum contested (" + mode + "): " + statements, statements.isEmpty());
+
+                        statements = negativeStatements(manager, files[1], isRandomAccess);
+                        boolean isContested = false;
+                        for (EvaluationStatement statement : statements) {
+                            if (EvaluationStatement.Kind.CONTESTS == statement.getKind()
+                                    && CONTENT_PATH.equals(statement.getPath()) && algorithm.equals(statement.getKey())) {
+                                isContested = true;
+                            }
+                        }
+                        assertTrue("Wrong checksum not contested (" + mode + "): " + statements, isContested);
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to verify fixity: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    private static final String ACTIONS =
+            "<xfdu-processor:process name=\"manifest.xml\"><extractBitstreamInformation/></xfdu-processor:process>"
+            + "<premis-processor:process name=\"premis.xml\"><extractBitstreamInformation/></premis-processor:process>";
+
+    @Test
+    public void testProcessingModes() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("packproc-modes-").toFile();
+            File indexDirectory = new File(directory, "index");
+
+            // ZIP, TAR and compressed TAR packages
+            List<File> packages = new ArrayList<File>();
+            packages.add(resource("test-package.zip"));
+            packages.add(resource("fraunhofer/aip_doctors_encounter_fraunhofer.tar"));
+            packages.add(resource("fraunhofer/aip_market_data_DAX_5_60__fraunhofer.tar"));
+            File compressed = new File(directory, "aip_doctors_encounter_fraunhofer.tar.gz");
+            try (InputStream in = new FileInputStream(packages.get(1));
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+                copy(in, out);
+            }
+            packages.add(compressed);
+
+            ProcessorManager sequential = prepare(configuration("", ACTIONS));
+            ProcessorManager concurrent = prepare(configuration("pool-size=\"4\"", ACTIONS));
+            ProcessorManager indexing = prepare(configuration(
+                    "pool-size=\"2\" tar-index=\"" + indexDirectory.getPath() + "\"", ACTIONS
+            ));
+
+            List<String> references = new ArrayList<String>();
+            for (File file : packages) {
+                // Reading the package as a stream, one entry at a time, is the reference
+                String expected = process(sequential, file, /* random access? */ false);
+                assertTrue("Nothing associated for " + file.getName(), expected.contains("CALCULATED"));
+                references.add(expected);
+
+                assertEquals("Concurrent, stream: " + file.getName(), expected, process(concurrent, file, false));
+                assertEquals("Sequential, random access: " + file.getName(), expected, process(sequential, file, true));
+                assertEquals("Concurrent, random access: " + file.getName(), expected, process(concurrent, file, true));
+
+                // Building the index, and then using it
+                assertEquals("Indexing: " + file.getName(), expected, process(indexing, file, true));
+                assertEquals("Indexed: " + file.getName(), expected, process(indexing, file, true));
+            }
+
+            // Processing the packages as a batch
+            List<BatchProcessor.PackageSource> sources = new ArrayList<BatchProcessor.PackageSource>();
+            for (File file : packages) {
+                sources.add(BatchProcessor.of(file));
+            }
+            List<Future<BatchProcessor.Result>> results;
+            try (BatchProcessor batch = concurrent.newBatch(/* workers */ 2, /* queue depth */ 1, /* unbounded */ 0L)) {
+                results = batch.submitAll(sources.iterator());
+            }
+            for (int i = 0; i < packages.size(); i++) {
+                BatchProcessor.Result result = results.get(i).get();
+                assertEquals(
+                        "Batch: " + packages.get(i).getName(), references.get(i),
+                        describe(result.getAssociatedInformation(), result.getEvaluationStatements())
+                );
+            }
+
+            // Indexes are kept in the index directory and not next to the packages
+            File tar = packages.get(1);
+            assertTrue(indexFileFor(tar, indexDirectory).isFile());
+            assertFalse(new File(tar.getPath() + ".idx").exists());
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process packages: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testStaleTarIndex() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("packproc-index-").toFile();
+            File indexDirectory = new File(directory, "index");
+
+            File original = resource("fraunhofer/aip_doctors_encounter_fraunhofer.tar");
+            File tar = new File(directory, original.getName());
+            try (InputStream in = new FileInputStream(original); OutputStream out = new FileOutputStream(tar)) {
+                copy(in, out);
+            }
+
+            ProcessorManager sequential = prepare(configuration("", ACTIONS));
+            ProcessorManager indexing = prepare(configuration("tar-index=\"" + indexDirectory.getPath() + "\"", ACTIONS));
+
+            process(indexing, tar, true);
+            File indexFile = indexFileFor(tar, indexDirectory);
+            assertTrue("Package not indexed", indexFile.isFile());
+
+            // Replace the package with one where the entries have moved (the first one shrinking by
+            // a block), but that has the same length and modification time -- so the index seems valid
+            long lastModified = tar.lastModified();
+            File modified = new File(directory, "modified.tar");
+            rewriteTar(original, modified, "Patient A with Visit 01.xml", "\\s+", " ");
+            assertEquals("Rewritten package differs in length", tar.length(), modified.length());
+            assertTrue(modified.renameTo(tar));
+            assertTrue(tar.setLastModified(lastModified));
+
+            String expected = process(sequential, tar, false);
+            assertEquals("Stale index", expected, process(indexing, tar, true));
+            assertFalse("Stale index not removed", indexFile.exists());
+
+            // ...and indexed anew
+            assertEquals("Reindexing", expected, process(indexing, tar, true));
+            assertTrue("Package not reindexed", indexFile.isFile());
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process package with stale index: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testSkipStatistics() {
+        try {
+            String actions = "<xfdu-processor:process name=\"manifest.xml\"><extractBitstreamInformation/></xfdu-processor:process>";
+            ProcessorManager manager = prepare(configuration("", actions));
+
+            for (String name : new String[] { "test-package.zip", "fraunhofer/aip_market_data_DAX_5_60__fraunhofer.tar" }) {
+                File file = resource(name);
+
+                // Everything but the manifest is skipped
+                Map<String, Long> entries = entriesOf(file);
+                long skippedEntries = 0L;
+                long skippedBytes = 0L;
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    if (!entry.getKey().endsWith("manifest.xml")) {
+                        skippedEntries++;
+                        skippedBytes += entry.getValue();
+                    }
+                }
+
+                for (boolean isRandomAccess : new boolean[] { false, true }) {
+                    String mode = name + (isRandomAccess ? ", random access" : ", stream");
+
+                    ProcessingStatistics statistics = new ProcessingStatistics();
+                    manager.setListener(statistics);
+                    process(manager, file, isRandomAccess);
+                    manager.setListener(null);
+
+                    ProcessingStatistics.Statistics ip = statistics.getStatistics("aip-processor");
+                    assertNotNull("No statistics for package processor", ip);
+                    assertEquals("Entries read (" + mode + ")", 1L, ip.getEntries());
+                    assertEquals("Entries skipped (" + mode + ")", skippedEntries, ip.getSkippedEntries());
+                    assertEquals("Bytes skipped (" + mode + ")", skippedBytes, ip.getSkippedBytes());
+                }
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to gather statistics: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    @Test
+    public void testOutputModes() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("packproc-output-").toFile();
+
+            // Flat packages, as well as packages within packages (ZIP in TAR and TAR in ZIP)
+            File zip = resource("test-package.zip");
+            File tar = resource("fraunhofer/aip_doctors_encounter_fraunhofer.tar");
+            File zipInTar = new File(directory, "zip-in.tar");
+            try (TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(zipInTar))) {
+                addEntry(out, new TarArchiveEntry("outer/metadata/notes.txt"), "Outer notes".getBytes("UTF-8"));
+                addEntry(out, new TarArchiveEntry("outer/content/" + zip.getName()), Files.readAllBytes(zip.toPath()));
+                out.finish();
+            }
+            File tarInZip = new File(directory, "tar-in.zip");
+            try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(new FileOutputStream(tarInZip))) {
+                addEntry(out, new ZipArchiveEntry("outer/content/" + tar.getName()), Files.readAllBytes(tar.toPath()));
+                addEntry(out, new ZipArchiveEntry("outer/metadata/notes.txt"), "Outer notes".getBytes("UTF-8"));
+                out.finish();
+            }
+
+            String actions = ACTIONS;
+            actions += "<aip-processor:process name-re=\".*\\.(zip|tar)\">" + ACTIONS + "</aip-processor:process>";
+
+            String[] modes = {
+                    "",
+                    "async-output=\"true\"",
+                    "pool-size=\"4\"",
+                    "pool-size=\"4\" async-output=\"true\""
+            };
+
+            for (File file : new File[] { zip, tar, zipInTar, tarInZip }) {
+                String input = describeEntries(Files.readAllBytes(file.toPath()));
+
+                String expected = null;
+                for (String mode : modes) {
+                    ProcessorManager manager = prepare(configuration(mode, actions));
+
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    BasicProcessorContext context = new BasicProcessorContext(file.getName());
+                    try (InputStream in = new FileInputStream(file)) {
+                        manager.apply(file.getName(), in, output, context);
+                    }
+                    String actual = describeEntries(output.toByteArray());
+
+                    if (null == expected) {
+                        expected = actual;
+
+                        // Same entries as in the input package
+                        assertEquals("Entries differ from input: " + file.getName(), names(input), names(actual));
+                    } else {
+                        assertEquals("Output of " + file.getName() + " differs with " + mode, expected, actual);
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process packages into new packages: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+
+        } finally {
+            if (null != directory) {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testOrderedOutput() {
+        try {
+            ProcessorManager sequential = prepare(configuration("", ACTIONS));
+            ProcessorManager concurrent = prepare(configuration("pool-size=\"4\" queue-depth=\"2\"", ACTIONS));
+
+            for (String name : new String[] {
+                    "test-package.zip",
+                    "fraunhofer/aip_doctors_encounter_fraunhofer.tar",
+                    "fraunhofer/aip_market_data_DAX_5_60__fraunhofer.tar"
+            }) {
+                File file = resource(name);
+
+                // Entries processed concurrently are written in their original order, just as
+                // when processed one at a time
+                byte[] expected = rewrite(sequential, file);
+                assertTrue("Nothing written for " + name, expected.length > 0);
+                for (int i = 0; i < 3; i++) {
+                    assertTrue("Output of " + name + " differs when processed concurrently",
+                            Arrays.equals(expected, rewrite(concurrent, file)));
+                }
+            }
+
+        } catch (Exception e) {
+            Throwable cause = Stacktrace.getBaseCause(e);
+            String info = "Failed to process packages concurrently: " + cause.getMessage();
+            System.err.println(info + "\n" + Stacktrace.asString(cause));
+            fail(info);
+        }
+    }
+
+    private static String configuration(String attributes, String actions) {
+        String configuration = "<configuration" + NAMESPACES + ">";
+        configuration += "<aip-processor:process " + attributes + ">";
+        configuration += actions;
+        configuration += "</aip-processor:process></configuration>";
+        return configuration;
+    }
+
+    /*
+     * Processes a package into a new package (i.e. a mutable run).
+     */
+    private static byte[] rewrite(ProcessorManager manager, File file) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BasicProcessorContext context = new BasicProcessorContext(file.getName());
+        try (InputStream in = new FileInputStream(file)) {
+            manager.apply(file.getName(), in, output, context);
+        }
+        return output.toByteArray();
+    }
+
+    /*
+     * Processes a (read-only) package, describing what was associated and stated.
+     */
+    private static String process(ProcessorManager manager, File file, boolean isRandomAccess) throws Exception {
+        BasicProcessorContext context = new BasicProcessorContext(file.getName());
+        if (isRandomAccess) {
+            manager.apply(file, context);
+        } else {
+            try (InputStream in = new FileInputStream(file)) {
+                manager.apply(file.getName(), in, null, context);
+            }
+        }
+
+        return describe(context.extractAssociatedInformation(), context.extractEvaluationStatements());
+    }
+
+    private static String describe(
+            Collection<? extends AssociatedInformation> associatedInformation, Collection<EvaluationStatement> evaluationStatements
+    ) {
+        StringBuilder description = new StringBuilder();
+        Map<String, String> associated = new TreeMap<String, String>();
+        for (AssociatedInformation info : associatedInformation) {
+            StringBuilder values = new StringBuilder();
+            for (Map.Entry<String, Map<String, Set<String>>> entry : new TreeMap<String, Map<String, Set<String>>>(info.getValues()).entrySet()) {
+                values.append(' ').append(entry.getKey()).append('=');
+                for (Map.Entry<String, Set<String>> value : new TreeMap<String, Set<String>>(entry.getValue()).entrySet()) {
+                    values.append(value.getKey()).append(new TreeSet<String>(value.getValue()));
+                }
+            }
+            associated.put(info.getPath(), values.toString());
+        }
+        for (Map.Entry<String, String> entry : associated.entrySet()) {
+            description.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+
+        List<String> statements = new ArrayList<String>();
+        for (EvaluationStatement statement : evaluationStatements) {
+            statements.add(statement.getStatement());
+        }
+        Collections.sort(statements);
+        for (String statement : statements) {
+            description.append(statement).append('\n');
+        }
+        return description.toString();
+    }
+
+    /*
+     * Names and sizes of the (file) entries of a package.
+     */
+    private static Map<String, Long> entriesOf(File file) throws Exception {
+        Map<String, Long> entries = new TreeMap<String, Long>();
+        try (ArchiveInputStream in = new ArchiveStreamFactory().createArchiveInputStream(
+                new BufferedInputStream(new FileInputStream(file))
+        )) {
+            ArchiveEntry entry;
+            while (null != (entry = in.getNextEntry())) {
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), (long) readAll(in).length);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * Describes the (file) entries of a package by name and digest of contents, one per line.
+     * Packages within the package are described likewise (since they are recreated, with
+     * new modification times).
+     */
+    private static String describeEntries(byte[] data) throws Exception {
+        StringBuilder description = new StringBuilder();
+        try (ArchiveInputStream in = new ArchiveStreamFactory().createArchiveInputStream(
+                new BufferedInputStream(new ByteArrayInputStream(data))
+        )) {
+            ArchiveEntry entry;
+            while (null != (entry = in.getNextEntry())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                byte[] contents = readAll(in);
+                String name = entry.getName();
+                if (name.endsWith(".zip") || name.endsWith(".tar")) {
+                    for (String line : describeEntries(contents).split("\n")) {
+                        description.append(name).append('!').append(line).append('\n');
+                    }
+                } else {
+                    byte[] digest = MessageDigest.getInstance("SHA-1").digest(contents);
+                    description.append(name).append(' ').append(new BigInteger(1, digest).toString(16)).append('\n');
+                }
+            }
+        }
+        return description.toString();
+    }
+
+    private static String names(String description) {
+        StringBuilder names = new StringBuilder();
+        for (String line : description.split("\n")) {
+            names.append(line.substring(0, line.lastIndexOf(' '))).append('\n');
+        }
+        return names.toString();
+    }
+
+    private static void addEntry(ArchiveOutputStream out, ArchiveEntry entry, byte[] data) throws IOException {
+        if (entry instanceof TarArchiveEntry) {
+            ((TarArchiveEntry) entry).setSize(data.length);
+        }
+        out.putArchiveEntry(entry);
+        out.write(data);
+        out.closeArchiveEntry();
+    }
+
+    /*
+     * The index of a TAR-file in the index directory (which does not necessarily exist).
+     */
+    private static File indexFileFor(File tar, File indexDirectory) {
+        File[] files = indexDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (file.getName().startsWith(tar.getName() + "-") && file.getName().endsWith(".idx")) {
+                    return file;
+                }
+            }
+        }
+        return new File(indexDirectory, tar.getName() + "-missing.idx");
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[0x2000];
+        int count;
+        while ((count = in.read(buf)) >= 0) {
+            out.write(buf, 0, count);
+        }
+    }
+
+    private static List<EvaluationStatement> negativeStatements(
+            ProcessorManager manager, File file, boolean isRandomAccess
+    ) throws Exception {
+        List<EvaluationStatement> statements = new ArrayList<EvaluationStatement>();
+
+        BasicProcessorContext context = new BasicProcessorContext(file.getName());
+        context.setStatementSink(StatementSinks.only(statements::add, EvaluationStatement.NEGATIVE));
+        if (isRandomAccess) {
+            manager.apply(file, context);
+        } else {
+            try (InputStream in = new FileInputStream(file)) {
+                manager.apply(file.getName(), in, null, context);
+            }
+        }
+        return statements;
+    }
+
+    private static ProcessorManager prepare(String configuration) throws Exception {
+        ProcessorManager manager = new ProcessorManager(
+                new Properties(), new ByteArrayInputStream(configuration.getBytes("UTF-8"))
+        );
+        manager.prepare();
+        return manager;
+    }
+
+    private File resource(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI());
+    }
+
+    /*
+     * Copies a TAR-file, replacing text in entries with a name ending as specified.
+     */
+    private static void rewriteTar(File from, File to, String nameEnding, String regex, String replacement)
+            throws IOException {
+        rewriteTar(from, to, nameEnding, regex, replacement, /* move first? */ false);
+    }
+
+    /*
+     * Copies a TAR-file, replacing text in entries with a name ending as specified and
+     * optionally moving these entries ahead of the others.
+     */
+    private static void rewriteTar(
+            File from, File to, String nameEnding, String regex, String replacement, boolean moveFirst
+    ) throws IOException {
+        List<TarArchiveEntry> entries = new ArrayList<TarArchiveEntry>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        try (TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(from))) {
+            TarArchiveEntry entry;
+            while (null != (entry = in.getNextTarEntry())) {
+                byte[] data = readAll(in);
+                boolean isRewritten = entry.getName().endsWith(nameEnding);
+                if (isRewritten) {
+                    data = new String(data, "UTF-8").replaceAll(regex, replacement).getBytes("UTF-8");
+                }
+
+                // The input stream relies on its entry when moving on to the next one
+                TarArchiveEntry copy = new TarArchiveEntry(entry.getName());
+                copy.setMode(entry.getMode());
+                copy.setModTime(entry.getModTime());
+                copy.setUserName(entry.getUserName());
+                copy.setGroupName(entry.getGroupName());
+                copy.setSize(data.length);
+
+                int position = isRewritten && moveFirst ? 0 : entries.size();
+                entries.add(position, copy);
+                contents.add(position, data);
+            }
+        }
+
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(to), /* records, as tar(1) */ 10240)) {
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (int i = 0; i < entries.size(); i++) {
+                out.putArchiveEntry(entries.get(i));
+                out.write(contents.get(i));
+                out.closeArchiveEntry();
+            }
+            out.finish();
+        }
+    }
+
+    /*
+     * The (hex encoded) digest of an entry of a TAR-file, located by the end of its name.
+     */
+    private static String digestOf(File tar, String nameEnding, String algorithm) throws Exception {
+        try (TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(tar))) {
+            TarArchiveEntry entry;
+            while (null != (entry = in.getNextTarEntry())) {
+                if (entry.getName().endsWith(nameEnding)) {
+                    byte[] digest = MessageDigest.getInstance(algorithm).digest(readAll(in));
+                    return String.format("%0" + (2 * digest.length) + "x", new BigInteger(1, digest));
+                }
+            }
+        }
+        throw new IOException("No entry ending with " + nameEnding + " in " + tar.getName());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[0x2000];
+        int count;
+        while ((count = in.read(buf)) >= 0) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            log.warn("Could not remove " + file.getAbsolutePath());
+        }
+    }
+}
@@ -20,9 +20,11 @@ import eu.ensure.packproc.BasicProcessorContext;
 import eu.ensure.packproc.ProcessorException;
 import eu.ensure.packproc.ProcessorManager;
 import eu.ensure.packproc.internal.Action;
-import eu.ensure.packproc.internal.FileTool;
+import eu.ensure.packproc.internal.ActionIndex;
+import eu.ensure.packproc.internal.SubInputStream;
 import eu.ensure.packproc.model.*;
 import org.apache.axiom.om.OMElement;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.archive.format.warc.WARCRecordWriter;
@@ -53,6 +55,7 @@ public class WarcProcessor implements ContainerStructureProcessor {
 
     // Sub-processors (actions)
     private List<Action> actions = new Vector<Action>();
+    private ActionIndex actionIndex = new ActionIndex(actions);
 
 
     public WarcProcessor() {
@@ -82,6 +85,7 @@ public class WarcProcessor implements ContainerStructureProcessor {
 
     public void define(List<Action> actions) {
         this.actions = actions;
+        this.actionIndex = new ActionIndex(actions);
     }
 
     public List<Action> getActions() {
@@ -92,22 +96,6 @@ public class WarcProcessor implements ContainerStructureProcessor {
         this.configElement = configuration;
     }
 
-    /**
-     * @param entry
-     * @param entryInputStream
-     * @return
-     * @throws eu.ensure.packproc.ProcessorException
-     * @throws java.io.IOException
-     */
-    private File extractEntry(
-            StructureEntry entry,
-            InputStream entryInputStream
-    ) throws ProcessorException, IOException {
-
-        FileTool fileTool = new FileTool(alias);
-        return fileTool.extractEntry(entry, entryInputStream);
-    }
-
     /**
      * @return
      */
@@ -135,6 +123,13 @@ public class WarcProcessor implements ContainerStructureProcessor {
         BasicProcessorContext basicContext = context.push(new BasicProcessorContext(name));
         boolean isMutableCall = null != outputStream;
 
+        ProcessingListener listener = manager.getListener();
+        long startTime = 0L;
+        if (null != listener) {
+            listener.containerStarted(alias, name);
+            startTime = System.nanoTime();
+        }
+
         try (WARCReader reader = (WARCReader)WARCReaderFactory.get(name, inputStream, /* at first record? */ true)) {
 
             WARCRecordWriter writer = null;
@@ -167,83 +162,65 @@ public class WarcProcessor implements ContainerStructureProcessor {
                     log.debug(info);
                 }
 
+                if (null != listener) {
+                    listener.entryRead(alias, structureEntry.getName(), structureEntry.getSize());
+                }
+
                 // There is no notion of a directory in the WARC file, and "file names"
                 // are not really interesting. Rather we want to look for file types
                 // or URLs
 
                 InputStream entryInputStream = null; // Don't use the MultiDigestInputStream
                 {
-                    Iterator<Action> ait = actions.iterator();
-                    while (ait.hasNext()) {
-                        Action action = ait.next();
-
-                        if (action.matchOnName(structureEntry.getName())
-                         || action.matchOnType(structureEntry.getContentType())) {
-
-                            if (log.isDebugEnabled()) {
-                                log.debug(me() + ":process container");
-                            }
+                    Action action = actionIndex.firstMatch(structureEntry.getName(), structureEntry.getContentType());
+                    if (null != action) {
+                        if (log.isDebugEnabled()) {
+                            log.debug(me() + ":process container");
+                        }
+                        if (null != listener) {
+                            listener.actionMatched(
+                                    alias, structureEntry.getName(), action.getProcessor().getAlias(), action.getMethod()
+                            );
+                        }
 
-                            entryInputStream = structureEntry.getInputStream();
-
-                            Processor processor = action.getProcessor();
-                            if (processor instanceof ContainerStructureProcessor) {
-                                if (action.getMethod().equalsIgnoreCase("process")) {
-                                    //-----------------------------------------------------------------------------
-                                    // Since we are referring to a structure (processor), we are probably just
-                                    // going to process an embedded TAR-file (or the like). We create a
-                                    // temporary file and recursively feed it to the processor manager...
-                                    //-----------------------------------------------------------------------------
-                                    File subInputFile = extractEntry(structureEntry, entryInputStream);
-                                    File subOutputFile = null;
-                                    if (isMutableCall) {
-                                        subOutputFile = File.createTempFile("temporary-processed", ".package");
-                                    }
-                                    try {
-                                        InputStream subInputStream = null;
-                                        OutputStream subOutputStream = null;
-                                        try {
-                                            subInputStream = new BufferedInputStream(new FileInputStream(subInputFile));
-                                            if (isMutableCall) {
-                                                subOutputStream = new BufferedOutputStream(new FileOutputStream(subOutputFile));
-                                            }
-
-                                            // Run it through the processor manager which knows what to do with it
-                                            manager.applyOnContainerWithStructure(
-                                                    action.getProcessor(), action.getMethod(),
-                                                    structureEntry.getName(), subInputStream, subOutputStream, basicContext
-                                            );
-                                        } finally {
-                                            if (null != subInputStream) subInputStream.close();
-                                            if (null != subOutputStream) subOutputStream.close();
-                                        }
-
-                                        if (isMutableCall) {
-                                            // Add the temporary file to the output stream instead of the original
-                                            // TODO addEntry(subOutputFile, structureEntry, archiveOutputStream);
-                                            //writer.writeWARCInfoRecord();
-                                        }
-                                    } finally {
-                                        if (null != subInputFile && subInputFile.exists()) subInputFile.delete();
-                                        if (null != subOutputFile && subOutputFile.exists()) subOutputFile.delete();
-                                    }
-                                    continue with_next_entry; // since we operated on a unique entry
-
-                                } else {
-                                    // Unknown operation on a container file
-                                    throw new ProcessorException("Unknown action on container: " + action.getMethod());
+                        entryInputStream = structureEntry.getInputStream();
+
+                        Processor processor = action.getProcessor();
+                        if (processor instanceof ContainerStructureProcessor) {
+                            if (action.getMethod().equalsIgnoreCase("process")) {
+                                //-----------------------------------------------------------------------------
+                                // Since we are referring to a structure (processor), we are probably just
+                                // going to process an embedded TAR-file (or the like). We feed the record
+                                // recursively to the processor manager, directly from the WARC stream.
+                                //-----------------------------------------------------------------------------
+                                SubInputStream subInputStream = new SubInputStream(entryInputStream, structureEntry.getSize());
+                                OutputStream subOutputStream = null;
+                                if (isMutableCall) {
+                                    // TODO Write processed record to the output stream instead of the original.
+                                    //      Until then, there is no point in keeping the processed container.
+                                    subOutputStream = NullOutputStream.INSTANCE;
                                 }
-                            } else if (processor instanceof FileProcessor) {
-                                //---------------------------------------------------------------------------------
-                                // Since we are referring to a file processor, we will just pass the entry with it's
-                                // input stream back to the processor manager that will know what to do with it.
-                                //---------------------------------------------------------------------------------
-                                manager.applyOnEntry(
-                                        action.getProcessor(), action.getMethod(),
-                                        structureEntry, entryInputStream, /* archiveOutputStream */ null, basicContext
+
+                                // Run it through the processor manager which knows what to do with it
+                                manager.applyOnContainerWithStructure(
+                                        action, structureEntry.getName(), subInputStream, subOutputStream, basicContext
                                 );
+                                subInputStream.drain();
                                 continue with_next_entry; // since we operated on a unique entry
+
+                            } else {
+                                // Unknown operation on a container file
+                                throw new ProcessorException("Unknown action on container: " + action.getMethod());
                             }
+                        } else if (processor instanceof FileProcessor) {
+                            //---------------------------------------------------------------------------------
+                            // Since we are referring to a file processor, we will just pass the entry with it's
+                            // input stream back to the processor manager that will know what to do with it.
+                            //---------------------------------------------------------------------------------
+                            manager.applyOnEntry(
+                                    action, structureEntry, entryInputStream, /* archiveOutputStream */ null, basicContext
+                            );
+                            continue with_next_entry; // since we operated on a unique entry
                         }
                     }
 
@@ -255,6 +232,10 @@ public class WarcProcessor implements ContainerStructureProcessor {
             }
         } finally {
             context.pop();
+
+            if (null != listener) {
+                listener.containerEnded(alias, name, System.nanoTime() - startTime);
+            }
         }
     }
 }
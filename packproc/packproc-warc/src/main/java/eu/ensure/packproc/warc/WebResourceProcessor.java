@@ -19,6 +19,7 @@ package eu.ensure.packproc.warc;
 import org.gautelis.vopn.xml.Namespaces;
 import eu.ensure.packproc.ProcessorException;
 import eu.ensure.packproc.internal.BasicFileProcessor;
+import eu.ensure.packproc.internal.MappedFileInputStream;
 import eu.ensure.packproc.model.*;
 import org.apache.axiom.om.OMElement;
 import org.apache.commons.httpclient.ChunkedInputStream;
@@ -34,6 +35,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 
 
@@ -86,13 +88,29 @@ public class WebResourceProcessor extends BasicFileProcessor {
                 // <migrate/> a resource.
                 // Since the inputChannel does not support stream-style mark/resest
                 // (and the underlying WARC stream anyhow does not support this)
-                // we need to create a temporary input file to operate upon.
+                // we need to create a temporary input file to operate upon (unless
+                // the resource already is a file in the file system).
                 bodyReadPreparation = new DeferredBodyReadPreparation() {
                     private File tmpInputFile = null;
                     private RandomAccessFile inputRaf = null;
+                    private FileChannel fileChannel = null;
+                    private long bodyOffset = 0L;
 
                     @Override
                     public FileChannel prepare(WarcInputBuffer inputBuffer) throws Exception {
+                        MappedFileInputStream mappedInputStream = MappedFileInputStream.from(inputStream);
+                        if (null != mappedInputStream) {
+                            //-----------------------------------------------------------
+                            // The resource is a file in the file system, so the body
+                            // is read directly from the file. It starts where the
+                            // header ended, i.e. before whatever has been buffered.
+                            //-----------------------------------------------------------
+                            bodyOffset = mappedInputStream.position() - inputBuffer.length();
+                            fileChannel = FileChannel.open(mappedInputStream.getFile().toPath(), StandardOpenOption.READ);
+                            fileChannel.position(bodyOffset);
+                            return fileChannel;
+                        }
+
                         // Create temporary file
                         tmpInputFile = File.createTempFile(getPrefix() + "input-", ".raw");
                         inputRaf = new RandomAccessFile(tmpInputFile, "rw");
@@ -120,9 +138,16 @@ public class WebResourceProcessor extends BasicFileProcessor {
                         return cacheChannel;
                     }
 
+                    @Override
+                    public long bodyOffset() {
+                        return bodyOffset;
+                    }
+
                     @Override
                     public void cleanup() {
                         try {
+                            if (null != fileChannel) fileChannel.close();
+
                             // Close temporary resources and such
                             if (null != inputRaf) inputRaf.close(); // closes the associated FileChannel as well
 
@@ -182,7 +207,7 @@ public class WebResourceProcessor extends BasicFileProcessor {
                             String operation = configuration.getLocalName(); // Ignore namespace!!!
 
                             // Adjust (if necessary), skip chunk size
-                            bodyChannel.position(0);
+                            bodyChannel.position(bodyReadPreparation.bodyOffset());
 
                             InputStream bodyInputStream;
                             if (isChunked) {
@@ -230,6 +255,7 @@ public class WebResourceProcessor extends BasicFileProcessor {
 
     public interface DeferredBodyReadPreparation {
         FileChannel prepare(WarcInputBuffer inputBuffer) throws Exception;
+        default long bodyOffset() { return 0L; } // position of body in the prepared channel
         default void cleanup() {}
     }
 }
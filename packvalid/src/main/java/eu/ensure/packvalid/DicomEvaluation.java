@@ -39,6 +39,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * User: Frode Randers
@@ -49,6 +50,9 @@ public class DicomEvaluation {
 
     private ProcessorManager manager = null;
 
+    // Statements regarding the evaluated information packages (and deltas between them)
+    private volatile Collection<EvaluationStatement> evaluationStatements = new ConcurrentLinkedQueue<EvaluationStatement>();
+
     public DicomEvaluation(Class clazz, String localConfigName) {
         InputStream config = null;
         try {
@@ -111,6 +115,8 @@ public class DicomEvaluation {
             log.warn(info);
         }
 
+        evaluationStatements.addAll(context.extractEvaluationStatements());
+
         Collection<? extends AssociatedInformation> assocInfo;
         assocInfo = context.extractAssociatedInformation();
         /*
@@ -121,6 +127,17 @@ public class DicomEvaluation {
         return assocInfo;
     }
 
+    /**
+     * Returns statements from evaluations sofar, starting anew.
+     */
+    public Collection<EvaluationStatement> extractEvaluationStatements() {
+        Collection<EvaluationStatement> statements = evaluationStatements;
+
+        // Prepare for next
+        evaluationStatements = new ConcurrentLinkedQueue<EvaluationStatement>();
+        return statements;
+    }
+
     private String getUniqueValue(Map</* key */ String, Map</* value */ String, /* claimants */ Set<String>>> values,
                       String key) throws ProcessorException {
         Map</* value */ String, /* claimants */ Set<String>> value = values.get(key);
@@ -179,7 +196,7 @@ public class DicomEvaluation {
             Collection<? extends AssociatedInformation> transformedAssoc
     ) {
         final String source = "DELTA";
-        Collection<EvaluationStatement> evaluationStatements = TrackingProcessorContext.getEvaluationStatements();
+        Collection<EvaluationStatement> evaluationStatements = this.evaluationStatements;
 
         //-------------------------------------------------------
         // DICOM Information Hierarchy
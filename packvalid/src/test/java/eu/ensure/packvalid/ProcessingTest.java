@@ -80,7 +80,7 @@ public class ProcessingTest extends TestCase {
 
             evaluator.evaluateDelta("test", assocInfo1, assocInfo2);
 
-            Collection<EvaluationStatement> evaluationStatements = TrackingProcessorContext.extractEvaluationStatements();
+            Collection<EvaluationStatement> evaluationStatements = evaluator.extractEvaluationStatements();
             TrackingProcessorContext.debugEvaluationStatements(evaluationStatements);
 
         } catch (ProcessorException pe) {